@@ -0,0 +1,102 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.parser.Parser;
+import graphql.schema.GraphQLSchema;
+import graphql.validation.ValidationError;
+import graphql.validation.ValidationErrorType;
+import graphql.validation.Validator;
+import no.ssb.neo4j.graphql.tbv.examples.PersonMovieExample;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+class BenchmarkResources {
+
+    static final String GSIM_SDL_PATH = "schemas/gsim.graphql";
+
+    /**
+     * The schema of the person and movie example, with its resource types marked as domain types.
+     */
+    static final String PERSON_MOVIE_SDL = new PersonMovieExample().getSDL()
+            .replace("type Person {", "type Person @domain {")
+            .replace("type Movie {", "type Movie @domain {");
+
+    static final String GSIM_NESTED_LINK_QUERY = """
+            {
+              representedVariable(first:100) {
+                id
+                shortName
+                name {
+                  languageCode
+                  languageText
+                }
+                universe(ver: $_version) {
+                  shortName
+                }
+                variable(ver: $_version) {
+                  shortName
+                  unitType(ver: $_version) {
+                    shortName
+                  }
+                  subjectFields(ver: $_version) {
+                    shortName
+                  }
+                }
+              }
+            }""";
+
+    static final String GSIM_INTERFACE_FRAGMENT_QUERY = """
+            {
+              representedVariable(first:10) {
+                shortName
+                name {
+                  languageCode
+                  languageText
+                }
+                id
+                substantiveValueDomain(ver: $_version) {
+                  __typename
+                  ... on DescribedValueDomain {
+                    shortName
+                  }
+                  ... on EnumeratedValueDomain {
+                    shortName
+                  }
+                }
+                variable(ver: $_version) {
+                  shortName
+                }
+              }
+            }""";
+
+    static String readResource(String resourcePath) {
+        try (InputStream inputStream = Objects.requireNonNull(ClassLoader.getSystemResourceAsStream(resourcePath), resourcePath)) {
+            return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Validates benchmark documents against the schema they are translated with. The translator does not reject arguments
+     * the schema does not accept, so an invalid document would measure another query than it reads as.
+     *
+     * @throws IllegalArgumentException if a document is invalid
+     */
+    static void validate(GraphQLSchema schema, String... documents) {
+        for (String document : documents) {
+            List<ValidationError> errors = new Validator().validateDocument(schema, new Parser().parseDocument(document)).stream()
+                    // the translator binds undeclared variables, such as $_version, by name
+                    .filter(error -> error.getValidationErrorType() != ValidationErrorType.UndefinedVariable)
+                    .collect(Collectors.toList());
+            if (!errors.isEmpty()) {
+                throw new IllegalArgumentException(errors.stream().map(ValidationError::getDescription).collect(Collectors.joining("; ")) + " in " + document);
+            }
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.SchemaParser;
+import graphql.schema.idl.TypeDefinitionRegistry;
+import org.HdrHistogram.Histogram;
+import org.neo4j.configuration.GraphDatabaseSettings;
+import org.neo4j.driver.AuthTokens;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.GraphDatabase;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.Transaction;
+import org.neo4j.graphql.Cypher;
+import org.neo4j.graphql.OptimizedQueryException;
+import org.neo4j.graphql.Translator;
+import org.neo4j.harness.Neo4j;
+import org.neo4j.harness.Neo4jBuilders;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * End-to-end latency of translated queries and mutations against an in-process Neo4j, as the data grows along one axis
+ * at a time from a baseline of one version per resource, base-resources resources and a link fan-out of one:
+ * <ul>
+ * <li>versions: the number of versions per resource</li>
+ * <li>resources: the number of resources per type</li>
+ * <li>fanout: the number of resources linked to by list link fields</li>
+ * </ul>
+ * Each measure is run single-threaded, translation included, and written as a HdrHistogram percentile distribution in
+ * milliseconds to {@code <output>/<workload>/<axis>-<value>/<measure>.hgrm}, with one line per measure in
+ * {@code <output>/summary.csv}. Run with: mvn -P benchmark verify -Dscaling.skip=false
+ * <p>
+ * Settings are system properties prefixed by scaling., see {@link #setting(String, String)} calls for defaults.
+ */
+public class ScalingBenchmark {
+
+    private static Logger log = LoggerFactory.getLogger(ScalingBenchmark.class);
+
+    static final ZonedDateTime EPOCH = ZonedDateTime.of(2000, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+
+    static final Workload PERSON_MOVIE = new Workload("personMovie", BenchmarkResources.PERSON_MOVIE_SDL,
+            List.of(new Population("Person", false), new Population("Movie", true)),
+            List.of(new Link("Person", "actedIn", "Movie", true)),
+            "Person",
+            """
+                    {
+                      person(id: $id) {
+                        name
+                        actedIn(ver: $_version) {
+                          title
+                          released
+                        }
+                      }
+                    }""",
+            """
+                    mutation {
+                      createPerson(id: $id, name: $name) {
+                        id
+                      }
+                    }""");
+
+    static final Workload GSIM = new Workload("gsim", BenchmarkResources.readResource(BenchmarkResources.GSIM_SDL_PATH),
+            List.of(new Population("RepresentedVariable", false), new Population("Universe", false), new Population("Variable", false),
+                    new Population("UnitType", false), new Population("SubjectField", true)),
+            List.of(new Link("RepresentedVariable", "universe", "Universe", false),
+                    new Link("RepresentedVariable", "variable", "Variable", false),
+                    new Link("Variable", "unitType", "UnitType", false),
+                    new Link("Variable", "subjectFields", "SubjectField", true)),
+            "RepresentedVariable",
+            """
+                    {
+                      representedVariable(id: $id) {
+                        shortName
+                        universe(ver: $_version) {
+                          shortName
+                        }
+                        variable(ver: $_version) {
+                          shortName
+                          unitType(ver: $_version) {
+                            shortName
+                          }
+                          subjectFields(ver: $_version) {
+                            shortName
+                          }
+                        }
+                      }
+                    }""",
+            // the create mutations of GSIM types require many embedded and temporal arguments
+            null);
+
+    final Driver driver;
+    final Path output;
+    final int iterations;
+    final int warmup;
+    final Random random = new Random(42);
+
+    ScalingBenchmark(Driver driver, Path output, int iterations, int warmup) {
+        this.driver = driver;
+        this.output = output;
+        this.iterations = iterations;
+        this.warmup = warmup;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path output = Path.of(setting("output", "target/scaling"));
+        Files.createDirectories(output);
+        int baseResources = Integer.parseInt(setting("base-resources", "100"));
+        Map<String, int[]> axes = new LinkedHashMap<>();
+        axes.put("versions", ints(setting("versions", "1,100,10000")));
+        axes.put("resources", ints(setting("resources", "100,1000,10000")));
+        axes.put("fanout", ints(setting("fanout", "1,10,100")));
+        List<Workload> workloads = Arrays.stream(setting("workloads", "personMovie,gsim").split(","))
+                .map(name -> name.equals(GSIM.name) ? GSIM : PERSON_MOVIE)
+                .collect(Collectors.toList());
+
+        try (Neo4j neo4j = Neo4jBuilders.newInProcessBuilder().withDisabledServer().withConfig(GraphDatabaseSettings.auth_enabled, false)
+                .withFunction(RunFirstColumnFunctions.class).build();
+             Driver driver = GraphDatabase.driver(neo4j.boltURI(), AuthTokens.none());
+             PrintStream summary = new PrintStream(Files.newOutputStream(output.resolve("summary.csv")), true)) {
+            summary.println("workload,axis,value,versions,resources,fanout,measure,count,p50_ms,p90_ms,p99_ms,p999_ms,max_ms");
+            ScalingBenchmark benchmark = new ScalingBenchmark(driver, output, Integer.parseInt(setting("iterations", "1000")), Integer.parseInt(setting("warmup", "200")));
+            for (Workload workload : workloads) {
+                for (Map.Entry<String, int[]> axis : axes.entrySet()) {
+                    for (int value : axis.getValue()) {
+                        Scenario scenario = new Scenario(axis.getKey(), value,
+                                axis.getKey().equals("versions") ? value : 1,
+                                axis.getKey().equals("resources") ? value : baseResources,
+                                axis.getKey().equals("fanout") ? value : 1);
+                        benchmark.run(workload, scenario, summary);
+                    }
+                }
+            }
+        }
+    }
+
+    void run(Workload workload, Scenario scenario, PrintStream summary) throws IOException, OptimizedQueryException {
+        TypeDefinitionRegistry sourceRegistry = new SchemaParser().parse(workload.sdl);
+        TypeDefinitionRegistry registry = TBVSchemas.transformRegistry(sourceRegistry);
+        GraphQLSchema schema = TBVSchemas.schemaOf(registry);
+        BenchmarkResources.validate(schema, workload.query);
+        if (workload.mutation != null) {
+            BenchmarkResources.validate(schema, workload.mutation);
+        }
+        TranslationCache translationCache = new TranslationCache(new Translator(schema), 100);
+        SyntheticTBVData data = new SyntheticTBVData(driver, sourceRegistry, translationCache, EPOCH);
+
+        log.info("{} {}: generating data", workload.name, scenario);
+        long start = System.nanoTime();
+        data.clear();
+        new TBVIndexBootstrapper(registry).apply(driver);
+        for (Population population : workload.populations) {
+            data.createResources(population.type, scenario.countOf(population), scenario.versions);
+        }
+        for (Link link : workload.links) {
+            data.createLinks(link.type, scenario.resources, link.field, link.targetType,
+                    scenario.countOf(workload.populationOf(link.targetType)), link.list ? scenario.fanout : 1, link.list);
+        }
+        log.info("{} {}: generated in {} s", workload.name, scenario, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+
+        verify(translationCache, workload);
+
+        Path directory = output.resolve(workload.name).resolve(scenario.axis + "-" + scenario.value);
+        Files.createDirectories(directory);
+        Map<String, Histogram> histograms = new LinkedHashMap<>();
+        histograms.put("query-current", measure(i -> {
+            Map<String, Object> variables = new LinkedHashMap<>();
+            variables.put("id", SyntheticTBVData.idOf(workload.rootType, random.nextInt(scenario.resources)));
+            return execute(translationCache, workload.query, variables, null, false);
+        }));
+        histograms.put("query-versioned", measure(i -> {
+            Map<String, Object> variables = new LinkedHashMap<>();
+            variables.put("id", SyntheticTBVData.idOf(workload.rootType, random.nextInt(scenario.resources)));
+            // within a random version of the chain
+            ZonedDateTime version = data.versionFrom(random.nextInt(scenario.versions)).plusHours(12);
+            return execute(translationCache, workload.query, variables, version, false);
+        }));
+        if (workload.mutation != null) {
+            histograms.put("mutation-create", measure(i -> {
+                Map<String, Object> variables = new LinkedHashMap<>();
+                variables.put("id", SyntheticTBVData.idOf(workload.rootType, random.nextInt(scenario.resources)));
+                variables.put("name", "name-" + i);
+                // a new version at the head of the chain
+                ZonedDateTime version = data.versionFrom(scenario.versions).plusSeconds(i);
+                return execute(translationCache, workload.mutation, variables, version, true);
+            }));
+        }
+
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            try (PrintStream out = new PrintStream(Files.newOutputStream(directory.resolve(entry.getKey() + ".hgrm")))) {
+                histogram.outputPercentileDistribution(out, 1_000_000.0);
+            }
+            summary.printf("%s,%s,%d,%d,%d,%d,%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f%n", workload.name, scenario.axis, scenario.value,
+                    scenario.versions, scenario.resources, scenario.fanout, entry.getKey(), histogram.getTotalCount(),
+                    histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(90) / 1e6,
+                    histogram.getValueAtPercentile(99) / 1e6, histogram.getValueAtPercentile(99.9) / 1e6, histogram.getMaxValue() / 1e6);
+            log.info("{} {} {}: p50 {} ms, p99 {} ms", workload.name, scenario, entry.getKey(),
+                    histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(99) / 1e6);
+        }
+    }
+
+    /**
+     * Fails unless the query of the workload returns the first root resource with its links resolved.
+     */
+    void verify(TranslationCache translationCache, Workload workload) throws OptimizedQueryException {
+        Cypher cypher = translationCache.translate(workload.query, Map.of("id", SyntheticTBVData.idOf(workload.rootType, 0))).get(0);
+        try (Session session = driver.session()) {
+            List<Record> records = session.readTransaction(tx -> tx.run(cypher.component1(), cypher.component2()).list());
+            if (records.isEmpty()) {
+                throw new IllegalStateException(workload.name + ": the query returned no results");
+            }
+            Map<String, Object> root = records.get(0).get(0).asMap();
+            for (Link link : workload.links) {
+                Object value = root.get(link.field);
+                if (link.type.equals(workload.rootType) && (value == null || value instanceof List && ((List<?>) value).isEmpty())) {
+                    throw new IllegalStateException(workload.name + ": the query did not resolve " + link.field + " in " + root);
+                }
+            }
+        }
+    }
+
+    Histogram measure(Iteration iteration) throws OptimizedQueryException {
+        Histogram histogram = new Histogram(TimeUnit.MINUTES.toNanos(1), 3);
+        for (int i = 0; i < warmup + iterations; i++) {
+            long start = System.nanoTime();
+            iteration.run(i);
+            long elapsed = System.nanoTime() - start;
+            if (i >= warmup) {
+                histogram.recordValue(Math.min(elapsed, histogram.getHighestTrackableValue()));
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Translates and executes a document in a single read or write transaction, consuming all records.
+     *
+     * @return the number of records
+     */
+    int execute(TranslationCache translationCache, String document, Map<String, Object> variables, ZonedDateTime version, boolean write) throws OptimizedQueryException {
+        if (version != null) {
+            variables.put("_version", version);
+        }
+        List<Cypher> cyphers = translationCache.translate(document, variables);
+        try (Session session = driver.session()) {
+            return write ?
+                    session.writeTransaction(tx -> run(tx, cyphers, version)) :
+                    session.readTransaction(tx -> run(tx, cyphers, version));
+        }
+    }
+
+    private static int run(Transaction tx, List<Cypher> cyphers, ZonedDateTime version) {
+        int records = 0;
+        for (Cypher cypher : cyphers) {
+            Map<String, Object> params = new LinkedHashMap<>(cypher.component2());
+            if (version != null) {
+                params.putIfAbsent("_version", version);
+            }
+            records += tx.run(cypher.component1(), params).list().size();
+        }
+        return records;
+    }
+
+    static String setting(String name, String defaultValue) {
+        return System.getProperty("scaling." + name, defaultValue);
+    }
+
+    static int[] ints(String commaSeparated) {
+        return Arrays.stream(commaSeparated.split(",")).map(String::trim).filter(s -> !s.isEmpty()).mapToInt(Integer::parseInt).toArray();
+    }
+
+    interface Iteration {
+        int run(int i) throws OptimizedQueryException;
+    }
+
+    static class Workload {
+        final String name;
+        final String sdl;
+        final List<Population> populations;
+        final List<Link> links;
+        final String rootType;
+        final String query;
+        final String mutation;
+
+        Workload(String name, String sdl, List<Population> populations, List<Link> links, String rootType, String query, String mutation) {
+            this.name = name;
+            this.sdl = sdl;
+            this.populations = populations;
+            this.links = links;
+            this.rootType = rootType;
+            this.query = query;
+            this.mutation = mutation;
+        }
+
+        Population populationOf(String type) {
+            return populations.stream().filter(p -> p.type.equals(type)).findFirst().orElseThrow();
+        }
+    }
+
+    /**
+     * The resources of a type. Types that are the target of list links have at least as many resources as the fan-out.
+     */
+    static class Population {
+        final String type;
+        final boolean listLinkTarget;
+
+        Population(String type, boolean listLinkTarget) {
+            this.type = type;
+            this.listLinkTarget = listLinkTarget;
+        }
+    }
+
+    static class Link {
+        final String type;
+        final String field;
+        final String targetType;
+        final boolean list;
+
+        Link(String type, String field, String targetType, boolean list) {
+            this.type = type;
+            this.field = field;
+            this.targetType = targetType;
+            this.list = list;
+        }
+    }
+
+    static class Scenario {
+        final String axis;
+        final int value;
+        final int versions;
+        final int resources;
+        final int fanout;
+
+        Scenario(String axis, int value, int versions, int resources, int fanout) {
+            this.axis = axis;
+            this.value = value;
+            this.versions = versions;
+            this.resources = resources;
+            this.fanout = fanout;
+        }
+
+        int countOf(Population population) {
+            return population.listLinkTarget ? Math.max(resources, fanout) : resources;
+        }
+
+        @Override
+        public String toString() {
+            return axis + "=" + value;
+        }
+    }
+}
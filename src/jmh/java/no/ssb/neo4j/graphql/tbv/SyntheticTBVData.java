@@ -0,0 +1,156 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.language.FieldDefinition;
+import graphql.language.NonNullType;
+import graphql.language.ObjectTypeDefinition;
+import graphql.language.Type;
+import graphql.language.TypeName;
+import graphql.schema.idl.TypeDefinitionRegistry;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Session;
+import org.neo4j.graphql.Cypher;
+import org.neo4j.graphql.OptimizedQueryException;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates synthetic time-based-versioning data with the statements of the create&lt;Type&gt; and
+ * add&lt;Type&gt;&lt;Field&gt; mutations, so the data has exactly the graph shape the mutations write in the
+ * configuration of the translated schema. Every resource gets a chain of versions one day apart starting at an epoch,
+ * created oldest first through {@link TBVBatchCreate}, the last one open and pointed to by the CURRENT relationship.
+ * Instances get a value for each of their single valued String, ID, Int, Float and Boolean fields. Links are added
+ * after all versions are created, and the add mutation links every version of a resource.
+ * <p>
+ * Resource ids are the name of the type, a dash and a sequence number from 0.
+ */
+class SyntheticTBVData {
+
+    static final int MAX_ROWS_PER_TRANSACTION = 50_000;
+
+    final Driver driver;
+    final TypeDefinitionRegistry sourceRegistry;
+    final TranslationCache translationCache;
+    final ZonedDateTime epoch;
+
+    SyntheticTBVData(Driver driver, TypeDefinitionRegistry sourceRegistry, TranslationCache translationCache, ZonedDateTime epoch) {
+        this.driver = driver;
+        this.sourceRegistry = sourceRegistry;
+        this.translationCache = translationCache;
+        this.epoch = epoch;
+    }
+
+    static String idOf(String type, long n) {
+        return type + "-" + n;
+    }
+
+    ZonedDateTime versionFrom(long version) {
+        return epoch.plusDays(version);
+    }
+
+    void clear() {
+        try (Session session = driver.session()) {
+            long deleted;
+            do {
+                deleted = session.writeTransaction(tx -> tx.run("MATCH (n) WITH n LIMIT 10000 DETACH DELETE n RETURN count(*) AS deleted").single().get("deleted").asLong());
+            } while (deleted > 0);
+        }
+    }
+
+    /**
+     * Creates count resources of a type, each with a chain of versions.
+     */
+    void createResources(String type, int count, int versions) throws OptimizedQueryException {
+        TBVBatchCreate batchCreate = new TBVBatchCreate(translationCache, MAX_ROWS_PER_TRANSACTION);
+        List<FieldDefinition> fields = scalarFieldsOf(type);
+        try (Session session = driver.session()) {
+            for (int x = 0; x < versions; x++) {
+                ZonedDateTime version = versionFrom(x);
+                for (int first = 0; first < count; first += MAX_ROWS_PER_TRANSACTION) {
+                    List<Map<String, Object>> resources = new ArrayList<>();
+                    for (int n = first; n < Math.min(first + MAX_ROWS_PER_TRANSACTION, count); n++) {
+                        resources.add(argumentsOf(type, fields, n));
+                    }
+                    List<Cypher> cyphers = batchCreate.createMany(type, resources);
+                    session.writeTransaction(tx -> {
+                        for (Cypher cypher : cyphers) {
+                            Map<String, Object> params = new LinkedHashMap<>(cypher.component2());
+                            params.put("_version", version);
+                            tx.run(cypher.component1(), params).consume();
+                        }
+                        return null;
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * Links every version of the resources of a type to fanout resources of the target type, spread evenly over the
+     * target resources, with the add mutation of the link field.
+     */
+    void createLinks(String type, int count, String field, String targetType, int targetCount, int fanout, boolean list) throws OptimizedQueryException {
+        String document = String.format("mutation { add%s%s(id: $id, %s: $%s) { id } }", type, Character.toUpperCase(field.charAt(0)) + field.substring(1), field, field);
+        int resourcesPerTransaction = Math.max(1, MAX_ROWS_PER_TRANSACTION / fanout);
+        try (Session session = driver.session()) {
+            for (int first = 0; first < count; first += resourcesPerTransaction) {
+                List<Cypher> cyphers = new ArrayList<>();
+                for (int n = first; n < Math.min(first + resourcesPerTransaction, count); n++) {
+                    List<String> targets = new ArrayList<>(fanout);
+                    for (int k = 0; k < fanout; k++) {
+                        targets.add(idOf(targetType, (n * (long) fanout + k) % targetCount));
+                    }
+                    Map<String, Object> variables = new LinkedHashMap<>();
+                    variables.put("id", idOf(type, n));
+                    variables.put(field, list ? targets : targets.get(0));
+                    cyphers.addAll(translationCache.translate(document, variables));
+                }
+                session.writeTransaction(tx -> {
+                    for (Cypher cypher : cyphers) {
+                        tx.run(cypher.component1(), cypher.component2()).consume();
+                    }
+                    return null;
+                });
+            }
+        }
+    }
+
+    private List<FieldDefinition> scalarFieldsOf(String type) {
+        ObjectTypeDefinition definition = sourceRegistry.getType(type, ObjectTypeDefinition.class)
+                .orElseThrow(() -> new IllegalArgumentException("No object type " + type));
+        List<FieldDefinition> fields = new ArrayList<>();
+        for (FieldDefinition field : definition.getFieldDefinitions()) {
+            if (field.getDirective("link") != null) {
+                continue;
+            }
+            Type<?> fieldType = field.getType() instanceof NonNullType ? ((NonNullType) field.getType()).getType() : field.getType();
+            if (fieldType instanceof TypeName && List.of("ID", "String", "Int", "Float", "Boolean").contains(((TypeName) fieldType).getName())) {
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    private static Map<String, Object> argumentsOf(String type, List<FieldDefinition> fields, int n) {
+        Map<String, Object> arguments = new LinkedHashMap<>();
+        // the id of the instance is the id of its resource, whatever its type
+        arguments.put("id", idOf(type, n));
+        for (FieldDefinition field : fields) {
+            if (field.getName().equals("id")) {
+                continue;
+            }
+            Type<?> fieldType = field.getType() instanceof NonNullType ? ((NonNullType) field.getType()).getType() : field.getType();
+            arguments.put(field.getName(), switch (((TypeName) fieldType).getName()) {
+                case "ID" -> idOf(type, n);
+                case "String" -> field.getName() + "-" + n;
+                case "Int" -> n;
+                case "Float" -> (double) n;
+                default -> n % 2 == 0;
+            });
+        }
+        return arguments;
+    }
+}
@@ -0,0 +1,78 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * The cypher rewrites of the TBV interceptor, comparing replaceGroup with a regex string, replaceGroup with a
+ * precompiled pattern, and the template based rewriter.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TBVCypherRewriterBenchmark {
+
+    static final String QUERY = "MATCH (person:Person) WHERE person.name STARTS WITH $personNameStartsWith RETURN person { .name, actedIn:[(person)-[:ACTED_IN]->(personActedIn:Movie) | personActedIn { .title }][0..5] } AS person SKIP $personOffset LIMIT $personFirst";
+    static final String CREATE = "CREATE (createPerson:Person { id: $createPersonId, name: $createPersonName }) WITH createPerson RETURN createPerson { .id } AS createPerson";
+    static final String ADD = "MATCH (from:Person { id: $fromId }) MATCH (to:Movie { id: $toActedIn }) MERGE (from)-[:ACTED_IN]->(to) WITH DISTINCT from AS addPersonActedIn RETURN addPersonActedIn { .id } AS addPersonActedIn";
+    static final String REPLACE_GROUP_REGEX = "MATCH \\(person:Person\\) WHERE( )";
+    static final Pattern REPLACE_GROUP_PATTERN = Pattern.compile(REPLACE_GROUP_REGEX);
+
+    final TBVCypherRewriter rewriter = new TBVCypherRewriter(TBVConfig.defaults());
+    final Map<String, Object> addParams = Map.of("fromId", "ne", "toActedIn", List.of("m1", "m2"));
+
+    @Benchmark
+    public String replaceGroupRegex() {
+        return TBVSchemas.replaceGroup(REPLACE_GROUP_REGEX, QUERY, 1, " (_v.from <= $_version) AND ");
+    }
+
+    @Benchmark
+    public String replaceGroupPrecompiled() {
+        return TBVSchemas.replaceGroup(REPLACE_GROUP_PATTERN, QUERY, 1, 1, " (_v.from <= $_version) AND ");
+    }
+
+    @Benchmark
+    public String queryRegex() {
+        return LegacyTBVRewrites.rewriteQuery("person", "Person", QUERY);
+    }
+
+    @Benchmark
+    public String queryRewriter() {
+        return rewriter.rewriteQuery("person", "Person", QUERY);
+    }
+
+    @Benchmark
+    public String createSplicing() {
+        return LegacyTBVRewrites.rewriteCreate("createPerson", "Person", CREATE);
+    }
+
+    @Benchmark
+    public String createRewriter() {
+        return rewriter.rewriteCreate("createPerson", "Person", CREATE);
+    }
+
+    @Benchmark
+    public String addRegex() {
+        return LegacyTBVRewrites.rewriteAdd("Movie", ADD, addParams);
+    }
+
+    @Benchmark
+    public String addRewriter() {
+        return rewriter.rewriteAdd("Movie", ADD, addParams);
+    }
+}
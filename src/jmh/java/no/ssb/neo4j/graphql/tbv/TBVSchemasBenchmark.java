@@ -0,0 +1,75 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.SchemaParser;
+import graphql.schema.idl.TypeDefinitionRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schema transformation and schema build of the GSIM schema. The steps of startup compare as follows: without a
+ * {@link TBVSchemaArtifact}, parseAndTransform followed by schemaOf, and with it, readArtifact followed by schemaOf.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TBVSchemasBenchmark {
+
+    String sdl;
+    TypeDefinitionRegistry sourceRegistry;
+    TypeDefinitionRegistry transformedRegistry;
+    Path artifactPath;
+    String checksum;
+
+    @Setup
+    public void setup() throws IOException {
+        sdl = BenchmarkResources.readResource(BenchmarkResources.GSIM_SDL_PATH);
+        sourceRegistry = new SchemaParser().parse(sdl);
+        transformedRegistry = TBVSchemas.transformRegistry(sourceRegistry);
+        artifactPath = Files.createTempFile("tbv-schema", ".graphql.gz");
+        checksum = TBVSchemaArtifact.checksumOf(sdl, TBVConfig.defaults());
+        TBVSchemaArtifact.write(artifactPath, checksum, transformedRegistry);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(artifactPath);
+    }
+
+    @Benchmark
+    public TypeDefinitionRegistry parseAndTransform() {
+        return TBVSchemas.transformRegistry(new SchemaParser().parse(sdl));
+    }
+
+    @Benchmark
+    public TypeDefinitionRegistry readArtifact() {
+        return TBVSchemaArtifact.read(artifactPath, checksum).orElseThrow();
+    }
+
+    @Benchmark
+    public TypeDefinitionRegistry transformRegistry() {
+        return TBVSchemas.transformRegistry(sourceRegistry);
+    }
+
+    @Benchmark
+    public GraphQLSchema schemaOf() {
+        return TBVSchemas.schemaOf(transformedRegistry);
+    }
+}
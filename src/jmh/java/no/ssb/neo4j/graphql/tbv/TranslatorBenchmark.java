@@ -0,0 +1,64 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.SchemaParser;
+import org.neo4j.graphql.Cypher;
+import org.neo4j.graphql.OptimizedQueryException;
+import org.neo4j.graphql.Translator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Translation of representative GSIM queries, directly through the Translator and through the TranslationCache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TranslatorBenchmark {
+
+    @Param({"nestedLink", "interfaceFragment"})
+    String query;
+
+    String document;
+    Map<String, Object> variables;
+    Translator translator;
+    TranslationCache translationCache;
+
+    @Setup
+    public void setup() {
+        GraphQLSchema schema = TBVSchemas.schemaOf(TBVSchemas.transformRegistry(new SchemaParser().parse(BenchmarkResources.readResource(BenchmarkResources.GSIM_SDL_PATH))));
+        BenchmarkResources.validate(schema, BenchmarkResources.GSIM_NESTED_LINK_QUERY, BenchmarkResources.GSIM_INTERFACE_FRAGMENT_QUERY);
+        translator = new Translator(schema);
+        translationCache = new TranslationCache(translator, 1000);
+        document = "nestedLink".equals(query) ? BenchmarkResources.GSIM_NESTED_LINK_QUERY : BenchmarkResources.GSIM_INTERFACE_FRAGMENT_QUERY;
+        variables = Map.of("_version", ZonedDateTime.now(ZoneOffset.UTC));
+    }
+
+    @Benchmark
+    public List<Cypher> translate() throws OptimizedQueryException {
+        return translator.translate(document, variables);
+    }
+
+    @Benchmark
+    public List<Cypher> translateCached() throws OptimizedQueryException {
+        return translationCache.translate(document, variables);
+    }
+}
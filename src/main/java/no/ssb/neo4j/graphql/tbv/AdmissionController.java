@@ -0,0 +1,105 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.language.Document;
+import graphql.parser.Parser;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admits queries for execution based on their estimated cost. Queries within the budget are always admitted. Queries
+ * over the budget are either rejected, or throttled so that only a few of them execute at the same time, each
+ * waiting a bounded time for its turn. Admitted queries hold a {@link Permit} that must be closed when the query has
+ * completed.
+ * <p>
+ * Documents whose shape is calibrated are estimated with the rows of their root fields estimated by the planner.
+ */
+public class AdmissionController {
+
+    public enum Mode {
+        REJECT, THROTTLE
+    }
+
+    static final Permit WITHIN_BUDGET = new Permit(null);
+
+    final QueryCostAnalyzer analyzer;
+    final ExplainCostCalibrator calibrator;
+    final long budget;
+    final Mode mode;
+    final Semaphore overBudgetPermits;
+    final long maxWaitMillis;
+
+    /**
+     * @param analyzer                the static cost analyzer
+     * @param calibrator              planner estimates of the rows of the root fields of calibrated query shapes, or null
+     * @param budget                  the highest cost admitted without restriction
+     * @param mode                    whether queries over the budget are rejected or throttled
+     * @param concurrentOverBudget    the number of queries over the budget allowed to execute at the same time
+     * @param maxWaitMillis           the longest time a throttled query waits before it is rejected
+     */
+    public AdmissionController(QueryCostAnalyzer analyzer, ExplainCostCalibrator calibrator, long budget, Mode mode, int concurrentOverBudget, long maxWaitMillis) {
+        this.analyzer = analyzer;
+        this.calibrator = calibrator;
+        this.budget = budget;
+        this.mode = mode;
+        this.overBudgetPermits = new Semaphore(concurrentOverBudget, true);
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * @return a permit to execute the document, to be closed after execution
+     * @throws QueryRejectedException if the document is over budget and rejected, or could not get a throttled
+     *                                permit in time
+     */
+    public Permit admit(String document, Map<String, Object> variables) throws QueryRejectedException {
+        return admit(document, new Parser().parseDocument(document), variables);
+    }
+
+    /**
+     * @param text     the text of the document, which identifies its calibrated shape
+     * @param document the parsed document
+     * @return a permit to execute the document, to be closed after execution
+     * @throws QueryRejectedException if the document is over budget and rejected, or could not get a throttled
+     *                                permit in time
+     */
+    public Permit admit(String text, Document document, Map<String, Object> variables) throws QueryRejectedException {
+        long cost = costOf(text, document, variables);
+        if (cost <= budget) {
+            return WITHIN_BUDGET;
+        }
+        if (mode == Mode.REJECT) {
+            throw new QueryRejectedException(String.format("Estimated query cost %d exceeds budget %d", cost, budget), cost, budget);
+        }
+        try {
+            if (!overBudgetPermits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new QueryRejectedException(String.format("Estimated query cost %d exceeds budget %d, and too many expensive queries are executing", cost, budget), cost, budget);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueryRejectedException("Interrupted while waiting for admission", cost, budget);
+        }
+        return new Permit(overBudgetPermits);
+    }
+
+    long costOf(String text, Document document, Map<String, Object> variables) {
+        List<Long> rootRows = calibrator == null ? null : calibrator.estimate(text).orElse(null);
+        return analyzer.cost(document, variables, rootRows);
+    }
+
+    public static class Permit implements AutoCloseable {
+        final Semaphore semaphore;
+
+        Permit(Semaphore semaphore) {
+            this.semaphore = semaphore;
+        }
+
+        @Override
+        public void close() {
+            if (semaphore != null) {
+                semaphore.release();
+            }
+        }
+    }
+}
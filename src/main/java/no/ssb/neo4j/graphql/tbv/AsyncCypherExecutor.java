@@ -0,0 +1,351 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import org.neo4j.driver.AccessMode;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.SessionConfig;
+import org.neo4j.driver.async.AsyncSession;
+import org.neo4j.driver.async.AsyncTransactionWork;
+import org.neo4j.driver.async.ResultCursor;
+import org.neo4j.driver.summary.QueryType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking execution of cypher statements using the async sessions of the driver. At most maxInFlight statements
+ * are executed concurrently, each in its own session and thus on its own connection from the driver pool. Statements
+ * submitted while all slots are taken are queued, and when maxQueued statements are already waiting new submissions
+ * are rejected by completing the returned stage exceptionally with a {@link RejectedExecutionException}.
+ * <p>
+ * Reads and writes are executed in transaction functions of sessions with the corresponding access mode, so that a
+ * cluster routes reads to followers, and the driver retries transactions that fail on transient errors such as
+ * deadlocks or a leader switch. Transactions are started after the bookmarks of a {@link CausalChain}, and writes
+ * advance the chain, for reads to see the writes before them. The statements of a mutation document are executed in
+ * one transaction, see {@link #executeInTransaction}.
+ * <p>
+ * The stages of the driver complete on its network threads. The continuations of this executor, which release slots,
+ * start queued statements, advance chains and complete the returned stages, run on a continuation executor instead,
+ * so that neither they nor the dependents of the callers hold up the network threads.
+ * <p>
+ * Results are offered as a {@link CompletionStage} of all records, since the callers write the records of a field
+ * only after the statements of the document have succeeded. The driver also has reactive sessions, whose records are
+ * a reactive-streams Publisher, but no caller needs to process records while they arrive.
+ */
+public class AsyncCypherExecutor implements AutoCloseable {
+
+    static final int DEFAULT_CONTINUATION_THREADS = 4;
+
+    final Driver driver;
+    final int maxInFlight;
+    final int maxQueued;
+    final TBVMetrics metrics;
+    final Executor continuations;
+    final boolean ownsContinuations;
+
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger queued = new AtomicInteger();
+    final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+
+    public AsyncCypherExecutor(Driver driver, int maxInFlight, int maxQueued) {
+        this(driver, maxInFlight, maxQueued, TBVMetrics.NOOP);
+    }
+
+    /**
+     * @param metrics receives the execute and consume time and the result summary of each statement, tagged by the
+     *                first column of the statement, which is the root field of statements produced by the translator
+     */
+    public AsyncCypherExecutor(Driver driver, int maxInFlight, int maxQueued, TBVMetrics metrics) {
+        this(driver, maxInFlight, maxQueued, metrics, DEFAULT_CONTINUATION_THREADS);
+    }
+
+    /**
+     * @param continuationThreads the threads of the continuation executor, which is shut down by {@link #close()}
+     */
+    public AsyncCypherExecutor(Driver driver, int maxInFlight, int maxQueued, TBVMetrics metrics, int continuationThreads) {
+        this(driver, maxInFlight, maxQueued, metrics, continuationPool(continuationThreads), true);
+    }
+
+    /**
+     * @param continuations runs the continuations of the stages of the driver, owned and shut down by the caller
+     */
+    public AsyncCypherExecutor(Driver driver, int maxInFlight, int maxQueued, TBVMetrics metrics, Executor continuations) {
+        this(driver, maxInFlight, maxQueued, metrics, continuations, false);
+    }
+
+    private AsyncCypherExecutor(Driver driver, int maxInFlight, int maxQueued, TBVMetrics metrics, Executor continuations, boolean ownsContinuations) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException("maxQueued must not be negative");
+        }
+        this.driver = driver;
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.metrics = metrics;
+        this.continuations = continuations;
+        this.ownsContinuations = ownsContinuations;
+    }
+
+    static ExecutorService continuationPool(int threads) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "tbv-cypher-continuation-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Shuts down the continuation executor if it is owned by this executor. Stages still in progress are continued.
+     */
+    @Override
+    public void close() {
+        if (ownsContinuations) {
+            ((ExecutorService) continuations).shutdown();
+        }
+    }
+
+    /**
+     * Executes a single statement in its own auto-commit transaction.
+     *
+     * @return a stage that completes with all records of the result
+     */
+    public CompletionStage<List<Record>> execute(String query, Map<String, Object> params) {
+        return submit(() -> {
+            AsyncSession session = driver.asyncSession();
+            long start = metrics.enabled() ? System.nanoTime() : 0;
+            return closeAfter(session, session.runAsync(query, params)
+                    .thenCompose(cursor -> metrics.enabled() ? listAndMeasure(cursor, start) : cursor.listAsync()));
+        });
+    }
+
+    /**
+     * Executes a single statement in a transaction function, which is retried by the driver on transient errors.
+     *
+     * @param accessMode READ for statements of query fields, WRITE for statements of mutation fields
+     * @param chain      the chain to start the transaction after, and to advance by writes, or null
+     * @return a stage that completes with all records of the result
+     */
+    public CompletionStage<List<Record>> execute(String query, Map<String, Object> params, AccessMode accessMode, CausalChain chain) {
+        // the work is run again on retry, and the records are read within it as results are not available after commit
+        return submit(() -> inTransaction(accessMode, chain, tx -> {
+            long start = metrics.enabled() ? System.nanoTime() : 0;
+            return tx.runAsync(query, params)
+                    .thenCompose(cursor -> metrics.enabled() ? listAndMeasure(cursor, start) : cursor.listAsync());
+        }));
+    }
+
+    /**
+     * Executes the statements of one document in a single transaction function, which commits all of them or none,
+     * and is retried by the driver on transient errors. Each statement is sent without waiting for the result of the
+     * statement before it, so the statements are pipelined on one connection, and executed by the server in order.
+     *
+     * @param accessMode READ for the statements of query fields, WRITE for the statements of mutation fields
+     * @param chain      the chain to start the transaction after, and to advance by writes, or null
+     * @return a stage that completes with the records of each statement, in the same order as the statements
+     */
+    public CompletionStage<List<List<Record>>> executeInTransaction(List<QueryAndParams> statements, AccessMode accessMode, CausalChain chain) {
+        return submit(() -> inTransaction(accessMode, chain, tx -> {
+            List<CompletableFuture<List<Record>>> futures = new ArrayList<>(statements.size());
+            for (QueryAndParams statement : statements) {
+                long start = metrics.enabled() ? System.nanoTime() : 0;
+                futures.add(tx.runAsync(statement.query, statement.params)
+                        .thenCompose(cursor -> metrics.enabled() ? listAndMeasure(cursor, start) : cursor.listAsync())
+                        .toCompletableFuture());
+            }
+            // a failed statement fails the work, and the driver rolls the transaction back
+            return allOf(futures);
+        }));
+    }
+
+    private <T> CompletionStage<T> inTransaction(AccessMode accessMode, CausalChain chain, AsyncTransactionWork<CompletionStage<T>> work) {
+        SessionConfig.Builder config = SessionConfig.builder().withDefaultAccessMode(accessMode);
+        if (chain != null) {
+            config.withBookmarks(chain.bookmarks());
+        }
+        AsyncSession session = driver.asyncSession(config.build());
+        CompletionStage<T> committed = accessMode == AccessMode.READ ?
+                session.readTransactionAsync(work) :
+                session.writeTransactionAsync(work);
+        return closeAfter(session, committed.thenApplyAsync(result -> {
+            if (chain != null && accessMode == AccessMode.WRITE) {
+                chain.advance(session.lastBookmark());
+            }
+            return result;
+        }, continuations));
+    }
+
+    private <T> CompletionStage<T> closeAfter(AsyncSession session, CompletionStage<T> stage) {
+        return stage
+                .handleAsync((result, throwable) -> session.closeAsync()
+                        .thenCompose(ignore -> throwable == null ?
+                                CompletableFuture.completedFuture(result) :
+                                CompletableFuture.<T>failedFuture(throwable)), continuations)
+                .thenComposeAsync(closed -> closed, continuations);
+    }
+
+    private CompletionStage<List<Record>> listAndMeasure(ResultCursor cursor, long start) {
+        long available = System.nanoTime();
+        return cursor.listAsync()
+                .thenCompose(records -> cursor.consumeAsync()
+                        .thenApplyAsync(summary -> {
+                            long consumed = System.nanoTime();
+                            String rootField = cursor.keys().isEmpty() ? null : cursor.keys().get(0);
+                            TBVMetrics.Kind kind = summary.queryType() == QueryType.READ_ONLY || rootField == null ?
+                                    TBVMetrics.Kind.QUERY :
+                                    TBVMetrics.Kind.of(rootField, true);
+                            metrics.timing(TBVMetrics.Phase.EXECUTE, rootField, kind, available - start);
+                            metrics.timing(TBVMetrics.Phase.CONSUME, rootField, kind, consumed - available);
+                            metrics.summary(rootField, kind, summary);
+                            return records;
+                        }, continuations));
+    }
+
+    /**
+     * Executes independent statements in parallel, limited by the in-flight concurrency of this executor.
+     *
+     * @return a stage that completes with the records of each statement, in the same order as the statements
+     */
+    public CompletionStage<List<List<Record>>> executeAll(List<QueryAndParams> statements) {
+        return executeAll(statements, statement -> execute(statement.query, statement.params));
+    }
+
+    /**
+     * Executes the statements of query fields in parallel, each in a read transaction started after the chain.
+     *
+     * @return a stage that completes with the records of each statement, in the same order as the statements
+     */
+    public CompletionStage<List<List<Record>>> executeReads(List<QueryAndParams> statements, CausalChain chain) {
+        return executeAll(statements, statement -> execute(statement.query, statement.params, AccessMode.READ, chain));
+    }
+
+    private CompletionStage<List<List<Record>>> executeAll(List<QueryAndParams> statements, Function<QueryAndParams, CompletionStage<List<Record>>> execution) {
+        List<CompletableFuture<List<Record>>> futures = new ArrayList<>(statements.size());
+        for (QueryAndParams statement : statements) {
+            futures.add(execution.apply(statement).toCompletableFuture());
+        }
+        return allOf(futures);
+    }
+
+    private CompletionStage<List<List<Record>>> allOf(List<CompletableFuture<List<Record>>> futures) {
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+                .thenApplyAsync(ignore -> {
+                    List<List<Record>> result = new ArrayList<>(futures.size());
+                    for (CompletableFuture<List<Record>> future : futures) {
+                        result.add(future.join());
+                    }
+                    return result;
+                }, continuations);
+    }
+
+    /**
+     * Executes dependent statements one after the other, each statement starting when the previous has completed.
+     *
+     * @return a stage that completes with the records of each statement, in the same order as the statements
+     */
+    public CompletionStage<List<List<Record>>> executeInOrder(List<QueryAndParams> statements) {
+        return executeInOrder(statements, statement -> execute(statement.query, statement.params));
+    }
+
+    /**
+     * Executes the statements of mutation fields one after the other, each in a write transaction started after the
+     * chain, and advancing the chain when committed.
+     *
+     * @return a stage that completes with the records of each statement, in the same order as the statements
+     */
+    public CompletionStage<List<List<Record>>> executeWrites(List<QueryAndParams> statements, CausalChain chain) {
+        return executeInOrder(statements, statement -> execute(statement.query, statement.params, AccessMode.WRITE, chain));
+    }
+
+    private CompletionStage<List<List<Record>>> executeInOrder(List<QueryAndParams> statements, Function<QueryAndParams, CompletionStage<List<Record>>> execution) {
+        CompletionStage<List<List<Record>>> stage = CompletableFuture.completedFuture(new ArrayList<>(statements.size()));
+        for (QueryAndParams statement : statements) {
+            stage = stage.thenComposeAsync(result -> execution.apply(statement)
+                    .thenApply(records -> {
+                        result.add(records);
+                        return result;
+                    }), continuations);
+        }
+        return stage;
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public int queued() {
+        return queued.get();
+    }
+
+    <T> CompletionStage<T> submit(Supplier<CompletionStage<T>> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable runnable = () -> {
+            CompletionStage<T> stage;
+            try {
+                stage = task.get();
+            } catch (Throwable t) {
+                stage = CompletableFuture.failedFuture(t);
+            }
+            stage.whenCompleteAsync((value, throwable) -> {
+                inFlight.decrementAndGet();
+                drain();
+                if (throwable != null) {
+                    result.completeExceptionally(throwable);
+                } else {
+                    result.complete(value);
+                }
+            }, continuations);
+        };
+        if (tryAcquireSlot()) {
+            runnable.run();
+            return result;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            result.completeExceptionally(new RejectedExecutionException(
+                    String.format("Too many statements waiting for execution, in-flight: %d, queued: %d", inFlight.get(), maxQueued)));
+            return result;
+        }
+        pending.add(runnable);
+        // a slot may have been released after our attempt to acquire one, but before the task was queued
+        drain();
+        return result;
+    }
+
+    private boolean tryAcquireSlot() {
+        int current = inFlight.get();
+        while (current < maxInFlight) {
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+            current = inFlight.get();
+        }
+        return false;
+    }
+
+    private void drain() {
+        while (!pending.isEmpty() && tryAcquireSlot()) {
+            Runnable next = pending.poll();
+            if (next == null) {
+                inFlight.decrementAndGet();
+                continue;
+            }
+            queued.decrementAndGet();
+            next.run();
+        }
+    }
+}
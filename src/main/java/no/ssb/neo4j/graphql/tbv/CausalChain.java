@@ -0,0 +1,65 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import org.neo4j.driver.Bookmark;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The bookmarks of a causally ordered sequence of transactions, e.g. the requests of one client. Transactions started
+ * from the chain wait until the database has applied the writes of the chain, so that reads routed to a follower see
+ * the writes committed on the leader before them.
+ * <p>
+ * A chain is encoded as the comma separated values of its bookmarks, to be carried between requests by clients.
+ */
+public class CausalChain {
+
+    final Set<Bookmark> bookmarks = new LinkedHashSet<>();
+
+    public static CausalChain decode(String encoded) {
+        CausalChain chain = new CausalChain();
+        if (encoded != null && !encoded.isBlank()) {
+            Set<String> values = new LinkedHashSet<>();
+            for (String value : encoded.split(",")) {
+                if (!value.isBlank()) {
+                    values.add(value.trim());
+                }
+            }
+            if (!values.isEmpty()) {
+                chain.bookmarks.add(Bookmark.from(values));
+            }
+        }
+        return chain;
+    }
+
+    public synchronized List<Bookmark> bookmarks() {
+        return new ArrayList<>(bookmarks);
+    }
+
+    /**
+     * Advances the chain to the bookmark of a transaction that was started from the chain, and is thus causally after
+     * all bookmarks of the chain.
+     */
+    public synchronized void advance(Bookmark bookmark) {
+        if (bookmark == null || bookmark.isEmpty()) {
+            return;
+        }
+        bookmarks.clear();
+        bookmarks.add(bookmark);
+    }
+
+    public synchronized String encode() {
+        Set<String> values = new LinkedHashSet<>();
+        for (Bookmark bookmark : bookmarks) {
+            values.addAll(bookmark.values());
+        }
+        return String.join(",", values);
+    }
+
+    @Override
+    public String toString() {
+        return "CausalChain{" + encode() + '}';
+    }
+}
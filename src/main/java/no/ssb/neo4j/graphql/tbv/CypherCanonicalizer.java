@@ -0,0 +1,129 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import org.neo4j.graphql.Cypher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * Canonicalizes generated cypher, so that statements of the same shape have the same text and share one plan in the
+ * query cache of the server, which is keyed by the text. The translator names parameters after the fields, aliases and
+ * arguments of the document, and the rewrites lay out their clauses on separate lines. Whitespace outside of literals
+ * is collapsed to single spaces, and parameters are renamed p0, p1, ... in the order of their first reference.
+ * <p>
+ * Parameters that are bound by name after translation, $_version, $id and $_rows, keep their names, as do referenced
+ * names that are not in the parameters of the statement.
+ */
+public class CypherCanonicalizer {
+
+    static final Set<String> RESERVED_PARAMS = Set.of("_version", "id", TBVBatchCreate.ROWS_PARAM);
+
+    public static List<Cypher> canonicalize(List<Cypher> cyphers) {
+        List<Cypher> result = new ArrayList<>(cyphers.size());
+        for (Cypher cypher : cyphers) {
+            result.add(canonicalize(cypher));
+        }
+        return result;
+    }
+
+    public static Cypher canonicalize(Cypher cypher) {
+        String query = cypher.component1();
+        Map<String, ?> params = cypher.component2();
+        Set<String> renamed = new LinkedHashSet<>();
+        scan(query, name -> {
+            if (!RESERVED_PARAMS.contains(name) && params.containsKey(name)) {
+                renamed.add(name);
+            }
+            return name;
+        });
+        Map<String, String> canonicalByName = new HashMap<>();
+        int index = 0;
+        for (String name : renamed) {
+            String canonical = "p" + index++;
+            // parameters that keep their names may already be called so
+            while (params.containsKey(canonical) && !renamed.contains(canonical)) {
+                canonical = "p" + index++;
+            }
+            canonicalByName.put(name, canonical);
+        }
+        String canonicalQuery = scan(query, name -> canonicalByName.getOrDefault(name, name));
+        if (canonicalByName.isEmpty()) {
+            return canonicalQuery.equals(query) ? cypher : new Cypher(canonicalQuery, cypher.component2(), cypher.component3());
+        }
+        Map<String, Object> canonicalParams = new LinkedHashMap<>();
+        for (Map.Entry<String, ?> entry : params.entrySet()) {
+            canonicalParams.put(canonicalByName.getOrDefault(entry.getKey(), entry.getKey()), entry.getValue());
+        }
+        return new Cypher(canonicalQuery, canonicalParams, cypher.component3());
+    }
+
+    /**
+     * @return the query with whitespace outside of literals collapsed, and each parameter name replaced
+     */
+    static String scan(String query, UnaryOperator<String> renameParam) {
+        StringBuilder sb = new StringBuilder(query.length());
+        boolean pendingSpace = false;
+        int i = 0;
+        final int n = query.length();
+        while (i < n) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = true;
+                i++;
+                continue;
+            }
+            if (pendingSpace && sb.length() > 0) {
+                sb.append(' ');
+            }
+            pendingSpace = false;
+            if (c == '\'' || c == '"' || c == '`') {
+                int end = endOfQuoted(query, i, c);
+                sb.append(query, i, end);
+                i = end;
+                continue;
+            }
+            if (c == '$' && i + 1 < n && isNameStart(query.charAt(i + 1))) {
+                int end = i + 2;
+                while (end < n && isNamePart(query.charAt(end))) {
+                    end++;
+                }
+                sb.append('$').append(renameParam.apply(query.substring(i + 1, end)));
+                i = end;
+                continue;
+            }
+            sb.append(c);
+            i++;
+        }
+        return sb.toString();
+    }
+
+    private static int endOfQuoted(String query, int start, char quote) {
+        final int n = query.length();
+        int i = start + 1;
+        while (i < n) {
+            char c = query.charAt(i);
+            if (c == '\\' && quote != '`') {
+                i += 2;
+            } else if (c == quote) {
+                return i + 1;
+            } else {
+                i++;
+            }
+        }
+        return n;
+    }
+
+    private static boolean isNameStart(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    private static boolean isNamePart(char c) {
+        return isNameStart(c) || (c >= '0' && c <= '9');
+    }
+}
@@ -2,6 +2,7 @@ package no.ssb.neo4j.graphql.tbv;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 public interface Example {
 
@@ -13,5 +14,12 @@ public interface Example {
 
     List<QueryAndParams> mutations();
 
+    /**
+     * @return resources to create in batches, by name of type
+     */
+    default Map<String, List<Map<String, Object>>> batchMutations() {
+        return Collections.emptyMap();
+    }
+
     List<QueryAndParams> queries();
 }
@@ -1,55 +1,123 @@
 package no.ssb.neo4j.graphql.tbv;
 
+import graphql.language.Field;
+import graphql.parser.Parser;
+import graphql.schema.GraphQLFieldDefinition;
 import graphql.schema.GraphQLSchema;
-import graphql.schema.idl.SchemaParser;
 import graphql.schema.idl.SchemaPrinter;
+import graphql.schema.idl.TypeDefinitionRegistry;
 import org.jetbrains.annotations.NotNull;
+import org.neo4j.driver.AccessMode;
 import org.neo4j.driver.AuthTokens;
 import org.neo4j.driver.Driver;
 import org.neo4j.driver.GraphDatabase;
+import org.neo4j.driver.Record;
 import org.neo4j.driver.Result;
 import org.neo4j.driver.Session;
+import org.neo4j.driver.SessionConfig;
 import org.neo4j.graphql.Cypher;
 import org.neo4j.graphql.OptimizedQueryException;
 import org.neo4j.graphql.Translator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public class ExampleRunner {
 
     private static Logger log = LoggerFactory.getLogger(Main.class);
 
+    /**
+     * The highest estimated cost of an example query that is executed, see {@link QueryCostAnalyzer}.
+     */
+    static final long QUERY_COST_BUDGET = 1_000_000;
+
     final Example example;
+    final TypeDefinitionRegistry typeDefinitionRegistry;
     final GraphQLSchema graphQLSchema;
     final Translator translator;
+    final TranslationCache translationCache;
+    final TBVBatchCreate batchCreate;
 
     public ExampleRunner(Example example) {
         this.example = example;
-        this.graphQLSchema = TBVSchemas.schemaOf(TBVSchemas.transformRegistry(new SchemaParser().parse(example.getSDL())));
+        this.typeDefinitionRegistry = TBVSchemaArtifact.loadOrTransform(example.getSDL(), TBVConfig.defaults(),
+                Path.of("target", "tbv-schema", example.getClass().getSimpleName() + ".graphql.gz"));
+        this.graphQLSchema = TBVSchemas.schemaOf(typeDefinitionRegistry);
         this.translator = new Translator(graphQLSchema);
+        this.translationCache = new TranslationCache(translator, 1000);
+        this.batchCreate = new TBVBatchCreate(translationCache, 1000);
     }
 
     public void run() {
 
         System.out.printf("SCHEMA:%n%s%n", serializeSchema(graphQLSchema));
 
-        try (Driver driver = GraphDatabase.driver("bolt://localhost:7687", AuthTokens.basic("neo4j", "PasSW0rd"))) {
+        try (Driver driver = GraphDatabase.driver("bolt://localhost:7687", AuthTokens.basic("neo4j", "PasSW0rd"));
+             AsyncCypherExecutor executor = new AsyncCypherExecutor(driver, 16, 1024)) {
+
+            new TBVIndexBootstrapper(typeDefinitionRegistry).apply(driver);
 
             ZonedDateTime nowUtc = ZonedDateTime.now(ZoneOffset.UTC);
 
             runNativeCypher(driver, example.nativeMutations());
 
+            // queries read the writes of the mutations and batch mutations before them
+            CausalChain chain = new CausalChain();
+
             System.out.printf("MUTATIONS:%n");
-            translateGraphQLQueryAndRunCypher(driver, nowUtc, example.mutations());
+            // mutation documents may depend on each other and are executed in order, the statements of each document
+            // in one transaction together with the signal to the snapshot caches of services
+            for (QueryAndParams mutation : example.mutations()) {
+                List<QueryAndParams> statements = translateToCypher(nowUtc, List.of(mutation));
+                int fields = statements.size();
+                statements.addAll(TBVWriteSignal.statementsOf(SnapshotResultCache.versionsWrittenBy(graphQLSchema, new Parser().parseDocument(mutation.query), nowUtc)));
+                executor.executeInTransaction(statements, AccessMode.WRITE, chain)
+                        .thenAccept(recordsByStatement -> printRecords(recordsByStatement.subList(0, fields)))
+                        .toCompletableFuture().join();
+            }
+
+            runBatchCreate(driver, chain, nowUtc, example.batchMutations());
 
             System.out.printf("QUERIES:%n");
-            translateGraphQLQueryAndRunCypher(driver, nowUtc.plusSeconds(1), example.queries());
+            // queries are admitted by their estimated cost before translation, and the first translation of each shape
+            // calibrates the estimate with the rows estimated by the planner
+            ExplainCostCalibrator calibrator = new ExplainCostCalibrator(driver, 1000);
+            AdmissionController admission = new AdmissionController(new QueryCostAnalyzer(graphQLSchema, 100, 10), calibrator,
+                    QUERY_COST_BUDGET, AdmissionController.Mode.REJECT, 0, 0);
+            // queries are independent and executed in parallel, responses are written in the order of the queries
+            List<CompletableFuture<List<List<Record>>>> results = new ArrayList<>();
+            for (QueryAndParams queryAndParams : example.queries()) {
+                try (AdmissionController.Permit permit = admission.admit(queryAndParams.query, queryAndParams.params)) {
+                    List<QueryAndParams> statements = translateToCypher(null, List.of(queryAndParams));
+                    calibrator.calibrate(queryAndParams.query, statements);
+                    results.add(executor.executeReads(statements, chain).toCompletableFuture());
+                } catch (QueryRejectedException e) {
+                    System.out.printf("REJECTED: %s%n", e.getMessage());
+                    results.add(null);
+                }
+            }
+            GraphQLJsonWriter jsonWriter = new GraphQLJsonWriter(System.out, driver.defaultTypeSystem());
+            for (int i = 0; i < results.size(); i++) {
+                if (results.get(i) == null) {
+                    continue;
+                }
+                writeResponse(jsonWriter, example.queries().get(i).query, results.get(i).join());
+                System.out.printf("%n");
+            }
         }
+
+        log.info("{}", translationCache);
     }
 
     private void runNativeCypher(Driver driver, List<QueryAndParams> nativeQueryAndParams) {
@@ -66,37 +134,84 @@ public class ExampleRunner {
         }
     }
 
-    private void translateGraphQLQueryAndRunCypher(Driver driver, ZonedDateTime nowUtc, List<QueryAndParams> listOfQueryAndParams) {
-        if (listOfQueryAndParams.isEmpty()) {
+    private void runBatchCreate(Driver driver, CausalChain chain, ZonedDateTime timeBasedVersion, Map<String, List<Map<String, Object>>> resourcesByType) {
+        if (resourcesByType.isEmpty()) {
             return;
         }
-        try (Session session = driver.session()) {
-            translateToCypherAndExecute(translator, nowUtc, session, listOfQueryAndParams);
+        System.out.printf("BATCH MUTATIONS:%n");
+        try (Session session = driver.session(SessionConfig.builder().withDefaultAccessMode(AccessMode.WRITE).withBookmarks(chain.bookmarks()).build())) {
+            for (Map.Entry<String, List<Map<String, Object>>> entry : resourcesByType.entrySet()) {
+                for (Cypher cypher : batchCreate.createMany(entry.getKey(), entry.getValue())) {
+                    log.info("{}", cypher.component1());
+                    LinkedHashMap<String, Object> params = new LinkedHashMap<>(cypher.component2());
+                    params.putIfAbsent("_version", timeBasedVersion);
+                    // concurrent writers of the same resources may deadlock on the MERGE of the resource, the driver retries
+                    QueryAndParams signal = TBVWriteSignal.statementOf(Set.of(entry.getKey()), timeBasedVersion);
+                    int created = session.writeTransaction(tx -> {
+                        int relationshipsCreated = tx.run(cypher.component1(), params).consume().counters().relationshipsCreated();
+                        tx.run(signal.query, signal.params).consume();
+                        return relationshipsCreated;
+                    });
+                    System.out.printf("Created %d versions of %s%n", created, entry.getKey());
+                }
+            }
+            chain.advance(session.lastBookmark());
+        } catch (OptimizedQueryException e) {
+            throw new RuntimeException(e);
         }
     }
 
-    private void translateToCypherAndExecute(Translator translator, ZonedDateTime timeBasedVersion, Session session, List<QueryAndParams> listOfQueryAndParams) {
+    /**
+     * @param timeBasedVersion the version to use when not given by the params, or null to read the current version
+     */
+    private List<QueryAndParams> translateToCypher(ZonedDateTime timeBasedVersion, List<QueryAndParams> listOfQueryAndParams) {
+        List<QueryAndParams> statements = new ArrayList<>();
         listOfQueryAndParams.forEach(queryAndParams -> {
             try {
-                List<Cypher> cyphers = translator.translate(queryAndParams.query, getParamsWithVersionIfMissing(timeBasedVersion, queryAndParams));
+                List<Cypher> cyphers = translationCache.translate(queryAndParams.query, getParamsWithVersionIfMissing(timeBasedVersion, queryAndParams));
                 cyphers.stream().forEachOrdered(cypher -> {
                     log.info("{}", cypher.toString());
                     LinkedHashMap<String, Object> params = new LinkedHashMap<>(cypher.component2());
-                    params.putIfAbsent("_version", timeBasedVersion);
-                    Result result = session.run(cypher.component1(), params);
-                    result.stream().forEachOrdered(record -> System.out.printf("%s%n", record));
-                    result.consume();
+                    if (timeBasedVersion != null) {
+                        params.putIfAbsent("_version", timeBasedVersion);
+                    }
+                    statements.add(new QueryAndParams(cypher.component1(), params));
                 });
             } catch (OptimizedQueryException e) {
                 throw new RuntimeException(e);
             }
         });
+        return statements;
+    }
+
+    private void writeResponse(GraphQLJsonWriter jsonWriter, String query, List<List<Record>> recordsByStatement) {
+        try {
+            List<Field> rootFields = GraphQLJsonWriter.rootFieldsOf(query);
+            jsonWriter.beginResponse();
+            for (int i = 0; i < rootFields.size(); i++) {
+                Field field = rootFields.get(i);
+                GraphQLFieldDefinition fieldDefinition = graphQLSchema.getQueryType().getFieldDefinition(field.getName());
+                jsonWriter.writeField(field.getResultKey(), fieldDefinition.getType(), recordsByStatement.get(i).iterator());
+            }
+            jsonWriter.endResponse();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void printRecords(List<List<Record>> recordsByStatement) {
+        recordsByStatement.forEach(records -> records.forEach(record -> System.out.printf("%s%n", record)));
     }
 
     @NotNull
     private LinkedHashMap<String, Object> getParamsWithVersionIfMissing(ZonedDateTime timeBasedVersion, QueryAndParams queryAndParams) {
         LinkedHashMap<String, Object> params = new LinkedHashMap<>(queryAndParams.params);
-        params.putIfAbsent("_version", timeBasedVersion);
+        if ("now".equals(params.get("_version"))) {
+            params.remove("_version");
+        }
+        if (timeBasedVersion != null) {
+            params.putIfAbsent("_version", timeBasedVersion);
+        }
         return params;
     }
 
@@ -0,0 +1,76 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.Value;
+import org.neo4j.driver.summary.Plan;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Calibrates query costs with the row estimates of the Neo4j planner. The translated cypher of each query shape, i.e.
+ * normalized document, is explained once, and the estimated rows of the root operator of the plan of each statement,
+ * the number of rows of its root field, is cached for the shape. The {@link QueryCostAnalyzer} estimates the cost of
+ * the document from these rows instead of from the first arguments of the root fields, so the calibrated cost is in
+ * the same unit as the static cost. The estimates of the operators below the root are not used, as they count rows
+ * of intermediate steps rather than objects of the result. EXPLAIN plans the query without executing it.
+ */
+public class ExplainCostCalibrator {
+
+    final Driver driver;
+    final int maxShapes;
+    final Map<String, List<Long>> rootRowsByShape = new ConcurrentHashMap<>();
+
+    public ExplainCostCalibrator(Driver driver, int maxShapes) {
+        this.driver = driver;
+        this.maxShapes = maxShapes;
+    }
+
+    /**
+     * @return the estimated rows of each root field of the shape of the document, if the shape has been calibrated
+     */
+    public Optional<List<Long>> estimate(String document) {
+        return Optional.ofNullable(rootRowsByShape.get(TranslationCache.normalizeDocument(document)));
+    }
+
+    /**
+     * Explains the translated statements of the document, one per root field, unless the shape of the document is
+     * already calibrated or the maximum number of shapes is reached.
+     *
+     * @return the estimated rows of each root field, or empty if the shape is not calibrated
+     */
+    public Optional<List<Long>> calibrate(String document, List<QueryAndParams> statements) {
+        String shape = TranslationCache.normalizeDocument(document);
+        List<Long> rootRows = rootRowsByShape.get(shape);
+        if (rootRows != null) {
+            return Optional.of(rootRows);
+        }
+        if (rootRowsByShape.size() >= maxShapes) {
+            return Optional.empty();
+        }
+        rootRows = new ArrayList<>(statements.size());
+        try (Session session = driver.session()) {
+            for (QueryAndParams statement : statements) {
+                rootRows.add(estimatedRows(session.run("EXPLAIN " + statement.query, statement.params).consume().plan()));
+            }
+        }
+        rootRows = List.copyOf(rootRows);
+        rootRowsByShape.put(shape, rootRows);
+        return Optional.of(rootRows);
+    }
+
+    /**
+     * @return the estimated rows of the root operator of the plan
+     */
+    static long estimatedRows(Plan plan) {
+        if (plan == null) {
+            return 0;
+        }
+        Value estimatedRows = plan.arguments().get("EstimatedRows");
+        return estimatedRows == null || estimatedRows.isNull() ? 0 : (long) Math.ceil(estimatedRows.asDouble());
+    }
+}
@@ -0,0 +1,196 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.language.Document;
+import graphql.language.Field;
+import graphql.language.OperationDefinition;
+import graphql.language.Selection;
+import graphql.parser.Parser;
+import graphql.schema.GraphQLType;
+import graphql.schema.GraphQLTypeUtil;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Value;
+import org.neo4j.driver.types.Point;
+import org.neo4j.driver.types.TypeSystem;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Writes driver records as a GraphQL response, {"data":{...}}, directly onto an output stream. Values are written as
+ * they are read from the records, without building intermediate maps or lists, so that memory use does not grow with
+ * the size of the response when the records are consumed from a streaming result.
+ * <p>
+ * Each root field of the query is written from the single column of the records of its cypher statement. Temporal
+ * values are written as ISO-8601 strings.
+ */
+public class GraphQLJsonWriter {
+
+    final Writer writer;
+    final TypeSystem typeSystem;
+
+    boolean firstField = true;
+
+    /**
+     * @param out        the stream to write the response to, it is flushed but not closed by this writer
+     * @param typeSystem the type-system of the driver, see {@link org.neo4j.driver.Driver#defaultTypeSystem()}
+     */
+    public GraphQLJsonWriter(OutputStream out, TypeSystem typeSystem) {
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 8192);
+        this.typeSystem = typeSystem;
+    }
+
+    public GraphQLJsonWriter beginResponse() throws IOException {
+        writer.write("{\"data\":{");
+        firstField = true;
+        return this;
+    }
+
+    /**
+     * Writes a root field of the response.
+     *
+     * @param name    the result key of the field, i.e. its alias or name
+     * @param type    the type of the field, list types are written as an array of all records, other types from the
+     *                first record or as null when there are no records
+     * @param records the records of the cypher statement of the field
+     */
+    public GraphQLJsonWriter writeField(String name, GraphQLType type, Iterator<Record> records) throws IOException {
+        if (!firstField) {
+            writer.write(',');
+        }
+        firstField = false;
+        writeString(name);
+        writer.write(':');
+        if (GraphQLTypeUtil.isList(GraphQLTypeUtil.unwrapNonNull(type))) {
+            writer.write('[');
+            boolean first = true;
+            while (records.hasNext()) {
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+                writeValue(records.next().get(0));
+            }
+            writer.write(']');
+        } else if (records.hasNext()) {
+            writeValue(records.next().get(0));
+        } else {
+            writer.write("null");
+        }
+        return this;
+    }
+
+    public void endResponse() throws IOException {
+        writer.write("}}");
+        writer.flush();
+    }
+
+    void writeValue(Value value) throws IOException {
+        if (value.isNull()) {
+            writer.write("null");
+        } else if (value.hasType(typeSystem.STRING())) {
+            writeString(value.asString());
+        } else if (value.hasType(typeSystem.INTEGER())) {
+            writer.write(Long.toString(value.asLong()));
+        } else if (value.hasType(typeSystem.FLOAT())) {
+            double d = value.asDouble();
+            writer.write(Double.isFinite(d) ? Double.toString(d) : "null");
+        } else if (value.hasType(typeSystem.BOOLEAN())) {
+            writer.write(value.asBoolean() ? "true" : "false");
+        } else if (value.hasType(typeSystem.LIST())) {
+            writer.write('[');
+            boolean first = true;
+            for (Value element : value.values()) {
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+                writeValue(element);
+            }
+            writer.write(']');
+        } else if (value.hasType(typeSystem.MAP()) || value.hasType(typeSystem.NODE()) || value.hasType(typeSystem.RELATIONSHIP())) {
+            writer.write('{');
+            boolean first = true;
+            for (String key : value.keys()) {
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+                writeString(key);
+                writer.write(':');
+                writeValue(value.get(key));
+            }
+            writer.write('}');
+        } else if (value.hasType(typeSystem.DATE_TIME())) {
+            writeString(DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(value.asOffsetDateTime()));
+        } else if (value.hasType(typeSystem.DATE()) || value.hasType(typeSystem.TIME())
+                || value.hasType(typeSystem.LOCAL_TIME()) || value.hasType(typeSystem.LOCAL_DATE_TIME())
+                || value.hasType(typeSystem.DURATION())) {
+            // the java.time and IsoDuration representations all print as ISO-8601
+            writeString(value.asObject().toString());
+        } else if (value.hasType(typeSystem.POINT())) {
+            Point point = value.asPoint();
+            writer.write("{\"srid\":" + point.srid() + ",\"x\":" + point.x() + ",\"y\":" + point.y());
+            if (!Double.isNaN(point.z())) {
+                writer.write(",\"z\":" + point.z());
+            }
+            writer.write('}');
+        } else if (value.hasType(typeSystem.BYTES())) {
+            writeString(Base64.getEncoder().encodeToString(value.asByteArray()));
+        } else {
+            throw new IllegalArgumentException("Unsupported value type in GraphQL response: " + value.type().name());
+        }
+    }
+
+    void writeString(String s) throws IOException {
+        writer.write('"');
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            writer.write(s, start, i - start);
+            switch (c) {
+                case '"' -> writer.write("\\\"");
+                case '\\' -> writer.write("\\\\");
+                case '\n' -> writer.write("\\n");
+                case '\r' -> writer.write("\\r");
+                case '\t' -> writer.write("\\t");
+                case '\b' -> writer.write("\\b");
+                case '\f' -> writer.write("\\f");
+                default -> writer.write(String.format("\\u%04x", (int) c));
+            }
+            start = i + 1;
+        }
+        writer.write(s, start, s.length() - start);
+        writer.write('"');
+    }
+
+    /**
+     * @return the root fields of the first operation of the document, in the order of the cypher statements produced
+     * by the translator.
+     */
+    public static List<Field> rootFieldsOf(String document) {
+        return rootFieldsOf(new Parser().parseDocument(document));
+    }
+
+    public static List<Field> rootFieldsOf(Document document) {
+        OperationDefinition operation = document.getDefinitionsOfType(OperationDefinition.class).get(0);
+        List<Field> fields = new ArrayList<>();
+        for (Selection selection : operation.getSelectionSet().getSelections()) {
+            if (selection instanceof Field) {
+                fields.add((Field) selection);
+            }
+        }
+        return fields;
+    }
+}
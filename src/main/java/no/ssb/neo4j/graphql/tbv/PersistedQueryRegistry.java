@@ -0,0 +1,282 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import graphql.language.Document;
+import graphql.language.Field;
+import graphql.language.ListType;
+import graphql.language.NonNullType;
+import graphql.language.OperationDefinition;
+import graphql.language.Type;
+import graphql.language.TypeName;
+import graphql.language.VariableDefinition;
+import graphql.parser.Parser;
+import graphql.schema.GraphQLSchema;
+import graphql.validation.ValidationError;
+import graphql.validation.ValidationErrorType;
+import graphql.validation.Validator;
+import org.neo4j.driver.AccessMode;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.SessionConfig;
+import org.neo4j.driver.exceptions.Neo4jException;
+import org.neo4j.graphql.Cypher;
+import org.neo4j.graphql.OptimizedQueryException;
+import org.neo4j.graphql.Translator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A catalogue of GraphQL documents known ahead of time, registered by the hex encoded SHA-256 of their text. Documents
+ * are parsed and validated against the schema once, when registered, and pre-translated into a translation cache of
+ * their own so that ad-hoc documents cannot evict them. Requests then only send the hash and the variables.
+ * <p>
+ * Pre-translation needs variable values of the same types as those of the requests. These are read from a
+ * {@code <name>.variables.json} file next to the document, or else derived from the variable definitions of the
+ * document. Documents whose variables cannot be derived are translated on their first request instead.
+ * <p>
+ * The pre-translated statements are kept, one per distinct statement text, so that the server can plan them ahead of
+ * the first request, see {@link #warmUp(Driver)}.
+ */
+public class PersistedQueryRegistry {
+
+    private static Logger log = LoggerFactory.getLogger(PersistedQueryRegistry.class);
+
+    final GraphQLSchema schema;
+    final TranslationCache translationCache;
+    final Map<String, PersistedQuery> queryByHash = new ConcurrentHashMap<>();
+    final Map<String, Cypher> readShapeByQuery = new ConcurrentHashMap<>();
+    final Map<String, Cypher> writeShapeByQuery = new ConcurrentHashMap<>();
+
+    /**
+     * @param cacheSize the size of the translation cache of the registry, at least the number of documents times the
+     *                  number of variable shapes per document
+     */
+    public PersistedQueryRegistry(GraphQLSchema schema, Translator translator, int cacheSize) {
+        this(schema, translator, cacheSize, false);
+    }
+
+    /**
+     * @param canonicalize whether to canonicalize the translated cypher, see {@link CypherCanonicalizer}
+     */
+    public PersistedQueryRegistry(GraphQLSchema schema, Translator translator, int cacheSize, boolean canonicalize) {
+        this.schema = schema;
+        this.translationCache = new TranslationCache(translator, cacheSize, TBVMetrics.NOOP, canonicalize);
+    }
+
+    /**
+     * Registers all {@code *.graphql} files of a directory.
+     *
+     * @return the number of documents registered
+     * @throws IllegalArgumentException if a document is invalid
+     */
+    public int loadDirectory(Path directory) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(p -> p.getFileName().toString().endsWith(".graphql")).sorted().collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            String fileName = file.getFileName().toString();
+            Path variablesFile = file.resolveSibling(fileName.substring(0, fileName.length() - ".graphql".length()) + ".variables.json");
+            Map<String, Object> sampleVariables = null;
+            if (Files.exists(variablesFile)) {
+                sampleVariables = new LinkedHashMap<>();
+                for (Map.Entry<?, ?> entry : mapper.readValue(variablesFile.toFile(), Map.class).entrySet()) {
+                    sampleVariables.put(String.valueOf(entry.getKey()), entry.getValue());
+                }
+            }
+            try {
+                PersistedQuery query = register(Files.readString(file), sampleVariables);
+                log.debug("Registered {} as {}", file, query.hash);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(file + ": " + e.getMessage(), e);
+            }
+        }
+        log.info("Registered {} persisted queries from {}, {}", files.size(), directory, translationCache);
+        return files.size();
+    }
+
+    /**
+     * Registers a document, validating and pre-translating it.
+     *
+     * @param sampleVariables variables to pre-translate with, or null to derive them from the variable definitions
+     * @return the registered query
+     * @throws IllegalArgumentException if the document is invalid or cannot be translated
+     */
+    public PersistedQuery register(String text, Map<String, Object> sampleVariables) {
+        Document document = new Parser().parseDocument(text);
+        List<ValidationError> errors = new Validator().validateDocument(schema, document).stream()
+                // the translator binds undeclared variables, such as $_version, by name
+                .filter(error -> error.getValidationErrorType() != ValidationErrorType.UndefinedVariable)
+                .collect(Collectors.toList());
+        if (!errors.isEmpty()) {
+            throw new IllegalArgumentException(errors.stream().map(ValidationError::getDescription).collect(Collectors.joining("; ")));
+        }
+        PersistedQuery query = new PersistedQuery(hashOf(text), text, document, TBVGraphQLService.isMutation(document),
+                GraphQLJsonWriter.rootFieldsOf(document), translationCache);
+        Map<String, Object> variables = sampleVariables != null ? new LinkedHashMap<>(sampleVariables) : sampleVariablesOf(document);
+        if (variables == null) {
+            log.debug("Variables of {} cannot be derived, translated on first request", query.hash);
+        } else {
+            // the service reads the current version without a _version, and always writes with one
+            Map<String, Cypher> shapeByQuery = query.mutation ? writeShapeByQuery : readShapeByQuery;
+            try {
+                if (!query.mutation) {
+                    variables.remove("_version");
+                    addShapes(shapeByQuery, translationCache.translate(text, variables), variables);
+                }
+                variables.put("_version", ZonedDateTime.now(ZoneOffset.UTC));
+                addShapes(shapeByQuery, translationCache.translate(text, variables), variables);
+            } catch (OptimizedQueryException | RuntimeException e) {
+                throw new IllegalArgumentException("Translation failed: " + e.getMessage(), e);
+            }
+        }
+        queryByHash.put(query.hash, query);
+        return query;
+    }
+
+    private static void addShapes(Map<String, Cypher> shapeByQuery, List<Cypher> cyphers, Map<String, Object> variables) {
+        for (Cypher cypher : cyphers) {
+            // the service binds $_version after translation
+            Map<String, Object> params = new LinkedHashMap<>(cypher.component2());
+            params.putIfAbsent("_version", variables.get("_version"));
+            shapeByQuery.putIfAbsent(cypher.component1(), new Cypher(cypher.component1(), params, cypher.component3()));
+        }
+    }
+
+    /**
+     * Plans the pre-translated statements of all registered documents with EXPLAIN, which populates the query cache
+     * of the server without executing them. Statements that fail to plan are logged and skipped.
+     *
+     * @return the number of statements planned
+     */
+    public int warmUp(Driver driver) {
+        long start = System.currentTimeMillis();
+        int planned = warmUp(driver, AccessMode.READ, readShapeByQuery.values())
+                + warmUp(driver, AccessMode.WRITE, writeShapeByQuery.values());
+        log.info("Planned {} of {} persisted query statements in {} ms", planned, readShapeByQuery.size() + writeShapeByQuery.size(),
+                System.currentTimeMillis() - start);
+        return planned;
+    }
+
+    private static int warmUp(Driver driver, AccessMode accessMode, Collection<Cypher> cyphers) {
+        if (cyphers.isEmpty()) {
+            return 0;
+        }
+        int planned = 0;
+        try (Session session = driver.session(SessionConfig.builder().withDefaultAccessMode(accessMode).build())) {
+            for (Cypher cypher : cyphers) {
+                try {
+                    session.run("EXPLAIN " + cypher.component1(), cypher.component2()).consume();
+                    planned++;
+                } catch (Neo4jException e) {
+                    log.warn("Failed to plan persisted query statement: {}", e.getMessage());
+                    log.debug("Statement that failed to plan: {}", cypher.component1());
+                }
+            }
+        }
+        return planned;
+    }
+
+    public Optional<PersistedQuery> get(String hash) {
+        return Optional.ofNullable(queryByHash.get(hash));
+    }
+
+    public int size() {
+        return queryByHash.size();
+    }
+
+    /**
+     * @return placeholder values of the declared variables, of the types the JSON parser of the service produces, or
+     * null if a variable is of a type without a placeholder
+     */
+    static Map<String, Object> sampleVariablesOf(Document document) {
+        Map<String, Object> variables = new LinkedHashMap<>();
+        for (OperationDefinition operation : document.getDefinitionsOfType(OperationDefinition.class)) {
+            for (VariableDefinition definition : operation.getVariableDefinitions()) {
+                Object value = placeholderOf(definition.getType());
+                if (value == null) {
+                    return null;
+                }
+                variables.put(definition.getName(), value);
+            }
+        }
+        return variables;
+    }
+
+    private static Object placeholderOf(Type<?> type) {
+        if (type instanceof NonNullType) {
+            return placeholderOf(((NonNullType) type).getType());
+        }
+        if (type instanceof ListType) {
+            Object element = placeholderOf(((ListType) type).getType());
+            return element == null ? null : List.of(element);
+        }
+        return switch (((TypeName) type).getName()) {
+            case "String", "ID" -> "placeholder";
+            case "Int" -> 1;
+            case "Float" -> 0.5;
+            case "Boolean" -> false;
+            default -> null;
+        };
+    }
+
+    /**
+     * @return hex encoded SHA-256 of the UTF-8 text of a document
+     */
+    public static String hashOf(String text) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static class PersistedQuery {
+        public final String hash;
+        public final String text;
+        public final Document document;
+        public final boolean mutation;
+        public final List<Field> rootFields;
+        final TranslationCache translationCache;
+
+        PersistedQuery(String hash, String text, Document document, boolean mutation, List<Field> rootFields, TranslationCache translationCache) {
+            this.hash = hash;
+            this.text = text;
+            this.document = document;
+            this.mutation = mutation;
+            this.rootFields = rootFields;
+            this.translationCache = translationCache;
+        }
+
+        /**
+         * @return the cypher of the query, bound to the variables from the pre-translated templates when the variables
+         * have the same shape as the sample variables
+         */
+        public List<Cypher> translate(Map<String, Object> variables) throws OptimizedQueryException {
+            return translationCache.translate(text, variables);
+        }
+    }
+}
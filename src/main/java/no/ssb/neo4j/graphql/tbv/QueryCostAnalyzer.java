@@ -0,0 +1,192 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.language.Argument;
+import graphql.language.Document;
+import graphql.language.Field;
+import graphql.language.FragmentDefinition;
+import graphql.language.FragmentSpread;
+import graphql.language.InlineFragment;
+import graphql.language.IntValue;
+import graphql.language.OperationDefinition;
+import graphql.language.Selection;
+import graphql.language.SelectionSet;
+import graphql.language.VariableReference;
+import graphql.parser.Parser;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLFieldsContainer;
+import graphql.schema.GraphQLObjectType;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.GraphQLType;
+import graphql.schema.GraphQLTypeUtil;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Estimates the cost of a GraphQL document before it is translated. The cost is the estimated number of objects the
+ * query produces: every list field multiplies the rows of its parent by its first argument, or by a default list size
+ * when first is absent, and every object is counted once. Link fields, recognized by their ver argument, resolve each
+ * row through a versioned subquery and are weighted by a link weight instead.
+ * <p>
+ * The estimate is conservative: fragments on different types of an interface or union are all counted.
+ * <p>
+ * The number of rows of the root fields can be given, e.g. the planner estimates of {@link ExplainCostCalibrator},
+ * replacing the first argument or default list size of the root fields in the estimate.
+ */
+public class QueryCostAnalyzer {
+
+    final GraphQLSchema schema;
+    final long defaultListSize;
+    final long linkWeight;
+
+    /**
+     * @param schema          the schema the documents are written against
+     * @param defaultListSize the number of rows assumed for list fields without a first argument
+     * @param linkWeight      the cost of resolving one row of a link field
+     */
+    public QueryCostAnalyzer(GraphQLSchema schema, long defaultListSize, long linkWeight) {
+        this.schema = schema;
+        this.defaultListSize = defaultListSize;
+        this.linkWeight = linkWeight;
+    }
+
+    /**
+     * @return the estimated cost of all operations of the document, saturating at Long.MAX_VALUE
+     */
+    public long cost(String document, Map<String, Object> variables) {
+        return cost(new Parser().parseDocument(document), variables);
+    }
+
+    public long cost(Document document, Map<String, Object> variables) {
+        return cost(document, variables, null);
+    }
+
+    /**
+     * @param rootRows the number of rows of each root field of the first operation, in the order of the fields, or
+     *                 null to estimate them from the first arguments. A literal first bounds the rows, a first from a
+     *                 variable replaces them
+     * @return the estimated cost of all operations of the document, saturating at Long.MAX_VALUE
+     */
+    public long cost(Document document, Map<String, Object> variables, List<Long> rootRows) {
+        Map<String, FragmentDefinition> fragments = new HashMap<>();
+        for (FragmentDefinition fragment : document.getDefinitionsOfType(FragmentDefinition.class)) {
+            fragments.put(fragment.getName(), fragment);
+        }
+        long cost = 0;
+        List<OperationDefinition> operations = document.getDefinitionsOfType(OperationDefinition.class);
+        for (int i = 0; i < operations.size(); i++) {
+            OperationDefinition operation = operations.get(i);
+            GraphQLObjectType rootType = operation.getOperation() == OperationDefinition.Operation.MUTATION ?
+                    schema.getMutationType() : schema.getQueryType();
+            if (rootType == null) {
+                continue;
+            }
+            int rootField = 0;
+            for (Selection selection : operation.getSelectionSet().getSelections()) {
+                Long rows = i == 0 && rootRows != null && selection instanceof Field && rootField < rootRows.size() ? rootRows.get(rootField++) : null;
+                cost = add(cost, selectionCost(selection, rootType, 1, rows, fragments, variables, new HashSet<>()));
+            }
+        }
+        return cost;
+    }
+
+    long selectionCost(SelectionSet selectionSet, GraphQLFieldsContainer parentType, long rows, Map<String, FragmentDefinition> fragments,
+                       Map<String, Object> variables, Set<String> activeFragments) {
+        if (selectionSet == null) {
+            return 0;
+        }
+        long cost = 0;
+        for (Selection selection : selectionSet.getSelections()) {
+            cost = add(cost, selectionCost(selection, parentType, rows, null, fragments, variables, activeFragments));
+        }
+        return cost;
+    }
+
+    /**
+     * @param fieldRows the number of rows of the field, or null to derive it from the rows of the parent
+     */
+    long selectionCost(Selection selection, GraphQLFieldsContainer parentType, long rows, Long fieldRows, Map<String, FragmentDefinition> fragments,
+                       Map<String, Object> variables, Set<String> activeFragments) {
+        if (selection instanceof Field) {
+            Field field = (Field) selection;
+            GraphQLFieldDefinition fieldDefinition = field.getName().startsWith("__") ? null : parentType.getFieldDefinition(field.getName());
+            if (fieldDefinition == null) {
+                return 0;
+            }
+            GraphQLType type = GraphQLTypeUtil.unwrapNonNull(fieldDefinition.getType());
+            GraphQLType unwrappedType = GraphQLTypeUtil.unwrapAll(type);
+            if (!(unwrappedType instanceof GraphQLFieldsContainer)) {
+                return 0;
+            }
+            long rowsOfField = fieldRows != null ? calibratedRows(field, fieldRows, variables) : GraphQLTypeUtil.isList(type) ? multiply(rows, first(field, variables)) : rows;
+            long weight = fieldDefinition.getArgument("ver") != null ? linkWeight : 1;
+            return add(multiply(rowsOfField, weight),
+                    selectionCost(field.getSelectionSet(), (GraphQLFieldsContainer) unwrappedType, rowsOfField, fragments, variables, activeFragments));
+        } else if (selection instanceof InlineFragment) {
+            InlineFragment inlineFragment = (InlineFragment) selection;
+            GraphQLFieldsContainer type = inlineFragment.getTypeCondition() == null ? parentType : typeOf(inlineFragment.getTypeCondition().getName(), parentType);
+            return selectionCost(inlineFragment.getSelectionSet(), type, rows, fragments, variables, activeFragments);
+        } else if (selection instanceof FragmentSpread) {
+            FragmentDefinition fragment = fragments.get(((FragmentSpread) selection).getName());
+            // cyclic fragments are invalid and left to the validation of the translator
+            if (fragment == null || !activeFragments.add(fragment.getName())) {
+                return 0;
+            }
+            long cost = selectionCost(fragment.getSelectionSet(), typeOf(fragment.getTypeCondition().getName(), parentType), rows, fragments, variables, activeFragments);
+            activeFragments.remove(fragment.getName());
+            return cost;
+        }
+        return 0;
+    }
+
+    private GraphQLFieldsContainer typeOf(String name, GraphQLFieldsContainer fallback) {
+        GraphQLType type = schema.getType(name);
+        return type instanceof GraphQLFieldsContainer ? (GraphQLFieldsContainer) type : fallback;
+    }
+
+    /**
+     * The calibrated rows of a root field, bounded by a literal first. A first from a variable is not known to the
+     * calibration, which is shared by all requests of the shape, so it is used instead.
+     */
+    private long calibratedRows(Field field, long calibrated, Map<String, Object> variables) {
+        Argument first = field.getArguments().stream().filter(a -> a.getName().equals("first")).findFirst().orElse(null);
+        if (first == null) {
+            return Math.max(0, calibrated);
+        }
+        if (first.getValue() instanceof IntValue) {
+            return Math.max(0, Math.min(calibrated, first(field, variables)));
+        }
+        return first(field, variables);
+    }
+
+    private long first(Field field, Map<String, Object> variables) {
+        Argument first = field.getArguments().stream().filter(a -> a.getName().equals("first")).findFirst().orElse(null);
+        if (first == null) {
+            return defaultListSize;
+        }
+        if (first.getValue() instanceof IntValue) {
+            return Math.max(0, ((IntValue) first.getValue()).getValue().longValue());
+        }
+        if (first.getValue() instanceof VariableReference) {
+            Object value = variables.get(((VariableReference) first.getValue()).getName());
+            if (value instanceof Number) {
+                return Math.max(0, ((Number) value).longValue());
+            }
+        }
+        return defaultListSize;
+    }
+
+    private static long add(long a, long b) {
+        long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    private static long multiply(long a, long b) {
+        long high = Math.multiplyHigh(a, b);
+        long product = a * b;
+        return high != 0 || product < 0 ? Long.MAX_VALUE : product;
+    }
+}
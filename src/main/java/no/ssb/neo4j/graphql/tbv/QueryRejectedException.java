@@ -0,0 +1,24 @@
+package no.ssb.neo4j.graphql.tbv;
+
+/**
+ * Thrown when a query is not admitted for execution because its estimated cost exceeds the budget.
+ */
+public class QueryRejectedException extends RuntimeException {
+
+    final long cost;
+    final long budget;
+
+    public QueryRejectedException(String message, long cost, long budget) {
+        super(message);
+        this.cost = cost;
+        this.budget = budget;
+    }
+
+    public long cost() {
+        return cost;
+    }
+
+    public long budget() {
+        return budget;
+    }
+}
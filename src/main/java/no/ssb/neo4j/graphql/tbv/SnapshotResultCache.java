@@ -0,0 +1,490 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.language.Argument;
+import graphql.language.Document;
+import graphql.language.Field;
+import graphql.language.FragmentDefinition;
+import graphql.language.FragmentSpread;
+import graphql.language.InlineFragment;
+import graphql.language.OperationDefinition;
+import graphql.language.Selection;
+import graphql.language.SelectionSet;
+import graphql.language.VariableReference;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLFieldsContainer;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.GraphQLType;
+import graphql.schema.GraphQLTypeUtil;
+import org.neo4j.driver.AccessMode;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.SessionConfig;
+import org.neo4j.driver.Value;
+import org.neo4j.driver.types.TypeSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded LRU cache of the results of queries at versions older than the newest version written of every domain type
+ * they read, which no longer change. Backdated writes invalidate the affected results, writes of other writers are
+ * learnt from the {@link TBVWriteSignal} on {@link #refresh(Driver)}.
+ */
+public class SnapshotResultCache {
+
+    private static Logger log = LoggerFactory.getLogger(SnapshotResultCache.class);
+
+    final GraphQLSchema schema;
+    final TypeSystem typeSystem;
+    final Set<String> domainTypes;
+    final int maxEntries;
+    final long maxWeight;
+    final Map<String, ZonedDateTime> highWaterMarkByType = new ConcurrentHashMap<>();
+    final Map<String, Long> signalledInvalidationsByType = new ConcurrentHashMap<>();
+    final Map<Key, Entry> entryByKey = new LinkedHashMap<>(16, 0.75f, true);
+    final AtomicLong generation = new AtomicLong();
+
+    long weight;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder ineligible = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param schema     the time-based-versioning schema, whose query fields return the domain types
+     * @param typeSystem the type-system of the driver
+     * @param maxEntries the maximum number of cached results
+     * @param maxWeight  the maximum total weight of cached results
+     */
+    public SnapshotResultCache(GraphQLSchema schema, TypeSystem typeSystem, int maxEntries, long maxWeight) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        this.schema = schema;
+        this.typeSystem = typeSystem;
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.domainTypes = domainTypesOf(schema);
+    }
+
+    static Set<String> domainTypesOf(GraphQLSchema schema) {
+        Set<String> domainTypes = new TreeSet<>();
+        for (GraphQLFieldDefinition field : schema.getQueryType().getFieldDefinitions()) {
+            domainTypes.add(GraphQLTypeUtil.unwrapAll(field.getType()).getName());
+        }
+        return Set.copyOf(domainTypes);
+    }
+
+    /**
+     * Reads the newest version of every domain type, served by the index on the from mirrored onto the instances, and
+     * applies the writes of other writers signalled since the previous refresh.
+     */
+    public void refresh(Driver driver) {
+        try (Session session = driver.session(SessionConfig.builder().withDefaultAccessMode(AccessMode.READ).build())) {
+            for (String type : domainTypes) {
+                List<Record> records = session.readTransaction(tx -> tx.run(String.format(
+                        "MATCH (n:%s:INSTANCE) WHERE n._from IS NOT NULL RETURN n._from AS from ORDER BY n._from DESC LIMIT 1", type)).list());
+                if (!records.isEmpty()) {
+                    advanceHighWaterMark(type, records.get(0).get("from").asZonedDateTime());
+                }
+            }
+            for (TBVWriteSignal.State state : TBVWriteSignal.read(session).values()) {
+                if (domainTypes.contains(state.type)) {
+                    applySignal(state);
+                }
+            }
+        }
+        log.debug("High-water marks: {}", highWaterMarkByType);
+    }
+
+    void applySignal(TBVWriteSignal.State state) {
+        long seen = signalledInvalidationsByType.getOrDefault(state.type, 0L);
+        if (state.invalidations != seen) {
+            // only the latest invalidation is signalled, all versions are invalidated when several were missed
+            invalidate(state.type, state.invalidations - seen == 1 ? state.invalidatedFrom : null);
+            signalledInvalidationsByType.put(state.type, state.invalidations);
+        }
+        if (state.highWaterMark != null) {
+            advanceHighWaterMark(state.type, state.highWaterMark);
+        }
+    }
+
+    /**
+     * Records a committed write of a version of a type, invalidating cached results that may include the type at that
+     * version. Must be called after the write is committed, and before the result of the write is returned.
+     *
+     * @param version the version written, or null to invalidate all cached results that read the type
+     */
+    public void onWrite(String type, ZonedDateTime version) {
+        ZonedDateTime highWaterMark = highWaterMarkByType.get(type);
+        if (version == null || (highWaterMark != null && !version.isAfter(highWaterMark))) {
+            invalidate(type, version);
+        }
+        if (version != null) {
+            advanceHighWaterMark(type, version);
+        }
+    }
+
+    private void advanceHighWaterMark(String type, ZonedDateTime version) {
+        highWaterMarkByType.merge(type, version, (a, b) -> a.isAfter(b) ? a : b);
+    }
+
+    private void invalidate(String type, ZonedDateTime version) {
+        int invalidated = 0;
+        synchronized (entryByKey) {
+            generation.incrementAndGet();
+            Iterator<Entry> iterator = entryByKey.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.types.contains(type) && (version == null || !entry.version.isBefore(version))) {
+                    iterator.remove();
+                    weight -= entry.weight;
+                    invalidated++;
+                }
+            }
+        }
+        invalidations.add(invalidated);
+        log.debug("Backdated write of {} at {} invalidated {} cached results", type, version, invalidated);
+    }
+
+    /**
+     * @return the generation of the cache, to be passed to {@link #put} for results executed after this call
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * @return the domain types read by a query document
+     */
+    public Set<String> typesOf(Document document) {
+        Map<String, FragmentDefinition> fragments = new HashMap<>();
+        for (FragmentDefinition fragment : document.getDefinitionsOfType(FragmentDefinition.class)) {
+            fragments.put(fragment.getName(), fragment);
+        }
+        Set<String> types = new HashSet<>();
+        for (OperationDefinition operation : document.getDefinitionsOfType(OperationDefinition.class)) {
+            if (operation.getOperation() == OperationDefinition.Operation.QUERY) {
+                visitFields(operation.getSelectionSet(), schema.getQueryType(), fragments, new HashSet<>(), (field, definition, parentType) -> {
+                    String type = GraphQLTypeUtil.unwrapAll(definition.getType()).getName();
+                    if (domainTypes.contains(type)) {
+                        types.add(type);
+                    }
+                });
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Whether the results of a query document depend only on its $_version, i.e. every link is resolved at $_version
+     * and no @cypher query field is read.
+     */
+    public boolean isCacheable(Document document) {
+        Map<String, FragmentDefinition> fragments = new HashMap<>();
+        for (FragmentDefinition fragment : document.getDefinitionsOfType(FragmentDefinition.class)) {
+            fragments.put(fragment.getName(), fragment);
+        }
+        boolean[] cacheable = {true};
+        for (OperationDefinition operation : document.getDefinitionsOfType(OperationDefinition.class)) {
+            if (operation.getOperation() != OperationDefinition.Operation.QUERY) {
+                return false;
+            }
+            visitFields(operation.getSelectionSet(), schema.getQueryType(), fragments, new HashSet<>(), (field, definition, parentType) -> {
+                if (parentType == schema.getQueryType() && definition.getDirective("cypher") != null) {
+                    cacheable[0] = false;
+                }
+                if (definition.getArgument("ver") != null) {
+                    Argument ver = field.getArguments().stream().filter(argument -> argument.getName().equals("ver")).findFirst().orElse(null);
+                    if (ver == null || !(ver.getValue() instanceof VariableReference) || !((VariableReference) ver.getValue()).getName().equals("_version")) {
+                        cacheable[0] = false;
+                    }
+                }
+            });
+        }
+        return cacheable[0];
+    }
+
+    /**
+     * @return the domain types written by the mutations of a document, by the version their writes are signalled at
+     * @see #versionsWrittenBy(GraphQLSchema, Document, ZonedDateTime)
+     */
+    public Map<String, ZonedDateTime> versionsWrittenBy(Document document, ZonedDateTime version) {
+        return versionsWrittenBy(schema, domainTypes, document, version);
+    }
+
+    /**
+     * @return the domain types returned by the fields of the mutations of a document, by the version written, or null
+     * for mutations other than create, which change existing versions in place
+     */
+    public static Map<String, ZonedDateTime> versionsWrittenBy(GraphQLSchema schema, Document document, ZonedDateTime version) {
+        return versionsWrittenBy(schema, domainTypesOf(schema), document, version);
+    }
+
+    private static Map<String, ZonedDateTime> versionsWrittenBy(GraphQLSchema schema, Set<String> domainTypes, Document document, ZonedDateTime version) {
+        Map<String, ZonedDateTime> versionByType = new TreeMap<>();
+        for (OperationDefinition operation : document.getDefinitionsOfType(OperationDefinition.class)) {
+            if (operation.getOperation() != OperationDefinition.Operation.MUTATION || schema.getMutationType() == null) {
+                continue;
+            }
+            for (Selection selection : operation.getSelectionSet().getSelections()) {
+                GraphQLFieldDefinition definition = selection instanceof Field ? schema.getMutationType().getFieldDefinition(((Field) selection).getName()) : null;
+                if (definition != null) {
+                    String type = GraphQLTypeUtil.unwrapAll(definition.getType()).getName();
+                    if (domainTypes.contains(type)) {
+                        boolean append = definition.getName().startsWith("create") && (!versionByType.containsKey(type) || versionByType.get(type) != null);
+                        versionByType.put(type, append ? version : null);
+                    }
+                }
+            }
+        }
+        return versionByType;
+    }
+
+    interface FieldVisitor {
+        void visit(Field field, GraphQLFieldDefinition definition, GraphQLFieldsContainer parentType);
+    }
+
+    private void visitFields(SelectionSet selectionSet, GraphQLFieldsContainer parentType, Map<String, FragmentDefinition> fragments,
+                             Set<String> visitedFragments, FieldVisitor visitor) {
+        if (selectionSet == null) {
+            return;
+        }
+        for (Selection selection : selectionSet.getSelections()) {
+            if (selection instanceof Field) {
+                Field field = (Field) selection;
+                GraphQLFieldDefinition definition = field.getName().startsWith("__") ? null : parentType.getFieldDefinition(field.getName());
+                if (definition == null) {
+                    continue;
+                }
+                visitor.visit(field, definition, parentType);
+                GraphQLType type = GraphQLTypeUtil.unwrapAll(definition.getType());
+                if (type instanceof GraphQLFieldsContainer) {
+                    visitFields(field.getSelectionSet(), (GraphQLFieldsContainer) type, fragments, visitedFragments, visitor);
+                }
+            } else if (selection instanceof InlineFragment) {
+                InlineFragment fragment = (InlineFragment) selection;
+                visitFields(fragment.getSelectionSet(), fragment.getTypeCondition() == null ? parentType : containerOf(fragment.getTypeCondition().getName(), parentType),
+                        fragments, visitedFragments, visitor);
+            } else if (selection instanceof FragmentSpread) {
+                FragmentDefinition fragment = fragments.get(((FragmentSpread) selection).getName());
+                if (fragment != null && visitedFragments.add(fragment.getName())) {
+                    visitFields(fragment.getSelectionSet(), containerOf(fragment.getTypeCondition().getName(), parentType), fragments, visitedFragments, visitor);
+                }
+            }
+        }
+    }
+
+    private GraphQLFieldsContainer containerOf(String name, GraphQLFieldsContainer fallback) {
+        GraphQLType type = schema.getType(name);
+        if (type != null && domainTypes.contains(name)) {
+            return (GraphQLFieldsContainer) type;
+        }
+        return type instanceof GraphQLFieldsContainer ? (GraphQLFieldsContainer) type : fallback;
+    }
+
+    /**
+     * @return whether results of queries reading the types at the version are stable
+     */
+    public boolean isSnapshot(Set<String> types, ZonedDateTime version) {
+        if (version == null || types.isEmpty()) {
+            return false;
+        }
+        for (String type : types) {
+            ZonedDateTime highWaterMark = highWaterMarkByType.get(type);
+            if (highWaterMark == null || !version.isBefore(highWaterMark)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the cached results of the statements, or null if not cached or not a snapshot
+     */
+    public List<List<Record>> get(Set<String> types, ZonedDateTime version, List<QueryAndParams> statements) {
+        if (!isSnapshot(types, version)) {
+            ineligible.increment();
+            return null;
+        }
+        Entry entry;
+        synchronized (entryByKey) {
+            entry = entryByKey.get(Key.of(statements));
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.results;
+    }
+
+    /**
+     * Caches the results of statements executed after {@link #generation()} returned the given generation, unless a
+     * write has invalidated results since, or the statements do not read a snapshot.
+     */
+    public void put(Set<String> types, ZonedDateTime version, List<QueryAndParams> statements, List<List<Record>> results, long generation) {
+        if (!isSnapshot(types, version)) {
+            return;
+        }
+        long resultWeight = 0;
+        for (List<Record> records : results) {
+            for (Record record : records) {
+                for (Value value : record.values()) {
+                    resultWeight += weightOf(value);
+                }
+            }
+        }
+        if (resultWeight > maxWeight) {
+            return;
+        }
+        Entry entry = new Entry(Set.copyOf(types), version, List.copyOf(results), resultWeight);
+        synchronized (entryByKey) {
+            if (this.generation.get() != generation) {
+                return;
+            }
+            Entry previous = entryByKey.put(Key.of(statements), entry);
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+            weight += entry.weight;
+            Iterator<Entry> eldest = entryByKey.values().iterator();
+            while ((entryByKey.size() > maxEntries || weight > maxWeight) && eldest.hasNext()) {
+                Entry evicted = eldest.next();
+                eldest.remove();
+                weight -= evicted.weight;
+                evictions.increment();
+            }
+        }
+    }
+
+    long weightOf(Value value) {
+        if (value.hasType(typeSystem.LIST()) || value.hasType(typeSystem.MAP()) || value.hasType(typeSystem.NODE())) {
+            long weight = 1;
+            for (Value nested : value.values()) {
+                weight += weightOf(nested);
+            }
+            return weight;
+        }
+        if (value.hasType(typeSystem.STRING())) {
+            return 1 + value.asString().length() / 16;
+        }
+        return 1;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long ineligible() {
+        return ineligible.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public long invalidations() {
+        return invalidations.sum();
+    }
+
+    public int size() {
+        synchronized (entryByKey) {
+            return entryByKey.size();
+        }
+    }
+
+    public long weight() {
+        synchronized (entryByKey) {
+            return weight;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SnapshotResultCache{" +
+                "size=" + size() +
+                ", weight=" + weight() +
+                ", hits=" + hits() +
+                ", misses=" + misses() +
+                ", ineligible=" + ineligible() +
+                ", evictions=" + evictions() +
+                ", invalidations=" + invalidations() +
+                '}';
+    }
+
+    static class Key {
+        final List<String> queries;
+        final List<Map<String, Object>> params;
+        final int hashCode;
+
+        Key(List<String> queries, List<Map<String, Object>> params) {
+            this.queries = queries;
+            this.params = params;
+            this.hashCode = Objects.hash(queries, params);
+        }
+
+        static Key of(List<QueryAndParams> statements) {
+            List<String> queries = new ArrayList<>(statements.size());
+            List<Map<String, Object>> params = new ArrayList<>(statements.size());
+            for (QueryAndParams statement : statements) {
+                queries.add(statement.query);
+                params.add(statement.params);
+            }
+            return new Key(queries, params);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return hashCode == key.hashCode && queries.equals(key.queries) && params.equals(key.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    static class Entry {
+        final Set<String> types;
+        final ZonedDateTime version;
+        final List<List<Record>> results;
+        final long weight;
+
+        Entry(Set<String> types, ZonedDateTime version, List<List<Record>> results, long weight) {
+            this.types = types;
+            this.version = version;
+            this.results = results;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import org.neo4j.graphql.Cypher;
+import org.neo4j.graphql.OptimizedQueryException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Batch version of the time-based-versioning create mutations. A list of resources of the same type is written with a
+ * single UNWIND driven statement per batch, all resources using the same $_version. Each row goes through the exact
+ * same statement as the corresponding create&lt;Type&gt; mutation, so the version-chain semantics are the same as
+ * when creating the resources one by one. The statements are built from the create statements of the translation cache,
+ * which must not canonicalize them.
+ */
+public class TBVBatchCreate {
+
+    static final String ROWS_PARAM = "_rows";
+    static final String ROW = "_row";
+
+    final TranslationCache translationCache;
+    final TBVCypherRewriter rewriter;
+    final int batchSize;
+
+    public TBVBatchCreate(TranslationCache translationCache, int batchSize) {
+        this(translationCache, TBVConfig.defaults(), batchSize);
+    }
+
+    /**
+     * @param config the options the schema of the translation cache was transformed with
+     */
+    public TBVBatchCreate(TranslationCache translationCache, TBVConfig config, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+        this.translationCache = translationCache;
+        this.rewriter = new TBVCypherRewriter(config);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the cypher statements that will create a new version of all the given resources. Resources are grouped
+     * by the set of fields they have, and each group is split into batches of at most batchSize resources. Execute the
+     * returned statements with the $_version parameter set.
+     *
+     * @param type      the name of the type of all resources
+     * @param resources the resources to create, each with the same arguments as the create&lt;Type&gt; mutation
+     * @return one statement per batch
+     */
+    public List<Cypher> createMany(String type, List<Map<String, Object>> resources) throws OptimizedQueryException {
+        Map<Set<String>, List<Map<String, Object>>> resourcesByFields = new LinkedHashMap<>();
+        Set<Object> ids = new HashSet<>();
+        for (Map<String, Object> resource : resources) {
+            Object id = resource.get("id");
+            if (id == null) {
+                throw new IllegalArgumentException("Resource of type " + type + " is missing id");
+            }
+            if (!ids.add(id)) {
+                throw new IllegalArgumentException("Resource of type " + type + " with id " + id + " occurs more than once in batch");
+            }
+            resourcesByFields.computeIfAbsent(new TreeSet<>(resource.keySet()), k -> new ArrayList<>()).add(resource);
+        }
+        List<Cypher> result = new ArrayList<>();
+        for (Map.Entry<Set<String>, List<Map<String, Object>>> entry : resourcesByFields.entrySet()) {
+            String document = createDocument(type, entry.getKey());
+            List<Map<String, Object>> group = entry.getValue();
+            for (int from = 0; from < group.size(); from += batchSize) {
+                result.addAll(batchOf(type, document, group.subList(from, Math.min(from + batchSize, group.size()))));
+            }
+        }
+        return result;
+    }
+
+    private List<Cypher> batchOf(String type, String document, List<Map<String, Object>> resources) throws OptimizedQueryException {
+        Map<String, Cypher> firstCypherByQuery = new LinkedHashMap<>();
+        Map<String, List<Map<String, Object>>> rowsByQuery = new LinkedHashMap<>();
+        for (Map<String, Object> resource : resources) {
+            List<Cypher> cyphers = translationCache.translate(document, resource);
+            if (cyphers.size() != 1) {
+                throw new IllegalStateException("Expected exactly one cypher statement for create mutation, got " + cyphers.size());
+            }
+            Cypher cypher = cyphers.get(0);
+            Map<String, Object> row = new LinkedHashMap<>(cypher.component2());
+            row.putIfAbsent("id", resource.get("id"));
+            firstCypherByQuery.putIfAbsent(cypher.component1(), cypher);
+            rowsByQuery.computeIfAbsent(cypher.component1(), k -> new ArrayList<>()).add(row);
+        }
+        List<Cypher> result = new ArrayList<>(rowsByQuery.size());
+        for (Map.Entry<String, List<Map<String, Object>>> entry : rowsByQuery.entrySet()) {
+            Cypher cypher = firstCypherByQuery.get(entry.getKey());
+            Set<String> rowParams = new HashSet<>(entry.getValue().get(0).keySet());
+            rowParams.remove("_version");
+            String statement = rewriter.rewriteCreateRows("create" + type, type, entry.getKey(), rowParams);
+            result.add(new Cypher(statement, Map.of(ROWS_PARAM, entry.getValue()), cypher.component3()));
+        }
+        return result;
+    }
+
+    static String createDocument(String type, Set<String> fields) {
+        StringBuilder sb = new StringBuilder("mutation { create").append(type).append("(");
+        String separator = "";
+        for (String field : fields) {
+            sb.append(separator).append(field).append(": $").append(field);
+            separator = ", ";
+        }
+        return sb.append(") { id } }").toString();
+    }
+}
@@ -0,0 +1,131 @@
+package no.ssb.neo4j.graphql.tbv;
+
+/**
+ * Options for the time-based-versioning transformations of {@link TBVSchemas}. Instances are immutable, use the
+ * with-methods to derive a modified copy from {@link #defaults()}.
+ */
+public class TBVConfig {
+
+    /**
+     * The to-value used for open version intervals when {@link #openIntervalSentinel()} is enabled.
+     */
+    public static final String OPEN_INTERVAL_END = "datetime('9999-12-31T23:59:59.999999999Z')";
+
+    private static final TBVConfig DEFAULTS = new TBVConfig(false, false, false, false, TBVMetrics.NOOP);
+
+    final boolean openIntervalSentinel;
+    final boolean inlineLinks;
+    final boolean flattenEmbedded;
+    final boolean changeFeed;
+    final TBVMetrics metrics;
+
+    TBVConfig(boolean openIntervalSentinel, boolean inlineLinks, boolean flattenEmbedded, boolean changeFeed, TBVMetrics metrics) {
+        this.openIntervalSentinel = openIntervalSentinel;
+        this.inlineLinks = inlineLinks;
+        this.flattenEmbedded = flattenEmbedded;
+        this.changeFeed = changeFeed;
+        this.metrics = metrics;
+    }
+
+    public static TBVConfig defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * When enabled, the latest version of a resource is stored with {@link #OPEN_INTERVAL_END} as to-value rather
+     * than leaving it unset. All version predicates then become plain range comparisons that can be served by range
+     * indexes, rather than coalesce expressions on a nullable to-value. Existing data must be migrated with
+     * {@link TBVVersionIntervalMigration#migrateToSentinel()} before enabling this option.
+     */
+    public boolean openIntervalSentinel() {
+        return openIntervalSentinel;
+    }
+
+    public TBVConfig withOpenIntervalSentinel(boolean openIntervalSentinel) {
+        return new TBVConfig(openIntervalSentinel, inlineLinks, flattenEmbedded, changeFeed, metrics);
+    }
+
+    /**
+     * When enabled, link fields are resolved by pattern comprehensions inline in the generated query, rather than by
+     * a cypher directive subquery that is evaluated once per parent row. The version resolution is the same: the
+     * version valid at the ver argument, or the current version when ver is absent or null.
+     */
+    public boolean inlineLinks() {
+        return inlineLinks;
+    }
+
+    public TBVConfig withInlineLinks(boolean inlineLinks) {
+        return new TBVConfig(openIntervalSentinel, inlineLinks, flattenEmbedded, changeFeed, metrics);
+    }
+
+    /**
+     * When enabled, values of embedded types, i.e. object types without the domain directive, are stored as a JSON
+     * property of the instance node rather than as separate nodes related to it. The GraphQL results are the same, but
+     * reading an embedded value takes no traversal and a version is a single node. Links within embedded values are
+     * stored as the id of the target resource. The create mutations take the embedded values as input objects. Reads
+     * and writes of embedded values use the apoc.convert procedures.
+     */
+    public boolean flattenEmbedded() {
+        return flattenEmbedded;
+    }
+
+    public TBVConfig withFlattenEmbedded(boolean flattenEmbedded) {
+        return new TBVConfig(openIntervalSentinel, inlineLinks, flattenEmbedded, changeFeed, metrics);
+    }
+
+    /**
+     * When enabled, domain types get the _cursor and _previous fields, and a changes query field per domain type that
+     * returns the versions that became valid within a time range. The changes query reads the from-value mirrored onto
+     * the instance nodes, so data created before the create mutation maintained the mirrors must be migrated with
+     * {@link TBVVersionIntervalMigration#mirrorIntervalsOntoInstances()} before enabling this option.
+     */
+    public boolean changeFeed() {
+        return changeFeed;
+    }
+
+    public TBVConfig withChangeFeed(boolean changeFeed) {
+        return new TBVConfig(openIntervalSentinel, inlineLinks, flattenEmbedded, changeFeed, metrics);
+    }
+
+    /**
+     * The metrics that receive timings of the translation and rewrite of each root field. Metrics do not affect the
+     * transformations, and are not part of the string form of the options.
+     */
+    public TBVMetrics metrics() {
+        return metrics;
+    }
+
+    public TBVConfig withMetrics(TBVMetrics metrics) {
+        return new TBVConfig(openIntervalSentinel, inlineLinks, flattenEmbedded, changeFeed, metrics == null ? TBVMetrics.NOOP : metrics);
+    }
+
+    /**
+     * @param from    expression of the start of the interval, inclusive
+     * @param to      expression of the end of the interval, exclusive
+     * @param version expression of the version to test
+     * @return a predicate that is true when version is within the interval
+     */
+    String versionPredicate(String from, String to, String version) {
+        if (openIntervalSentinel) {
+            return from + " <= " + version + " AND " + version + " < " + to;
+        }
+        return from + " <= " + version + " AND coalesce(" + version + " < " + to + ", true)";
+    }
+
+    /**
+     * @return expression of the to-value of a version that is followed by no other version
+     */
+    String openIntervalEnd() {
+        return openIntervalSentinel ? OPEN_INTERVAL_END : null;
+    }
+
+    @Override
+    public String toString() {
+        return "TBVConfig{" +
+                "openIntervalSentinel=" + openIntervalSentinel +
+                ", inlineLinks=" + inlineLinks +
+                ", flattenEmbedded=" + flattenEmbedded +
+                ", changeFeed=" + changeFeed +
+                '}';
+    }
+}
@@ -0,0 +1,360 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites cypher generated by the neo4j-graphql-java library into cypher compatible with time-based-versioning, using
+ * clause templates built once per type and field.
+ */
+class TBVCypherRewriter {
+
+    final TBVConfig config;
+    final Map<String, QueryTemplate> queryTemplateByField = new ConcurrentHashMap<>();
+    final Map<String, CreateTemplate> createTemplateByField = new ConcurrentHashMap<>();
+    final Map<String, CreateTemplate> createRowsTemplateByField = new ConcurrentHashMap<>();
+    final Map<String, Pattern> addTargetPatternByType = new ConcurrentHashMap<>();
+    final Map<String, Pattern> verPredicatePatternByName = new ConcurrentHashMap<>();
+    final Set<String> links = ConcurrentHashMap.newKeySet();
+
+    static final Pattern RELATION_PATTERN = Pattern.compile("\\(([A-Za-z_][A-Za-z0-9_]*)\\)-\\[:([A-Za-z_][A-Za-z0-9_]*)\\]->\\(([A-Za-z_][A-Za-z0-9_]*):([A-Za-z_][A-Za-z0-9_]*)\\)");
+
+    TBVCypherRewriter(TBVConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Replaces the match of the root node with a match through the resource and its version relationship, and
+     * restricts the version relationship to the one valid at $_version.
+     */
+    String rewriteQuery(String name, String type, String query) {
+        QueryTemplate template = queryTemplateByField.computeIfAbsent(name + ":" + type, k -> new QueryTemplate(config, name, type));
+        int matchIndex = query.indexOf(template.match);
+        if (matchIndex == -1) {
+            return query;
+        }
+        int restIndex = matchIndex + template.match.length();
+        StringBuilder sb = new StringBuilder(query.length() + template.versionedMatch.length() + template.predicate.length() + 8);
+        sb.append(query, 0, matchIndex).append(template.versionedMatch);
+        if (query.startsWith(" WHERE", restIndex)) {
+            sb.append(" WHERE");
+            restIndex += " WHERE".length();
+            if (restIndex < query.length() && query.charAt(restIndex) == ' ') {
+                sb.append(template.predicate).append(" AND ");
+                restIndex++;
+            }
+        } else if (restIndex == query.length() || query.charAt(restIndex) == ' ') {
+            sb.append(" WHERE").append(template.predicate);
+        } else {
+            return query;
+        }
+        sb.append(query, restIndex, query.length());
+        return sb.toString();
+    }
+
+    /**
+     * Replaces the match of the root node with a match through the CURRENT relationship of the resource, which points
+     * at the latest version, also when it is dated in the future.
+     *
+     * @see TBVVersionIntervalMigration#createCurrentPointers()
+     */
+    String rewriteCurrentQuery(String name, String type, String query) {
+        QueryTemplate template = queryTemplateByField.computeIfAbsent(name + ":" + type, k -> new QueryTemplate(config, name, type));
+        int matchIndex = query.indexOf(template.match);
+        if (matchIndex == -1) {
+            return query;
+        }
+        int restIndex = matchIndex + template.match.length();
+        if (restIndex < query.length() && query.charAt(restIndex) != ' ') {
+            return query;
+        }
+        return new StringBuilder(query.length() + template.currentMatch.length())
+                .append(query, 0, matchIndex)
+                .append(template.currentMatch)
+                .append(query, restIndex, query.length())
+                .toString();
+    }
+
+    /**
+     * Orders a rewritten root query by the id of the resource, and restricts it to the resources after a cursor.
+     *
+     * @param afterParam the parameter holding the decoded cursor, see {@link TBVSchemas#resourceIdOf}, or null for the
+     *                   first page
+     * @throws IllegalArgumentException if the query is already ordered
+     * @throws IllegalStateException    if the query does not match and return the versioned root node
+     */
+    String rewriteAfter(String name, String type, String query, String afterParam) {
+        String instance = "(" + name + ":" + type + ":INSTANCE)";
+        int matchEnd = query.indexOf(instance);
+        if (matchEnd == -1) {
+            throw new IllegalStateException("The root match " + instance + " of " + name + " was not found in: " + query);
+        }
+        matchEnd += instance.length();
+        String alias = " AS " + name;
+        int returnEnd = -1;
+        for (int i = query.lastIndexOf(alias); i >= matchEnd; i = query.lastIndexOf(alias, i - 1)) {
+            int end = i + alias.length();
+            if (end == query.length() || query.charAt(end) == ' ') {
+                returnEnd = end;
+                break;
+            }
+        }
+        if (returnEnd == -1) {
+            throw new IllegalStateException("The return" + alias + " was not found in: " + query);
+        }
+        if (query.indexOf(" ORDER BY ", returnEnd) != -1) {
+            throw new IllegalArgumentException("The after argument of " + name + " cannot be combined with orderBy");
+        }
+        StringBuilder sb = new StringBuilder(query.length() + 48).append(query, 0, matchEnd);
+        if (afterParam != null) {
+            if (query.startsWith(" WHERE ", matchEnd)) {
+                sb.append(" WHERE _r.id > $").append(afterParam).append(" AND ");
+                matchEnd += " WHERE ".length();
+            } else {
+                sb.append(" WHERE _r.id > $").append(afterParam);
+            }
+        }
+        return sb.append(query, matchEnd, returnEnd)
+                .append(" ORDER BY _r.id")
+                .append(query, returnEnd, query.length())
+                .toString();
+    }
+
+    /**
+     * Replaces the single list of a history field with one row per version of the resource in the window of
+     * ${name}From and ${name}To, ordered by the start of the version.
+     *
+     * @throws IllegalStateException if the query does not return the field
+     */
+    String rewriteHistory(String name, String type, String query) {
+        String projection = " RETURN " + name + " ";
+        int returnIndex = query.indexOf(projection);
+        if (returnIndex == -1) {
+            throw new IllegalStateException("The return of " + name + " was not found in: " + query);
+        }
+        String window = String.format("(%1$s IS NULL OR coalesce(_v.to > datetime(%1$s), true)) AND (%2$s IS NULL OR _v.from < datetime(%2$s))",
+                "$" + name + "From", "$" + name + "To");
+        return new StringBuilder(query.length() + 192)
+                .append("MATCH (_r:").append(type).append("_R:RESOURCE {id: $").append(name).append("Id})<-[_v:VERSION_OF]-(")
+                .append(name).append(':').append(type).append(":INSTANCE) WHERE ").append(window)
+                .append(" WITH ").append(name).append(", _v ORDER BY _v.from")
+                .append(query, returnIndex, query.length())
+                .toString();
+    }
+
+    /**
+     * Wraps the create statement in statements that merge the resource, replace any version with the same timestamp,
+     * and link the created instance into the version chain of the resource. When the created instance is the latest
+     * version, the CURRENT relationship of the resource is moved to point at it.
+     */
+    String rewriteCreate(String name, String type, String query) {
+        return rewriteCreate(name, type, query, Map.of());
+    }
+
+    /**
+     * Rewrites the create statement, storing the flattened embedded values of the given parameters as JSON properties
+     * of the created instance.
+     *
+     * @param embeddedParamByField the parameter holding the embedded value of each field
+     */
+    String rewriteCreate(String name, String type, String query, Map<String, String> embeddedParamByField) {
+        CreateTemplate template = createTemplateByField.computeIfAbsent(name + ":" + type, k -> new CreateTemplate(config, name, type, null));
+        int indexOfReturnClause = query.lastIndexOf(template.returnClause);
+        StringBuilder sb = new StringBuilder(template.prefix.length() + query.length() + template.versionLink.length() + 64 * embeddedParamByField.size() + 1);
+        sb.append(template.prefix);
+        sb.append(query, 0, indexOfReturnClause).append("\n");
+        sb.append(template.versionLink);
+        for (Map.Entry<String, String> entry : embeddedParamByField.entrySet()) {
+            sb.append("SET ").append(name).append('.').append(entry.getKey()).append(" = apoc.convert.toJson($").append(entry.getValue()).append(")\n");
+        }
+        sb.append(query, indexOfReturnClause, query.length());
+        return sb.toString();
+    }
+
+    /**
+     * Converts a statement of {@link #rewriteCreate} into one that runs once per row of $_rows, all rows using the same
+     * $_version.
+     *
+     * @param params the parameters of the statement that are read from the row
+     * @throws IllegalArgumentException if the statement was not produced by rewriteCreate of the field
+     */
+    String rewriteCreateRows(String name, String type, String query, Set<String> params) {
+        CreateTemplate template = createTemplateByField.computeIfAbsent(name + ":" + type, k -> new CreateTemplate(config, name, type, null));
+        CreateTemplate rows = createRowsTemplateByField.computeIfAbsent(name + ":" + type, k -> new CreateTemplate(config, name, type, TBVBatchCreate.ROW));
+        int linkIndex = query.indexOf(template.versionLink, template.prefix.length());
+        if (!query.startsWith(template.prefix) || linkIndex == -1) {
+            throw new IllegalArgumentException("Not a create statement of " + name + ": " + query);
+        }
+        StringBuilder sb = new StringBuilder(query.length() + 128)
+                .append("UNWIND $").append(TBVBatchCreate.ROWS_PARAM).append(" AS ").append(TBVBatchCreate.ROW).append('\n')
+                .append(rows.prefix);
+        appendRowParams(sb, query, template.prefix.length(), linkIndex, params);
+        sb.append(rows.versionLink);
+        appendRowParams(sb, query, linkIndex + template.versionLink.length(), query.length(), params);
+        return sb.toString();
+    }
+
+    private static void appendRowParams(StringBuilder sb, String query, int start, int end, Set<String> params) {
+        int last = start;
+        for (int i = query.indexOf('$', start); i != -1 && i < end; i = query.indexOf('$', i + 1)) {
+            int nameEnd = i + 1;
+            while (nameEnd < end && (Character.isLetterOrDigit(query.charAt(nameEnd)) || query.charAt(nameEnd) == '_')) {
+                nameEnd++;
+            }
+            String param = query.substring(i + 1, nameEnd);
+            if (params.contains(param)) {
+                sb.append(query, last, i).append(TBVBatchCreate.ROW).append('.').append(param);
+                last = nameEnd;
+            }
+        }
+        sb.append(query, last, end);
+    }
+
+    /**
+     * Redirects the target match of an add-relation statement to the resource of the target type, matching on the
+     * list of target ids.
+     *
+     * @return the rewritten query, or null if the parameters does not contain a list of target ids.
+     */
+    String rewriteAdd(String targetType, String query, Map<String, ?> params) {
+        NavigableSet<String> keys = new TreeSet<>(params.keySet());
+        NavigableSet<String> toKeys = keys.subSet("to", true, "to~", false);
+        if (toKeys.isEmpty()) {
+            return null;
+        }
+        Pattern pattern = addTargetPatternByType.computeIfAbsent(targetType, t -> Pattern.compile(String.format("MATCH \\([^ :)]+:(%s) \\{ [^ :)}]+: \\$[^ })]+ \\}\\)", t)));
+        Matcher m = pattern.matcher(query);
+        if (!m.find()) {
+            return query;
+        }
+        return new StringBuilder(query.length() + 32)
+                .append(query, 0, m.start(1))
+                .append(targetType).append("_R:RESOURCE")
+                .append(") WHERE to.id IN $").append(toKeys.first())
+                .append(query, m.end(), query.length())
+                .toString();
+    }
+
+    /**
+     * Registers a link field, so that relationship patterns of the relation to the target type are rewritten by
+     * {@link #rewriteLinks(String)}.
+     */
+    void addLink(String relation, String targetType) {
+        links.add(relation + ":" + targetType);
+    }
+
+    /**
+     * Replaces the relationship pattern of every link field in the pattern comprehensions of the query with a pattern
+     * through the version of the target valid at the ver argument, or its CURRENT version without one.
+     */
+    String rewriteLinks(String query) {
+        Matcher m = RELATION_PATTERN.matcher(query);
+        StringBuilder sb = null;
+        int last = 0;
+        while (m.find()) {
+            if (m.start() < last || !links.contains(m.group(2) + ":" + m.group(4))) {
+                continue;
+            }
+            String parent = m.group(1);
+            String relation = m.group(2);
+            String node = m.group(3);
+            String type = m.group(4);
+            if (sb == null) {
+                sb = new StringBuilder(query.length() + 256);
+            }
+            sb.append(query, last, m.start());
+            last = m.end();
+            String version = null;
+            String otherPredicates = null;
+            if (query.startsWith(" WHERE ", m.end())) {
+                int whereStart = m.end() + " WHERE ".length();
+                int whereEnd = query.indexOf(" | ", whereStart);
+                if (whereEnd != -1) {
+                    String where = query.substring(whereStart, whereEnd);
+                    Matcher vm = verPredicatePatternByName.computeIfAbsent(node, n -> Pattern.compile("(?:^| AND )" + Pattern.quote(n) + "\\.ver = ([^ ]+)")).matcher(where);
+                    if (vm.find()) {
+                        version = vm.group(1);
+                        String remaining = vm.start() == 0 ?
+                                where.substring(vm.end()).replaceFirst("^ AND ", "") :
+                                where.substring(0, vm.start()) + where.substring(vm.end());
+                        otherPredicates = remaining.isEmpty() ? null : remaining;
+                        last = whereEnd;
+                    }
+                }
+            }
+            if (version == null) {
+                sb.append('(').append(parent).append(")-[:").append(relation).append("]->(:").append(type).append("_R:RESOURCE)-[:CURRENT]->(")
+                        .append(node).append(':').append(type).append(":INSTANCE)");
+                continue;
+            }
+            String resource = node + "_r";
+            String versionOf = node + "_v";
+            sb.append('(').append(parent).append(")-[:").append(relation).append("]->(").append(resource).append(':').append(type).append("_R:RESOURCE)<-[")
+                    .append(versionOf).append(":VERSION_OF]-(").append(node).append(':').append(type).append(":INSTANCE)")
+                    .append(" WHERE CASE WHEN ").append(version).append(" IS NULL THEN exists((").append(resource).append(")-[:CURRENT]->(").append(node).append(")) ELSE ")
+                    .append(config.versionPredicate(versionOf + ".from", versionOf + ".to", version)).append(" END");
+            if (otherPredicates != null) {
+                sb.append(" AND ").append(otherPredicates);
+            }
+        }
+        if (sb == null) {
+            return query;
+        }
+        return sb.append(query, last, query.length()).toString();
+    }
+
+    static class QueryTemplate {
+        final String match;
+        final String versionedMatch;
+        final String currentMatch;
+        final String predicate;
+
+        QueryTemplate(TBVConfig config, String name, String type) {
+            this.match = "MATCH (" + name + ":" + type + ")";
+            this.versionedMatch = "MATCH (_r:" + type + "_R:RESOURCE)<-[_v:VERSION_OF]-(" + name + ":" + type + ":INSTANCE)";
+            this.currentMatch = "MATCH (_r:" + type + "_R:RESOURCE)-[:CURRENT]->(" + name + ":" + type + ":INSTANCE)";
+            if (config.openIntervalSentinel()) {
+                // the range on the mirrored instance properties can be served by the node indexes
+                this.predicate = " (" + config.versionPredicate(name + "._from", name + "._to", "$_version") + " AND " + config.versionPredicate("_v.from", "_v.to", "$_version") + ")";
+            } else {
+                this.predicate = " (" + config.versionPredicate("_v.from", "_v.to", "$_version") + ")";
+            }
+        }
+    }
+
+    static class CreateTemplate {
+        final String returnClause;
+        final String prefix;
+        final String versionLink;
+
+        /**
+         * @param row the variable of the row when the statement runs once per row of $_rows, or null
+         */
+        CreateTemplate(TBVConfig config, String name, String type, String row) {
+            String id = row == null ? "$id" : row + ".id";
+            String with = row == null ? "WITH r" : "WITH " + row + ", r";
+            String nextVersionTo = config.openIntervalSentinel() ?
+                    "coalesce(prevVersion.to, nextVersionFrom, " + config.openIntervalEnd() + ")" :
+                    "coalesce(prevVersion.to, nextVersionFrom)";
+            this.returnClause = "WITH " + name + " RETURN";
+            this.prefix = "MERGE (r:" + type + "_R:RESOURCE {id: " + id + "}) " + with + "\n" +
+                    (config.flattenEmbedded() ?
+                            // embedded values are properties of the instance
+                            "OPTIONAL MATCH (r)<-[v:VERSION_OF {from: $_version}]-(m) DETACH DELETE m " + with + "\n" :
+                            "OPTIONAL MATCH (r)<-[v:VERSION_OF {from: $_version}]-(m)-[*]->(e:EMBEDDED) DETACH DELETE m, e " + with + "\n") +
+                    "OPTIONAL MATCH (r)<-[v:VERSION_OF]-(i) WHERE " + config.versionPredicate("v.from", "v.to", "$_version") + " " + with + ", v AS prevVersion, i AS prevInstance\n" +
+                    "OPTIONAL MATCH (r)<-[v:VERSION_OF]-() WHERE v.from > $_version " + with + ", prevVersion, prevInstance, min(v.from) AS nextVersionFrom\n" +
+                    "OPTIONAL MATCH (r)-[c:CURRENT]->() WHERE nextVersionFrom IS NULL DELETE c " + with + ", prevVersion, prevInstance, nextVersionFrom\n";
+            // a created variable cannot be declared again, so the instance of the library is labelled instead
+            this.versionLink = "CREATE (r)<-[v:VERSION_OF {from: $_version, to: " + nextVersionTo + "}]-(" + name + ")\n" +
+                    "SET " + name + ":INSTANCE, " + name + "._from = v.from, " + name + "._to = v.to\n" +
+                    "SET prevVersion.to = $_version, prevInstance._to = $_version\n" +
+                    "FOREACH (latest IN CASE WHEN nextVersionFrom IS NULL THEN [1] ELSE [] END | CREATE (r)-[:CURRENT]->(" + name + "))\n";
+        }
+    }
+}
@@ -0,0 +1,573 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import graphql.language.Document;
+import graphql.language.Field;
+import graphql.language.OperationDefinition;
+import graphql.parser.InvalidSyntaxException;
+import graphql.parser.Parser;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLObjectType;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.GraphQLTypeUtil;
+import graphql.schema.idl.SchemaParser;
+import graphql.schema.idl.TypeDefinitionRegistry;
+import no.ssb.config.DynamicConfiguration;
+import no.ssb.config.StoreBasedDynamicConfiguration;
+import org.neo4j.driver.AccessMode;
+import org.neo4j.driver.AuthTokens;
+import org.neo4j.driver.Config;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.GraphDatabase;
+import org.neo4j.driver.Logging;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.SessionConfig;
+import org.neo4j.driver.Transaction;
+import org.neo4j.driver.exceptions.ClientException;
+import org.neo4j.driver.exceptions.Neo4jException;
+import org.neo4j.graphql.Cypher;
+import org.neo4j.graphql.OptimizedQueryException;
+import org.neo4j.graphql.Translator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the time-based-versioning schema over HTTP as standard GraphQL POST requests. The version to read or write is
+ * taken from the _version variable, or else from the {@value #VERSION_HEADER} header, and defaults to the current
+ * version for queries and the time of the request for mutations. See application-defaults.properties for the options.
+ */
+public class TBVGraphQLService implements AutoCloseable {
+
+    private static Logger log = LoggerFactory.getLogger(TBVGraphQLService.class);
+
+    static final String VERSION_HEADER = "X-TBV-Version";
+    static final String BOOKMARK_HEADER = "X-TBV-Bookmark";
+
+    final DynamicConfiguration configuration;
+    final Driver driver;
+    final TBVConfig config;
+    final TypeDefinitionRegistry typeDefinitionRegistry;
+    final GraphQLSchema graphQLSchema;
+    final TranslationCache translationCache;
+    final PersistedQueryRegistry persistedQueries;
+    final SnapshotResultCache snapshotCache;
+    final boolean writeSignal;
+    final boolean persistedQueriesOnly;
+    final ExplainCostCalibrator calibrator;
+    final AdmissionController admission;
+    final AsyncCypherExecutor executor;
+    final ThreadPoolExecutor workers;
+    final ScheduledExecutorService scheduler;
+    final HttpServer server;
+    final ObjectMapper mapper = new ObjectMapper();
+    final long maxQueueWaitNanos;
+    final int maxRequestBytes;
+
+    public static void main(String[] args) throws IOException {
+        DynamicConfiguration configuration = new StoreBasedDynamicConfiguration.Builder()
+                .propertiesResource("application-defaults.properties")
+                .propertiesResource("application.properties")
+                .environment("TBV_")
+                .systemProperties()
+                .build();
+        String sdlFile = configuration.evaluateToString("graphql.sdl-file");
+        if (sdlFile == null || sdlFile.isBlank()) {
+            throw new IllegalArgumentException("Configuration graphql.sdl-file is required");
+        }
+        TBVGraphQLService service = new TBVGraphQLService(configuration, Files.readString(Path.of(sdlFile)));
+        Runtime.getRuntime().addShutdownHook(new Thread(service::close, "tbv-graphql-shutdown"));
+        service.start();
+    }
+
+    public TBVGraphQLService(DynamicConfiguration configuration, String sdl) throws IOException {
+        this.configuration = configuration;
+        this.config = TBVConfig.defaults().withFlattenEmbedded(configuration.evaluateToBoolean("graphql.flatten-embedded"))
+                .withChangeFeed(configuration.evaluateToBoolean("graphql.change-feed"));
+        String schemaArtifact = configuration.evaluateToString("graphql.schema-artifact");
+        this.typeDefinitionRegistry = schemaArtifact == null || schemaArtifact.isBlank() ?
+                TBVSchemas.transformRegistry(new SchemaParser().parse(sdl), config) :
+                TBVSchemaArtifact.loadOrTransform(sdl, config, Path.of(schemaArtifact));
+        this.graphQLSchema = TBVSchemas.schemaOf(typeDefinitionRegistry, config);
+        Translator translator = new Translator(graphQLSchema);
+        boolean canonicalize = configuration.evaluateToBoolean("graphql.canonicalize-cypher");
+        this.translationCache = new TranslationCache(translator, configuration.evaluateToInt("graphql.translation-cache-size"),
+                TBVMetrics.NOOP, canonicalize);
+        String persistedQueriesDirectory = configuration.evaluateToString("graphql.persisted-queries.dir");
+        if (persistedQueriesDirectory == null || persistedQueriesDirectory.isBlank()) {
+            this.persistedQueries = null;
+        } else {
+            this.persistedQueries = new PersistedQueryRegistry(graphQLSchema, translator, configuration.evaluateToInt("graphql.persisted-queries.cache-size"),
+                    canonicalize);
+            persistedQueries.loadDirectory(Path.of(persistedQueriesDirectory));
+        }
+        this.persistedQueriesOnly = configuration.evaluateToBoolean("graphql.persisted-queries.only");
+        this.driver = driverOf(configuration);
+        long admissionBudget = Long.parseLong(configuration.evaluateToString("graphql.admission.budget"));
+        if (admissionBudget < 1) {
+            this.calibrator = null;
+            this.admission = null;
+        } else {
+            int calibratedShapes = configuration.evaluateToInt("graphql.admission.calibrated-shapes");
+            this.calibrator = calibratedShapes < 1 ? null : new ExplainCostCalibrator(driver, calibratedShapes);
+            this.admission = new AdmissionController(
+                    new QueryCostAnalyzer(graphQLSchema, configuration.evaluateToInt("graphql.admission.default-list-size"),
+                            configuration.evaluateToInt("graphql.admission.link-weight")),
+                    calibrator, admissionBudget, AdmissionController.Mode.valueOf(configuration.evaluateToString("graphql.admission.mode")),
+                    configuration.evaluateToInt("graphql.admission.concurrent-over-budget"),
+                    configuration.evaluateToInt("graphql.admission.max-wait-ms"));
+        }
+        int snapshotCacheEntries = configuration.evaluateToInt("graphql.snapshot-cache.max-entries");
+        this.snapshotCache = snapshotCacheEntries < 1 ? null : new SnapshotResultCache(graphQLSchema, driver.defaultTypeSystem(),
+                snapshotCacheEntries, Long.parseLong(configuration.evaluateToString("graphql.snapshot-cache.max-weight")));
+        this.writeSignal = snapshotCache != null || configuration.evaluateToBoolean("graphql.write-signal");
+        if (snapshotCache != null) {
+            log.info("Snapshot cache enabled, all writers of the database must emit the write signal, see graphql.write-signal");
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tbv-graphql-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor = new AsyncCypherExecutor(driver, configuration.evaluateToInt("neo4j.pool.max-size"),
+                configuration.evaluateToInt("neo4j.max-queued-statements"), TBVMetrics.NOOP, configuration.evaluateToInt("neo4j.continuation-threads"));
+        int workerCount = configuration.evaluateToInt("http.workers");
+        AtomicInteger workerNumber = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, configuration.evaluateToInt("http.queue"))),
+                runnable -> new Thread(runnable, "tbv-graphql-worker-" + workerNumber.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.maxQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(configuration.evaluateToInt("http.max-queue-wait-ms"));
+        this.maxRequestBytes = configuration.evaluateToInt("http.max-request-bytes");
+        this.server = HttpServer.create(new InetSocketAddress(configuration.evaluateToString("http.host"), configuration.evaluateToInt("http.port")), 0);
+        server.createContext("/graphql", this::dispatch);
+        server.createContext("/health", exchange -> respond(exchange, 200, "{\"status\":\"UP\"}"));
+    }
+
+    static Driver driverOf(DynamicConfiguration configuration) {
+        String password = configuration.evaluateToString("neo4j.password");
+        if (password == null || password.isBlank()) {
+            throw new IllegalArgumentException("Configuration neo4j.password is required");
+        }
+        Config config = Config.builder()
+                .withMaxConnectionPoolSize(configuration.evaluateToInt("neo4j.pool.max-size"))
+                .withConnectionAcquisitionTimeout(configuration.evaluateToInt("neo4j.pool.acquisition-timeout-ms"), TimeUnit.MILLISECONDS)
+                .withMaxConnectionLifetime(configuration.evaluateToInt("neo4j.connection.max-lifetime-ms"), TimeUnit.MILLISECONDS)
+                .withMaxTransactionRetryTime(configuration.evaluateToInt("neo4j.max-transaction-retry-ms"), TimeUnit.MILLISECONDS)
+                .withLogging(Logging.slf4j())
+                .build();
+        return GraphDatabase.driver(configuration.evaluateToString("neo4j.uri"),
+                AuthTokens.basic(configuration.evaluateToString("neo4j.username"), password),
+                config);
+    }
+
+    public TBVGraphQLService start() {
+        new TBVIndexBootstrapper(typeDefinitionRegistry, config).apply(driver);
+        long withoutCurrentPointer = TBVVersionIntervalMigration.resourcesWithoutCurrentPointer(driver);
+        if (withoutCurrentPointer > 0) {
+            throw new IllegalStateException(withoutCurrentPointer + " resources have no CURRENT relationship and would be missing from "
+                    + "reads without a version, migrate them with TBVVersionIntervalMigration.createCurrentPointers");
+        }
+        if (persistedQueries != null && configuration.evaluateToBoolean("graphql.persisted-queries.warmup")) {
+            // after the indexes, which the plans depend on
+            persistedQueries.warmUp(driver);
+        }
+        if (snapshotCache != null) {
+            snapshotCache.refresh(driver);
+            int refreshMillis = configuration.evaluateToInt("graphql.snapshot-cache.refresh-ms");
+            scheduler.scheduleWithFixedDelay(this::refreshSnapshotCache, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+        }
+        server.start();
+        log.info("Serving GraphQL on {}", server.getAddress());
+        return this;
+    }
+
+    void refreshSnapshotCache() {
+        try {
+            snapshotCache.refresh(driver);
+        } catch (RuntimeException e) {
+            log.warn("Failed to refresh the snapshot cache", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(configuration.evaluateToInt("http.shutdown-delay-seconds"));
+        scheduler.shutdownNow();
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(configuration.evaluateToInt("http.shutdown-delay-seconds"), TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            workers.shutdownNow();
+        }
+        driver.close();
+        executor.close();
+        log.info("Stopped, {}, {}", translationCache, snapshotCache);
+    }
+
+    void dispatch(HttpExchange exchange) {
+        long queuedAt = System.nanoTime();
+        try {
+            workers.execute(() -> {
+                try {
+                    if (System.nanoTime() - queuedAt > maxQueueWaitNanos) {
+                        respondError(exchange, 503, "Service overloaded, request waited too long for a worker");
+                        return;
+                    }
+                    handle(exchange);
+                } catch (IOException | UncheckedIOException e) {
+                    log.debug("Failed to write response", e);
+                } catch (RuntimeException e) {
+                    log.error("Unexpected error", e);
+                    tryRespondError(exchange, 500, "Internal server error");
+                } finally {
+                    exchange.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            tryRespondError(exchange, 503, "Service overloaded, too many requests waiting");
+            exchange.close();
+        }
+    }
+
+    void handle(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            respondError(exchange, 405, "Only POST is supported");
+            return;
+        }
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = in.readNBytes(maxRequestBytes + 1);
+        }
+        if (body.length > maxRequestBytes) {
+            respondError(exchange, 413, "Request larger than " + maxRequestBytes + " bytes");
+            return;
+        }
+
+        String query;
+        Map<String, Object> variables;
+        PersistedQueryRegistry.PersistedQuery persisted = null;
+        Document document;
+        boolean mutation;
+        ZonedDateTime version;
+        try {
+            Map<?, ?> request = mapper.readValue(body, Map.class);
+            String hash = persistedQueryHashOf(request);
+            if (request.get("query") instanceof String) {
+                query = (String) request.get("query");
+                if (persistedQueries != null) {
+                    persisted = persistedQueries.get(PersistedQueryRegistry.hashOf(query)).orElse(null);
+                }
+                if (persisted == null && persistedQueriesOnly) {
+                    respondError(exchange, 403, "Only persisted queries are accepted");
+                    return;
+                }
+            } else if (hash != null) {
+                persisted = persistedQueries == null ? null : persistedQueries.get(hash).orElse(null);
+                if (persisted == null) {
+                    respondError(exchange, 400, "PersistedQueryNotFound");
+                    return;
+                }
+                query = persisted.text;
+            } else {
+                respondError(exchange, 400, "Request has no query");
+                return;
+            }
+            variables = new LinkedHashMap<>();
+            if (request.get("variables") instanceof Map) {
+                ((Map<?, ?>) request.get("variables")).forEach((k, v) -> variables.put(String.valueOf(k), v));
+            }
+            // persisted queries are parsed and validated when registered
+            document = persisted != null ? persisted.document : new Parser().parseDocument(query);
+            mutation = isMutation(document);
+            version = versionOf(variables.get("_version"), exchange.getRequestHeaders().getFirst(VERSION_HEADER), mutation);
+        } catch (IOException | InvalidSyntaxException | IllegalArgumentException e) {
+            respondError(exchange, 400, e.getMessage());
+            return;
+        }
+        if (version == null) {
+            variables.remove("_version");
+        } else {
+            variables.put("_version", version);
+        }
+
+        AdmissionController.Permit permit;
+        try {
+            permit = admission == null ? AdmissionController.WITHIN_BUDGET : admission.admit(query, document, variables);
+        } catch (QueryRejectedException e) {
+            respondError(exchange, admission.mode == AdmissionController.Mode.REJECT ? 400 : 503, e.getMessage());
+            return;
+        }
+        try (permit) {
+            execute(exchange, query, variables, persisted, document, mutation, version);
+        }
+    }
+
+    void execute(HttpExchange exchange, String query, Map<String, Object> variables, PersistedQueryRegistry.PersistedQuery persisted,
+                 Document document, boolean mutation, ZonedDateTime version) throws IOException {
+        List<QueryAndParams> statements;
+        try {
+            statements = statementsOf(query, variables, persisted, version);
+        } catch (OptimizedQueryException | RuntimeException e) {
+            respondError(exchange, 400, e.getMessage());
+            return;
+        }
+        if (calibrator != null) {
+            calibrate(query, statements);
+        }
+        CausalChain chain = CausalChain.decode(exchange.getRequestHeaders().getFirst(BOOKMARK_HEADER));
+        List<Field> rootFields = persisted != null ? persisted.rootFields : GraphQLJsonWriter.rootFieldsOf(document);
+        if (!mutation && isStreamed(rootFields)) {
+            stream(exchange, statements.get(0), rootFields.get(0), chain);
+            return;
+        }
+        List<List<Record>> recordsByStatement;
+        try {
+            recordsByStatement = mutation ?
+                    executeMutation(document, version, statements, chain) :
+                    executeQuery(document, version, statements, chain);
+        } catch (CompletionException e) {
+            respondExecutionError(exchange, e);
+            return;
+        }
+        writeResponse(exchange, mutation ? graphQLSchema.getMutationType() : graphQLSchema.getQueryType(), rootFields, recordsByStatement, chain);
+    }
+
+    List<QueryAndParams> statementsOf(String query, Map<String, Object> variables, PersistedQueryRegistry.PersistedQuery persisted,
+                                      ZonedDateTime version) throws OptimizedQueryException {
+        List<Cypher> cyphers = persisted != null ? persisted.translate(variables) : translationCache.translate(query, variables);
+        List<QueryAndParams> statements = new ArrayList<>(cyphers.size());
+        for (Cypher cypher : cyphers) {
+            LinkedHashMap<String, Object> params = new LinkedHashMap<>(cypher.component2());
+            if (version != null) {
+                params.putIfAbsent("_version", version);
+            }
+            statements.add(new QueryAndParams(cypher.component1(), params));
+        }
+        return statements;
+    }
+
+    /**
+     * Executes the statements of a query in parallel, unless their records are in the snapshot cache.
+     */
+    List<List<Record>> executeQuery(Document document, ZonedDateTime version, List<QueryAndParams> statements, CausalChain chain) {
+        Set<String> snapshotTypes = snapshotCache == null || !snapshotCache.isCacheable(document) ? null : snapshotCache.typesOf(document);
+        List<List<Record>> recordsByStatement = snapshotTypes == null ? null : snapshotCache.get(snapshotTypes, version, statements);
+        if (recordsByStatement != null) {
+            return recordsByStatement;
+        }
+        long snapshotGeneration = snapshotCache == null ? 0 : snapshotCache.generation();
+        recordsByStatement = executor.executeReads(statements, chain).toCompletableFuture().join();
+        if (snapshotTypes != null) {
+            snapshotCache.put(snapshotTypes, version, statements, recordsByStatement, snapshotGeneration);
+        }
+        return recordsByStatement;
+    }
+
+    /**
+     * Executes the statements of a mutation in order in one transaction, together with the write signal.
+     */
+    List<List<Record>> executeMutation(Document document, ZonedDateTime version, List<QueryAndParams> statements, CausalChain chain) {
+        Map<String, ZonedDateTime> versionsWritten = writeSignal ? SnapshotResultCache.versionsWrittenBy(graphQLSchema, document, version) : Map.of();
+        List<QueryAndParams> executed = statements;
+        if (!versionsWritten.isEmpty()) {
+            executed = new ArrayList<>(statements);
+            executed.addAll(TBVWriteSignal.statementsOf(versionsWritten));
+        }
+        try {
+            return executor.executeInTransaction(executed, AccessMode.WRITE, chain).toCompletableFuture().join().subList(0, statements.size());
+        } finally {
+            // a failed commit may still have been committed
+            if (snapshotCache != null) {
+                versionsWritten.forEach(snapshotCache::onWrite);
+            }
+        }
+    }
+
+    void respondExecutionError(HttpExchange exchange, CompletionException e) throws IOException {
+        Throwable cause = e.getCause() == null ? e : e.getCause();
+        if (cause instanceof RejectedExecutionException) {
+            respondError(exchange, 503, cause.getMessage());
+        } else if (cause instanceof ClientException) {
+            respondError(exchange, 400, cause.getMessage());
+        } else {
+            log.error("Execution failed", cause);
+            respondError(exchange, 500, "Execution failed");
+        }
+    }
+
+    void writeResponse(HttpExchange exchange, GraphQLObjectType rootType, List<Field> rootFields, List<List<Record>> recordsByStatement,
+                       CausalChain chain) throws IOException {
+        startResponse(exchange, chain);
+        try (OutputStream out = exchange.getResponseBody()) {
+            GraphQLJsonWriter jsonWriter = new GraphQLJsonWriter(out, driver.defaultTypeSystem());
+            jsonWriter.beginResponse();
+            for (int i = 0; i < rootFields.size(); i++) {
+                Field field = rootFields.get(i);
+                jsonWriter.writeField(field.getResultKey(), rootType.getFieldDefinition(field.getName()).getType(), recordsByStatement.get(i).iterator());
+            }
+            jsonWriter.endResponse();
+        }
+    }
+
+    /**
+     * Sends the headers of a successful response, which is sent chunked as its length is not known in advance.
+     */
+    void startResponse(HttpExchange exchange, CausalChain chain) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        String bookmark = chain.encode();
+        if (!bookmark.isEmpty()) {
+            exchange.getResponseHeaders().set(BOOKMARK_HEADER, bookmark);
+        }
+        exchange.sendResponseHeaders(200, 0);
+    }
+
+    /**
+     * @return whether the document is a single history field, which is streamed rather than collected
+     */
+    boolean isStreamed(List<Field> rootFields) {
+        if (rootFields.size() != 1) {
+            return false;
+        }
+        GraphQLFieldDefinition fieldDefinition = graphQLSchema.getQueryType().getFieldDefinition(rootFields.get(0).getName());
+        return fieldDefinition != null
+                && rootFields.get(0).getName().equals(TBVSchemas.historyFieldOf(GraphQLTypeUtil.unwrapAll(fieldDefinition.getType()).getName()));
+    }
+
+    /**
+     * Writes the records of a single query field to the response as they are read. A failure after the response has
+     * started ends it early.
+     */
+    void stream(HttpExchange exchange, QueryAndParams statement, Field field, CausalChain chain) throws IOException {
+        SessionConfig sessionConfig = SessionConfig.builder().withDefaultAccessMode(AccessMode.READ).withBookmarks(chain.bookmarks()).build();
+        try (Session session = driver.session(sessionConfig); Transaction tx = session.beginTransaction()) {
+            Result result;
+            try {
+                result = tx.run(statement.query, statement.params);
+                // pulls the first batch, failing here if the statement fails
+                result.hasNext();
+            } catch (ClientException e) {
+                respondError(exchange, 400, e.getMessage());
+                return;
+            } catch (Neo4jException e) {
+                log.error("Execution failed", e);
+                respondError(exchange, 500, "Execution failed");
+                return;
+            }
+            startResponse(exchange, chain);
+            try (OutputStream out = exchange.getResponseBody()) {
+                GraphQLJsonWriter jsonWriter = new GraphQLJsonWriter(out, driver.defaultTypeSystem());
+                jsonWriter.beginResponse();
+                jsonWriter.writeField(field.getResultKey(), graphQLSchema.getQueryType().getFieldDefinition(field.getName()).getType(), result);
+                jsonWriter.endResponse();
+            }
+            tx.commit();
+        }
+    }
+
+    /**
+     * Explains the statements of the document, if its shape is not calibrated.
+     */
+    void calibrate(String query, List<QueryAndParams> statements) {
+        try {
+            calibrator.calibrate(query, statements);
+        } catch (RuntimeException e) {
+            log.warn("Failed to calibrate the cost of a document", e);
+        }
+    }
+
+    /**
+     * @return the hash of an automatic persisted query request, {"extensions":{"persistedQuery":{"sha256Hash":...}}},
+     * or null
+     */
+    static String persistedQueryHashOf(Map<?, ?> request) {
+        if (request.get("extensions") instanceof Map) {
+            Object persistedQuery = ((Map<?, ?>) request.get("extensions")).get("persistedQuery");
+            if (persistedQuery instanceof Map && ((Map<?, ?>) persistedQuery).get("sha256Hash") instanceof String) {
+                return (String) ((Map<?, ?>) persistedQuery).get("sha256Hash");
+            }
+        }
+        return null;
+    }
+
+    static boolean isMutation(Document document) {
+        List<OperationDefinition> operations = document.getDefinitionsOfType(OperationDefinition.class);
+        return !operations.isEmpty() && operations.get(0).getOperation() == OperationDefinition.Operation.MUTATION;
+    }
+
+    /**
+     * @param variable the _version variable of the request, or null
+     * @param header   the version header of the request, or null
+     * @param mutation whether the request is a mutation
+     * @return the version of the request, or null to read the current version
+     * @throws IllegalArgumentException if the version is not an ISO-8601 date-time
+     */
+    static ZonedDateTime versionOf(Object variable, String header, boolean mutation) {
+        Object value = variable != null ? variable : header;
+        if (value == null || "now".equals(value)) {
+            return mutation ? ZonedDateTime.now(ZoneOffset.UTC) : null;
+        }
+        try {
+            return ZonedDateTime.parse(String.valueOf(value));
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Version is not an ISO-8601 date-time with offset: " + value, e);
+        }
+    }
+
+    void respondError(HttpExchange exchange, int status, String message) throws IOException {
+        respond(exchange, status, mapper.writeValueAsString(Map.of("errors", List.of(Map.of("message", String.valueOf(message))))));
+    }
+
+    void tryRespondError(HttpExchange exchange, int status, String message) {
+        try {
+            respondError(exchange, status, message);
+        } catch (IOException | RuntimeException e) {
+            // the response may already have been started, or the client is gone
+            log.debug("Failed to write error response", e);
+        }
+    }
+
+    static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        if (status == 503) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.language.ObjectTypeDefinition;
+import graphql.language.TypeDefinition;
+import graphql.schema.idl.TypeDefinitionRegistry;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Creates the indexes and constraints that the time-based-versioning graph model relies on. For every domain type:
+ * <ul>
+ * <li>a uniqueness constraint on the id of the resource node, used by every create mutation MERGE and resource
+ * lookup</li>
+ * <li>an index on the from property mirrored onto the instance node, as relationship property indexes are not
+ * available</li>
+ * <li>an index on the mirrored to property, only with {@link TBVConfig#openIntervalSentinel()}, where the version
+ * predicate of queries ranges over both mirrored properties</li>
+ * </ul>
+ * and a uniqueness constraint on the type of the {@link TBVWriteSignal} nodes, which concurrent writers MERGE.
+ * All schema objects are named, but an existing index or constraint is recognized by its label and property, whatever
+ * its name, so that schema objects created by hand or by other tools are not duplicated.
+ */
+public class TBVIndexBootstrapper {
+
+    private static Logger log = LoggerFactory.getLogger(TBVIndexBootstrapper.class);
+
+    final List<SchemaObject> schemaObjects;
+
+    public TBVIndexBootstrapper(TypeDefinitionRegistry typeDefinitionRegistry) {
+        this(typeDefinitionRegistry, TBVConfig.defaults());
+    }
+
+    public TBVIndexBootstrapper(TypeDefinitionRegistry typeDefinitionRegistry, TBVConfig config) {
+        this.schemaObjects = schemaObjectsOf(typeDefinitionRegistry, config);
+    }
+
+    public List<SchemaObject> schemaObjects() {
+        return schemaObjects;
+    }
+
+    /**
+     * Creates all indexes and constraints that are missing. A uniqueness constraint is backed by an index, and an
+     * index is satisfied by either.
+     *
+     * @return the schema objects that were created
+     */
+    public List<SchemaObject> apply(Driver driver) {
+        List<SchemaObject> created = new ArrayList<>();
+        try (Session session = driver.session()) {
+            Set<String> indexed = new HashSet<>();
+            Set<String> unique = new HashSet<>();
+            for (Record record : session.run("CALL db.indexes() YIELD entityType, labelsOrTypes, properties, uniqueness " +
+                    "WHERE entityType = 'NODE' RETURN labelsOrTypes, properties, uniqueness").list()) {
+                String key = keyOf(record.get("labelsOrTypes").asList(Value::asString), record.get("properties").asList(Value::asString));
+                indexed.add(key);
+                if ("UNIQUE".equals(record.get("uniqueness").asString())) {
+                    unique.add(key);
+                }
+            }
+            for (SchemaObject schemaObject : schemaObjects) {
+                String key = keyOf(List.of(schemaObject.label), List.of(schemaObject.property));
+                if (schemaObject.unique ? unique.contains(key) : indexed.contains(key)) {
+                    continue;
+                }
+                if (schemaObject.unique && indexed.contains(key)) {
+                    log.warn("Not created, drop the index on {} without uniqueness first: {}", key, schemaObject.statement);
+                    continue;
+                }
+                session.run(schemaObject.statement).consume();
+                log.info("Created {}", schemaObject.statement);
+                created.add(schemaObject);
+            }
+        }
+        log.info("Index bootstrap complete, {} of {} indexes and constraints created", created.size(), schemaObjects.size());
+        return created;
+    }
+
+    private static String keyOf(List<String> labels, List<String> properties) {
+        return labels + ":" + properties;
+    }
+
+    static List<SchemaObject> schemaObjectsOf(TypeDefinitionRegistry typeDefinitionRegistry, TBVConfig config) {
+        Set<String> domainTypes = new TreeSet<>();
+        for (TypeDefinition typeDefinition : typeDefinitionRegistry.types().values()) {
+            if (typeDefinition instanceof ObjectTypeDefinition && typeDefinition.getDirective("domain") != null) {
+                domainTypes.add(typeDefinition.getName());
+            }
+        }
+        List<SchemaObject> schemaObjects = new ArrayList<>();
+        schemaObjects.add(SchemaObject.constraint("tbv_" + TBVWriteSignal.LABEL + "_type", TBVWriteSignal.LABEL, "type"));
+        for (String type : domainTypes) {
+            schemaObjects.add(SchemaObject.constraint("tbv_" + type + "_R_id", type + "_R", "id"));
+            schemaObjects.add(SchemaObject.index("tbv_" + type + "_from", type, "_from"));
+            if (config.openIntervalSentinel()) {
+                schemaObjects.add(SchemaObject.index("tbv_" + type + "_to", type, "_to"));
+            }
+        }
+        return schemaObjects;
+    }
+
+    public static class SchemaObject {
+        public final String name;
+        public final String label;
+        public final String property;
+        public final boolean unique;
+        public final String statement;
+
+        SchemaObject(String name, String label, String property, boolean unique, String statement) {
+            this.name = name;
+            this.label = label;
+            this.property = property;
+            this.unique = unique;
+            this.statement = statement;
+        }
+
+        static SchemaObject constraint(String name, String label, String property) {
+            return new SchemaObject(name, label, property, true,
+                    String.format("CREATE CONSTRAINT %s ON (n:%s) ASSERT n.%s IS UNIQUE", name, label, property));
+        }
+
+        static SchemaObject index(String name, String label, String property) {
+            return new SchemaObject(name, label, property, false,
+                    String.format("CREATE INDEX %s FOR (n:%s) ON (n.%s)", name, label, property));
+        }
+
+        @Override
+        public String toString() {
+            return statement;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import org.neo4j.driver.summary.ResultSummary;
+
+/**
+ * Receives timings of the phases of translating and executing GraphQL documents. Implementations adapt these to the
+ * metrics library of the application. Callers check {@link #enabled()} before reading clocks or deriving tags, so
+ * that {@link #NOOP} costs a single virtual call and no allocation per phase.
+ * <p>
+ * Timings of the translator are tagged by root field, or by null for timings that cover the whole document.
+ */
+public interface TBVMetrics {
+
+    TBVMetrics NOOP = new TBVMetrics() {
+        @Override
+        public boolean enabled() {
+            return false;
+        }
+
+        @Override
+        public void timing(Phase phase, String rootField, Kind kind, long nanos) {
+        }
+
+        @Override
+        public void summary(String rootField, Kind kind, ResultSummary summary) {
+        }
+    };
+
+    enum Phase {
+        /**
+         * Parsing and validation of a document by the translator, i.e. the translation of the document less the
+         * translation of its root fields.
+         */
+        PARSE_AND_VALIDATE,
+        /**
+         * Translation of a root field into cypher by the library, excluding the time-based-versioning rewrite.
+         */
+        TRANSLATE,
+        /**
+         * The time-based-versioning rewrite of the cypher of a root field.
+         */
+        REWRITE,
+        /**
+         * Binding of cached cypher to the variables of a document, replacing parse, validation and translation.
+         */
+        CACHE_BIND,
+        /**
+         * From submitting a statement to the driver until its result is available.
+         */
+        EXECUTE,
+        /**
+         * From the result being available until all records are received.
+         */
+        CONSUME
+    }
+
+    enum Kind {
+        QUERY, CREATE, ADD, OTHER;
+
+        /**
+         * @return the kind of a root field, derived from the naming of the generated query and mutation fields
+         */
+        public static Kind of(String rootField, boolean mutation) {
+            if (!mutation) {
+                return QUERY;
+            }
+            if (rootField.startsWith("create")) {
+                return CREATE;
+            }
+            if (rootField.startsWith("add")) {
+                return ADD;
+            }
+            return OTHER;
+        }
+    }
+
+    boolean enabled();
+
+    void timing(Phase phase, String rootField, Kind kind, long nanos);
+
+    /**
+     * Receives the summary of an executed statement, with server side timings in
+     * {@link ResultSummary#resultAvailableAfter(java.util.concurrent.TimeUnit)} and
+     * {@link ResultSummary#resultConsumedAfter(java.util.concurrent.TimeUnit)}, and update counters.
+     */
+    void summary(String rootField, Kind kind, ResultSummary summary);
+}
@@ -0,0 +1,215 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.language.AstPrinter;
+import graphql.language.Definition;
+import graphql.language.DirectiveDefinition;
+import graphql.language.Document;
+import graphql.language.ScalarTypeDefinition;
+import graphql.language.TypeDefinition;
+import graphql.schema.idl.ScalarInfo;
+import graphql.schema.idl.SchemaParser;
+import graphql.schema.idl.TypeDefinitionRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Persists the result of {@link TBVSchemas#transformRegistry(TypeDefinitionRegistry, TBVConfig)} as a gzipped SDL
+ * artifact, so that the transformation is not repeated on every start. The artifact carries a SHA-256 checksum of the
+ * source SDL, the options it was transformed with and a fingerprint of the transformation, and is only used when all
+ * of them match.
+ * <p>
+ * Only the transformation is skipped, the executable schema is still built from the loaded registry by
+ * {@link TBVSchemas#schemaOf(TypeDefinitionRegistry, TBVConfig)}. TBVSchemasBenchmark measures reading the artifact
+ * against parsing and transforming the SDL, and building the schema, which both take.
+ * <p>
+ * The artifact can be produced at build time by running the main method of this class, or on first run by
+ * {@link #loadOrTransform(String, TBVConfig, Path)}.
+ */
+public class TBVSchemaArtifact {
+
+    private static Logger log = LoggerFactory.getLogger(TBVSchemaArtifact.class);
+
+    static final String HEADER = "# tbv-schema-artifact 1";
+    static final String CHECKSUM_PREFIX = "# checksum ";
+
+    /**
+     * SHA-256 of the class files that implement the transformation, so that an artifact written by a build with a
+     * different transformation is not used.
+     */
+    static final byte[] TRANSFORM_FINGERPRINT = fingerprintOf(TBVSchemas.class, TBVConfig.class);
+
+    /**
+     * Usage: TBVSchemaArtifact &lt;source-sdl-path&gt; &lt;artifact-path&gt; [openIntervalSentinel [flattenEmbedded]]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: TBVSchemaArtifact <source-sdl-path> <artifact-path> [openIntervalSentinel [flattenEmbedded]]");
+            System.exit(1);
+        }
+        TBVConfig config = TBVConfig.defaults()
+                .withOpenIntervalSentinel(args.length > 2 && Boolean.parseBoolean(args[2]))
+                .withFlattenEmbedded(args.length > 3 && Boolean.parseBoolean(args[3]));
+        String sdl = Files.readString(Path.of(args[0]));
+        write(Path.of(args[1]), checksumOf(sdl, config), TBVSchemas.transformRegistry(new SchemaParser().parse(sdl), config));
+    }
+
+    /**
+     * Returns the transformed registry of the given source SDL, read from the artifact if it exists and was produced
+     * from the same SDL and options. Otherwise the SDL is parsed and transformed, and the artifact (re)written.
+     * Failing to write the artifact is logged, but does not fail the call.
+     *
+     * @param sdl          the source SDL
+     * @param config       the time-based-versioning options
+     * @param artifactPath the location of the artifact
+     * @return the transformed registry
+     */
+    public static TypeDefinitionRegistry loadOrTransform(String sdl, TBVConfig config, Path artifactPath) {
+        String checksum = checksumOf(sdl, config);
+        Optional<TypeDefinitionRegistry> registry = read(artifactPath, checksum);
+        if (registry.isPresent()) {
+            log.debug("Loaded transformed schema from {}", artifactPath);
+            return registry.get();
+        }
+        TypeDefinitionRegistry transformedRegistry = TBVSchemas.transformRegistry(new SchemaParser().parse(sdl), config);
+        try {
+            write(artifactPath, checksum, transformedRegistry);
+            log.info("Wrote transformed schema to {}", artifactPath);
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("Unable to write transformed schema to {}", artifactPath, e);
+        }
+        return transformedRegistry;
+    }
+
+    /**
+     * @return the transformed registry of the artifact, or empty if the artifact does not exist, is unreadable, or
+     * was produced from a different source or options.
+     */
+    static Optional<TypeDefinitionRegistry> read(Path artifactPath, String checksum) {
+        if (!Files.isRegularFile(artifactPath)) {
+            return Optional.empty();
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(artifactPath)), StandardCharsets.UTF_8))) {
+            if (!HEADER.equals(reader.readLine()) || !(CHECKSUM_PREFIX + checksum).equals(reader.readLine())) {
+                log.info("Ignoring stale or incompatible schema artifact {}", artifactPath);
+                return Optional.empty();
+            }
+            return Optional.of(new SchemaParser().parse(reader));
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable schema artifact {}", artifactPath, e);
+            return Optional.empty();
+        }
+    }
+
+    static void write(Path artifactPath, String checksum, TypeDefinitionRegistry transformedRegistry) throws IOException {
+        Path parent = artifactPath.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        // written to a temporary file and moved in place, so that concurrent readers never see a partial artifact
+        Path tmp = Files.createTempFile(parent, artifactPath.getFileName().toString(), ".tmp");
+        try {
+            try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(tmp)), StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.write("\n");
+                writer.write(CHECKSUM_PREFIX + checksum);
+                writer.write("\n");
+                writer.write(print(transformedRegistry));
+            }
+            Files.move(tmp, artifactPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * @return the registry printed as SDL, with definitions in a deterministic order
+     */
+    static String print(TypeDefinitionRegistry registry) {
+        List<Definition> definitions = new ArrayList<>();
+        registry.schemaDefinition().ifPresent(definitions::add);
+        registry.getDirectiveDefinitions().values().stream()
+                .sorted(Comparator.comparing(DirectiveDefinition::getName))
+                .forEachOrdered(definitions::add);
+        registry.scalars().values().stream()
+                .filter(scalar -> !ScalarInfo.isGraphqlSpecifiedScalar(scalar.getName()))
+                .sorted(Comparator.comparing(ScalarTypeDefinition::getName))
+                .forEachOrdered(definitions::add);
+        registry.types().values().stream()
+                .sorted(Comparator.comparing(TypeDefinition::getName))
+                .forEachOrdered(definitions::add);
+        addExtensions(definitions, registry.objectTypeExtensions());
+        addExtensions(definitions, registry.interfaceTypeExtensions());
+        addExtensions(definitions, registry.unionTypeExtensions());
+        addExtensions(definitions, registry.enumTypeExtensions());
+        addExtensions(definitions, registry.scalarTypeExtensions());
+        addExtensions(definitions, registry.inputObjectTypeExtensions());
+        return AstPrinter.printAst(Document.newDocument().definitions(definitions).build());
+    }
+
+    private static void addExtensions(List<Definition> definitions, Map<String, ? extends List<? extends Definition>> extensionsByType) {
+        new TreeMap<>(extensionsByType).values().forEach(definitions::addAll);
+    }
+
+    /**
+     * @return hex encoded SHA-256 of the source SDL, the options it is transformed with and the transformation
+     */
+    static String checksumOf(String sdl, TBVConfig config) {
+        return checksumOf(sdl, config, TRANSFORM_FINGERPRINT);
+    }
+
+    static String checksumOf(String sdl, TBVConfig config, byte[] transformFingerprint) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(transformFingerprint);
+            digest.update(config.toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            byte[] hash = digest.digest(sdl.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] fingerprintOf(Class<?>... classes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Class<?> c : classes) {
+                try (InputStream in = c.getResourceAsStream(c.getSimpleName() + ".class")) {
+                    if (in == null) {
+                        throw new IllegalStateException("Class file of " + c.getName() + " not found");
+                    }
+                    digest.update(in.readAllBytes());
+                }
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
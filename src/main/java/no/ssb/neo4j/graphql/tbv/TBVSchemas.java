@@ -1,13 +1,17 @@
 package no.ssb.neo4j.graphql.tbv;
 
+import graphql.Scalars;
+import graphql.execution.MergedField;
 import graphql.language.Argument;
 import graphql.language.Directive;
 import graphql.language.EnumTypeDefinition;
+import graphql.language.Field;
 import graphql.language.FieldDefinition;
 import graphql.language.InputObjectTypeDefinition;
 import graphql.language.InputValueDefinition;
 import graphql.language.InterfaceTypeDefinition;
 import graphql.language.ListType;
+import graphql.language.NonNullType;
 import graphql.language.ObjectTypeDefinition;
 import graphql.language.ScalarTypeDefinition;
 import graphql.language.StringValue;
@@ -15,28 +19,35 @@ import graphql.language.Type;
 import graphql.language.TypeDefinition;
 import graphql.language.TypeName;
 import graphql.language.UnionTypeDefinition;
+import graphql.schema.DataFetchingEnvironment;
+import graphql.schema.DataFetchingEnvironmentImpl;
+import graphql.schema.GraphQLArgument;
 import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLInputObjectField;
+import graphql.schema.GraphQLInputObjectType;
+import graphql.schema.GraphQLInputType;
 import graphql.schema.GraphQLList;
 import graphql.schema.GraphQLNonNull;
 import graphql.schema.GraphQLObjectType;
 import graphql.schema.GraphQLOutputType;
 import graphql.schema.GraphQLSchema;
 import graphql.schema.GraphQLType;
+import graphql.schema.GraphQLTypeReference;
 import graphql.schema.idl.TypeDefinitionRegistry;
 import org.neo4j.graphql.Cypher;
 import org.neo4j.graphql.SchemaBuilder;
 import org.neo4j.graphql.SchemaConfig;
 import org.neo4j.graphql.handler.relation.CreateRelationHandler;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.NavigableSet;
 import java.util.Optional;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -44,6 +55,18 @@ import java.util.stream.Collectors;
 
 public class TBVSchemas {
 
+    /**
+     * Accumulates the time spent translating and rewriting root fields on the current thread, allowing the parse and
+     * validation time of the translator to be derived when metrics are enabled.
+     */
+    static final ThreadLocal<long[]> TRANSLATED_FIELD_NANOS = ThreadLocal.withInitial(() -> new long[1]);
+
+    /**
+     * Precedes the resource id in a page cursor, so that the _pageCursor field is plain cypher and values that were not
+     * returned by it are rejected.
+     */
+    static final String PAGE_CURSOR_PREFIX = "r:";
+
     /**
      * Returns a transformed copy of the source-registry. The transformations occur on types that have link directrive
      * set, and will replace this the link directive with a cypher directive capable of resolving time-base-versioning
@@ -54,6 +77,17 @@ public class TBVSchemas {
      * @return a new type-registry with relevant types transformed to support time-based-versioning
      */
     public static TypeDefinitionRegistry transformRegistry(TypeDefinitionRegistry sourceRegistry) {
+        return transformRegistry(sourceRegistry, TBVConfig.defaults());
+    }
+
+    /**
+     * Returns a transformed copy of the source-registry using the given time-based-versioning options.
+     *
+     * @param sourceRegistry the type-registry to be transformed, left unchanged.
+     * @param config         the time-based-versioning options, must be the same as passed to schemaOf
+     * @return a new type-registry with relevant types transformed to support time-based-versioning
+     */
+    public static TypeDefinitionRegistry transformRegistry(TypeDefinitionRegistry sourceRegistry, TBVConfig config) {
         final TypeDefinitionRegistry typeDefinitionRegistry = new TypeDefinitionRegistry().merge(sourceRegistry);
         typeDefinitionRegistry.types().entrySet().forEach(entry -> {
             String nameOfType = entry.getKey();
@@ -69,21 +103,39 @@ public class TBVSchemas {
                 FieldDefinition field = (FieldDefinition) child;
                 if (field.getDirective("link") != null) {
 
-                    String targetType = null;
-                    if (field.getType() instanceof ListType) {
-                        Type nestedType = ((ListType) field.getType()).getType();
-                        if (nestedType instanceof TypeName) {
-                            targetType = ((TypeName) nestedType).getName();
-                        } else {
-                            throw new IllegalArgumentException("Error in " + nameOfType + "." + field.getName() + " : nested list-target type is not a TypeName");
-                        }
-                    } else if (field.getType() instanceof TypeName) {
-                        targetType = ((TypeName) field.getType()).getName();
-                    }
+                    String targetType = linkTargetType(nameOfType, field);
 
                     String relationName = field.getName();
 
-                    String tbvResolutionCypher = String.format("MATCH (this)-[:%s]->(:%s_R:RESOURCE)<-[v:VERSION_OF]-(n:%s:INSTANCE) WHERE v.from <= ver AND coalesce(ver < v.to, true) RETURN n", relationName, targetType, targetType);
+                    // flattened embedded values are maps holding the id of the target resource rather than nodes
+                    boolean fromEmbeddedValue = config.flattenEmbedded() && isEmbeddedType(type);
+
+                    if (config.inlineLinks() && !fromEmbeddedValue) {
+                        // the link directive is kept, marking the relation for rewrite by the interceptor of schemaOf
+                        FieldDefinition transformedField = field.transform(builder -> builder
+                                .directive(Directive.newDirective()
+                                        .name("relation")
+                                        .arguments(List.of(Argument.newArgument()
+                                                .name("name")
+                                                .value(StringValue.newStringValue()
+                                                        .value(relationName)
+                                                        .build())
+                                                .build()))
+                                        .build())
+                                .inputValueDefinitions(List.of(InputValueDefinition.newInputValueDefinition()
+                                        .name("ver")
+                                        .type(new TypeName("_Neo4jDateTimeInput"))
+                                        .build()))
+                        );
+                        transformedFields.put(field.getName(), transformedField);
+                        return;
+                    }
+
+                    // without ver, the current version is resolved in constant time through the CURRENT relationship
+                    String resourceMatch = !fromEmbeddedValue ? String.format("MATCH (this)-[:%s]->(r:%s_R:RESOURCE)", relationName, targetType) :
+                            isListType(field.getType()) ? String.format("UNWIND coalesce(this.%s, []) AS id MATCH (r:%s_R:RESOURCE {id: id})", relationName, targetType) :
+                                    String.format("MATCH (r:%s_R:RESOURCE {id: this.%s})", targetType, relationName);
+                    String tbvResolutionCypher = String.format("%s UNWIND CASE WHEN ver IS NULL THEN [(r)-[:CURRENT]->(c) | c] ELSE [(r)<-[v:VERSION_OF]-(n:%s:INSTANCE) WHERE %s | n] END AS n RETURN n", resourceMatch, targetType, config.versionPredicate("v.from", "v.to", "ver"));
 
                     FieldDefinition transformedField = field.transform(builder -> builder
                             .directives(field.getDirectives()
@@ -110,6 +162,8 @@ public class TBVSchemas {
                     TypeDefinition typeDefinition = typeDefinitionRegistry.getType(field.getType()).get();
                     if (typeDefinition instanceof ScalarTypeDefinition) {
                     } else if (typeDefinition instanceof EnumTypeDefinition) {
+                    } else if (typeDefinition instanceof ObjectTypeDefinition && config.flattenEmbedded() && isEmbeddedType(typeDefinition)) {
+                        transformedFields.put(field.getName(), cypherField(field, embeddedValueCypher(isEmbeddedType(type), field)));
                     } else if (typeDefinition instanceof ObjectTypeDefinition) {
                         FieldDefinition transformedField = field.transform(builder -> builder.directive(Directive.newDirective()
                                 .name("relation")
@@ -154,26 +208,235 @@ public class TBVSchemas {
             }
         });
 
+        addVersionFields(typeDefinitionRegistry, config);
+
         return typeDefinitionRegistry;
     }
 
+    /**
+     * Adds fields exposing the version of the instance to every domain type, and a history query field per domain type
+     * that returns all versions of one resource that were valid at some time within an optional time range, ordered by
+     * the start of their validity.
+     * <p>
+     * With {@link TBVConfig#changeFeed()}, also adds a query field per domain type that returns the versions that
+     * became valid within a time range, ordered and paged by a cursor of the version. The range is served by the index
+     * on the from-value mirrored onto the instance nodes, so the cost is proportional to the number of changes rather
+     * than the number of resources.
+     */
+    static void addVersionFields(TypeDefinitionRegistry typeDefinitionRegistry, TBVConfig config) {
+        String openTo = config.openIntervalSentinel() ? "CASE WHEN this._to = " + config.openIntervalEnd() + " THEN null ELSE toString(this._to) END" : "toString(this._to)";
+        List<FieldDefinition> queryFields = new ArrayList<>();
+        for (TypeDefinition typeDefinition : List.copyOf(typeDefinitionRegistry.types().values())) {
+            if (!(typeDefinition instanceof ObjectTypeDefinition) || typeDefinition.getDirective("domain") == null) {
+                continue;
+            }
+            ObjectTypeDefinition type = (ObjectTypeDefinition) typeDefinition;
+            String typeName = type.getName();
+            List<FieldDefinition> fields = new ArrayList<>(type.getFieldDefinitions());
+            fields.add(cypherField("_from", new TypeName("String"), List.of(), "RETURN toString(this._from)"));
+            fields.add(cypherField("_to", new TypeName("String"), List.of(), "RETURN " + openTo));
+            fields.add(cypherField("_pageCursor", new TypeName("String"), List.of(), "RETURN '" + PAGE_CURSOR_PREFIX + "' + this.id"));
+            if (config.changeFeed()) {
+                fields.add(cypherField("_cursor", new TypeName("String"), List.of(), "MATCH (this)-[v:VERSION_OF]-(:RESOURCE) RETURN toString(v.from) + '|' + this.id"));
+                fields.add(cypherField("_previous", new TypeName(typeName), List.of(), "MATCH (this)-[v:VERSION_OF]-(r:RESOURCE)-[p:VERSION_OF]-(previous) WHERE p.to = v.from RETURN previous"));
+            }
+            typeDefinitionRegistry.remove(type);
+            typeDefinitionRegistry.add(type.transform(builder -> builder.fieldDefinitions(fields)));
+
+            if (config.changeFeed()) {
+                queryFields.add(cypherField(Character.toLowerCase(typeName.charAt(0)) + typeName.substring(1) + "Changes",
+                        new ListType(new TypeName(typeName)),
+                        List.of(inputValue("since", new NonNullType(new TypeName("String"))),
+                                inputValue("until", new NonNullType(new TypeName("String"))),
+                                inputValue("after", new TypeName("String")),
+                                inputValue("pageSize", new TypeName("Int"))),
+                        String.format("""
+                                MATCH (n:%1$s:INSTANCE) WHERE n._from > datetime(since) AND n._from <= datetime(until) \
+                                MATCH (n)-[v:VERSION_OF]-(:%1$s_R:RESOURCE) \
+                                WITH n, v, CASE WHEN after IS NULL THEN null ELSE datetime(split(after, '|')[0]) END AS afterFrom, CASE WHEN after IS NULL THEN null ELSE substring(after, size(split(after, '|')[0]) + 1) END AS afterId \
+                                WHERE afterFrom IS NULL OR v.from > afterFrom OR (v.from = afterFrom AND n.id > afterId) \
+                                WITH n ORDER BY v.from, n.id LIMIT coalesce(pageSize, 1000) \
+                                RETURN n""", typeName)));
+            }
+
+            // the statement defines the field, the translation is rewritten to stream one row per version, see
+            // TBVCypherRewriter.rewriteHistory
+            queryFields.add(cypherField(historyFieldOf(typeName),
+                    new ListType(new TypeName(typeName)),
+                    List.of(inputValue("id", new NonNullType(new TypeName("ID"))),
+                            inputValue("from", new TypeName("String")),
+                            inputValue("to", new TypeName("String"))),
+                    String.format("""
+                            MATCH (:%1$s_R:RESOURCE {id: id})-[v:VERSION_OF]-(n:%1$s:INSTANCE) \
+                            WHERE (`from` IS NULL OR coalesce(v.to > datetime(`from`), true)) AND (`to` IS NULL OR v.from < datetime(`to`)) \
+                            RETURN n ORDER BY v.from""", typeName)));
+        }
+        if (queryFields.isEmpty()) {
+            return;
+        }
+        Optional<ObjectTypeDefinition> queryType = typeDefinitionRegistry.getType("Query", ObjectTypeDefinition.class);
+        if (queryType.isPresent()) {
+            List<FieldDefinition> fields = new ArrayList<>(queryType.get().getFieldDefinitions());
+            fields.addAll(queryFields);
+            typeDefinitionRegistry.remove(queryType.get());
+            typeDefinitionRegistry.add(queryType.get().transform(builder -> builder.fieldDefinitions(fields)));
+        } else {
+            typeDefinitionRegistry.add(ObjectTypeDefinition.newObjectTypeDefinition().name("Query").fieldDefinitions(queryFields).build());
+        }
+    }
+
+    /**
+     * @return the name of the history query field of a domain type
+     */
+    public static String historyFieldOf(String typeName) {
+        return Character.toLowerCase(typeName.charAt(0)) + typeName.substring(1) + "History";
+    }
+
+    /**
+     * @return a statement reading a flattened embedded value, from the JSON property of an instance node, or from the
+     * map of the enclosing embedded value
+     */
+    static String embeddedValueCypher(boolean fromEmbeddedValue, FieldDefinition field) {
+        String value = fromEmbeddedValue ? "this." + field.getName() :
+                isListType(field.getType()) ? "apoc.convert.fromJsonList(this." + field.getName() + ")" :
+                        "apoc.convert.fromJsonMap(this." + field.getName() + ")";
+        return isListType(field.getType()) ? "UNWIND coalesce(" + value + ", []) AS value RETURN value" : "RETURN " + value;
+    }
+
+    static boolean isListType(Type<?> type) {
+        return type instanceof ListType || (type instanceof NonNullType && ((NonNullType) type).getType() instanceof ListType);
+    }
+
+    private static FieldDefinition cypherField(FieldDefinition field, String statement) {
+        return field.transform(builder -> builder.directive(Directive.newDirective()
+                .name("cypher")
+                .arguments(List.of(Argument.newArgument()
+                        .name("statement")
+                        .value(StringValue.newStringValue()
+                                .value(statement)
+                                .build())
+                        .build()))
+                .build()));
+    }
+
+    private static FieldDefinition cypherField(String name, Type type, List<InputValueDefinition> arguments, String statement) {
+        return FieldDefinition.newFieldDefinition()
+                .name(name)
+                .type(type)
+                .inputValueDefinitions(arguments)
+                .directive(Directive.newDirective()
+                        .name("cypher")
+                        .arguments(List.of(Argument.newArgument()
+                                .name("statement")
+                                .value(StringValue.newStringValue()
+                                        .value(statement)
+                                        .build())
+                                .build()))
+                        .build())
+                .build();
+    }
+
+    private static InputValueDefinition inputValue(String name, Type type) {
+        return InputValueDefinition.newInputValueDefinition().name(name).type(type).build();
+    }
+
+    private static String linkTargetType(String nameOfType, FieldDefinition field) {
+        if (field.getType() instanceof ListType) {
+            Type nestedType = ((ListType) field.getType()).getType();
+            if (nestedType instanceof TypeName) {
+                return ((TypeName) nestedType).getName();
+            }
+            throw new IllegalArgumentException("Error in " + nameOfType + "." + field.getName() + " : nested list-target type is not a TypeName");
+        } else if (field.getType() instanceof TypeName) {
+            return ((TypeName) field.getType()).getName();
+        }
+        return null;
+    }
+
+    /**
+     * @return whether values of the type are embedded in the instances of domain types, rather than being resources
+     */
+    static boolean isEmbeddedType(TypeDefinition<?> typeDefinition) {
+        return typeDefinition instanceof ObjectTypeDefinition
+                && typeDefinition.getDirective("domain") == null
+                && !ROOT_TYPE_NAMES.contains(typeDefinition.getName())
+                && !typeDefinition.getName().startsWith("_Neo4j");
+    }
+
+    static final Set<String> ROOT_TYPE_NAMES = Set.of("Query", "Mutation", "Subscription");
+
+    static String typeNameOf(Type<?> type) {
+        if (type instanceof NonNullType) {
+            return typeNameOf(((NonNullType) type).getType());
+        }
+        if (type instanceof ListType) {
+            return typeNameOf(((ListType) type).getType());
+        }
+        return ((TypeName) type).getName();
+    }
+
     /**
      * Returns a GraphQL-schema that will produce cypher mutations and queries compatible with time-based-versioning.
+     * Queries without a _version variable read the current version of each resource.
      *
      * @param typeDefinitionRegistry
      * @return the time-based-versioning compatible GraphQL-schema
      */
     public static GraphQLSchema schemaOf(TypeDefinitionRegistry typeDefinitionRegistry) {
+        return schemaOf(typeDefinitionRegistry, TBVConfig.defaults());
+    }
+
+    /**
+     * Returns a GraphQL-schema that will produce cypher mutations and queries compatible with time-based-versioning,
+     * using the given time-based-versioning options.
+     *
+     * @param typeDefinitionRegistry a registry transformed with the same options
+     * @param config                 the time-based-versioning options
+     * @return the time-based-versioning compatible GraphQL-schema
+     */
+    public static GraphQLSchema schemaOf(TypeDefinitionRegistry typeDefinitionRegistry, TBVConfig config) {
         final Set<String> mutationTypes = new CopyOnWriteArraySet<>();
         final Set<String> queryTypes = new CopyOnWriteArraySet<>();
+        final TBVCypherRewriter rewriter = new TBVCypherRewriter(config);
+        // arguments added to the fields generated by the library, by the name of the field
+        final Map<String, Set<String>> addedArgumentsByField = new ConcurrentHashMap<>();
+        if (config.flattenEmbedded()) {
+            addedArgumentsByField.putAll(embeddedArgumentsByMutation(typeDefinitionRegistry));
+        }
+
+        if (config.inlineLinks()) {
+            for (TypeDefinition typeDefinition : typeDefinitionRegistry.types().values()) {
+                List<FieldDefinition> fieldDefinitions = typeDefinition instanceof ObjectTypeDefinition ?
+                        ((ObjectTypeDefinition) typeDefinition).getFieldDefinitions() :
+                        typeDefinition instanceof InterfaceTypeDefinition ?
+                                ((InterfaceTypeDefinition) typeDefinition).getFieldDefinitions() :
+                                List.of();
+                for (FieldDefinition field : fieldDefinitions) {
+                    if (field.getDirective("link") != null) {
+                        rewriter.addLink(field.getName(), linkTargetType(typeDefinition.getName(), field));
+                    }
+                }
+            }
+        }
 
         TypeDefinitionRegistry withoutDomainDirectives = new TypeDefinitionRegistry().merge(typeDefinitionRegistry);
         for (Map.Entry<String, TypeDefinition> typeByName : typeDefinitionRegistry.types().entrySet()) {
             TypeDefinition typeDefinition = typeByName.getValue();
             if (typeDefinition instanceof ObjectTypeDefinition) {
+                ObjectTypeDefinition objectTypeDefinition = (ObjectTypeDefinition) typeDefinition;
                 List<Directive> directives = typeDefinition.getDirectives();
-                if (directives.removeIf(d -> d.getName().equals("domain"))) {
-                    ObjectTypeDefinition transformedTypeDefinition = ((ObjectTypeDefinition) typeDefinition).transform(builder -> builder.directives(directives));
+                boolean hasDomainDirective = directives.removeIf(d -> d.getName().equals("domain"));
+                // link directives left by the inline-links transformation are only markers, and may be undeclared
+                boolean hasLinkDirectives = objectTypeDefinition.getFieldDefinitions().stream().anyMatch(f -> f.getDirective("link") != null);
+                if (hasDomainDirective || hasLinkDirectives) {
+                    ObjectTypeDefinition transformedTypeDefinition = objectTypeDefinition.transform(builder -> builder
+                            .directives(directives)
+                            .fieldDefinitions(objectTypeDefinition.getFieldDefinitions().stream()
+                                    .map(field -> field.getDirective("link") == null ? field : field.transform(fieldBuilder -> fieldBuilder
+                                            .directives(field.getDirectives().stream()
+                                                    .filter(d -> !d.getName().equals("link"))
+                                                    .collect(Collectors.toList()))))
+                                    .collect(Collectors.toList())));
                     withoutDomainDirectives.remove(typeDefinition);
                     withoutDomainDirectives.add(transformedTypeDefinition);
                 }
@@ -183,50 +446,29 @@ public class TBVSchemas {
         GraphQLSchema graphQLSchema = SchemaBuilder.buildSchema(withoutDomainDirectives,
                 new SchemaConfig(new SchemaConfig.CRUDConfig(true, Collections.emptyList()), new SchemaConfig.CRUDConfig(true, Collections.emptyList())),
                 (dataFetchingEnvironment, dataFetcher) -> {
+                    TBVMetrics metrics = config.metrics();
                     String name = dataFetchingEnvironment.getField().getName();
-                    Cypher cypher = dataFetcher.get(dataFetchingEnvironment);
-                    if (queryTypes.contains(name)) {
-                        String type = unwrapTypeName(dataFetchingEnvironment.getFieldDefinition().getType());
-                        cypher.toString();
-                        String query = replaceGroup(String.format("MATCH \\(%s:%s\\) WHERE( )", name, type), cypher.component1(), 1, " (_v.from <= $_version AND coalesce($_version < _v.to, true)) AND ");
-                        query = replaceGroup(String.format("MATCH (\\(%s:%s\\)) WHERE", name, type), query, 1, String.format("(_r:%s:RESOURCE)<-[_v:VERSION_OF]-(%s:%s:INSTANCE)", type + "_R", name, type));
-                        return new Cypher(query, cypher.component2(), cypher.component3());
-                    } else if (mutationTypes.contains(name)) {
-                        // mutation
-                        if (name.startsWith("create")) {
-                            String type = unwrapTypeName(dataFetchingEnvironment.getFieldDefinition().getType());
-                            int indexOfReturnClause = cypher.component1().lastIndexOf("WITH " + name + " RETURN");
-                            StringBuilder sb = new StringBuilder();
-                            sb.append("MERGE (r:").append(type).append("_R:RESOURCE {id: $id}) WITH r\n");
-                            sb.append("OPTIONAL MATCH (r)<-[v:VERSION_OF {from: $_version}]-(m)-[*]->(e:EMBEDDED) DETACH DELETE m, e WITH r\n");
-                            sb.append("OPTIONAL MATCH (r)<-[v:VERSION_OF]-() WHERE v.from <= $_version AND coalesce($_version < v.to, true) WITH r, v AS prevVersion\n");
-                            sb.append("OPTIONAL MATCH (r)<-[v:VERSION_OF]-() WHERE v.from > $_version WITH r, prevVersion, min(v.from) AS nextVersionFrom\n");
-                            sb.append(cypher.component1(), 0, indexOfReturnClause).append("\n");
-                            sb.append("CREATE (r)-[v:VERSION_OF {from: $_version, to: coalesce(prevVersion.to, nextVersionFrom)}]->(").append(name).append(":").append(type).append(":INSTANCE").append(")\n");
-                            sb.append("SET prevVersion.to = $_version\n");
-                            sb.append(cypher.component1().substring(indexOfReturnClause));
-                            return new Cypher(sb.toString(), cypher.component2(), cypher.component3());
-                        } else if (name.startsWith("add")) {
-                            if (!(dataFetcher instanceof CreateRelationHandler)) {
-                                throw new IllegalArgumentException("dataFetcher is not an instance of " + CreateRelationHandler.class.getSimpleName());
-                            }
-                            String modifiedSourceMatch = cypher.component1();
-                            String targetType = ((CreateRelationHandler) dataFetcher).getRelation().getType().getName();
-                            String modifiedTargetMatch = replaceGroup(String.format("MATCH \\([^ :)]+:(%s) \\{ [^ :)}]+: \\$[^ })]+ \\}\\)", targetType), modifiedSourceMatch, 1, targetType + "_R:RESOURCE");
-                            NavigableSet<String> keys = new TreeSet<>(cypher.component2().keySet());
-                            NavigableSet<String> toKeys = keys.subSet("to", true, "to~", false);
-                            if (toKeys.size() >= 1) {
-                                String firstToKey = toKeys.first();
-                                String query = replaceGroup(String.format("MATCH \\([^ :)]+:%s( \\{ [^ :)}]+: \\$[^ })]+ \\}\\))", targetType + "_R:RESOURCE"), modifiedTargetMatch, 1, String.format(") WHERE to.id IN $%s", firstToKey));
-                                return new Cypher(query, cypher.component2(), cypher.component3());
-                            }
-                        } else {
-                            throw new UnsupportedOperationException("Only 'create' mutation supported");
-                        }
+                    // the library does not know the added arguments, they are handled by the rewrite
+                    DataFetchingEnvironment libraryEnvironment = withoutArguments(dataFetchingEnvironment, addedArgumentsByField.get(name));
+                    if (!metrics.enabled()) {
+                        return rewrite(dataFetchingEnvironment, dataFetcher, name, dataFetcher.get(libraryEnvironment), queryTypes, mutationTypes, addedArgumentsByField, rewriter, config);
                     }
-                    return cypher;
+                    long start = System.nanoTime();
+                    Cypher cypher = dataFetcher.get(libraryEnvironment);
+                    long translated = System.nanoTime();
+                    Cypher rewritten = rewrite(dataFetchingEnvironment, dataFetcher, name, cypher, queryTypes, mutationTypes, addedArgumentsByField, rewriter, config);
+                    long end = System.nanoTime();
+                    TBVMetrics.Kind kind = TBVMetrics.Kind.of(name, mutationTypes.contains(name));
+                    metrics.timing(TBVMetrics.Phase.TRANSLATE, name, kind, translated - start);
+                    metrics.timing(TBVMetrics.Phase.REWRITE, name, kind, end - translated);
+                    TRANSLATED_FIELD_NANOS.get()[0] += end - start;
+                    return rewritten;
                 });
 
+        // query fields of the registry, such as the changes and history fields, are not generated by the library
+        Set<String> declaredQueries = typeDefinitionRegistry.getType("Query", ObjectTypeDefinition.class)
+                .map(type -> type.getFieldDefinitions().stream().map(FieldDefinition::getName).collect(Collectors.toSet()))
+                .orElse(Set.of());
         GraphQLObjectType queryType = graphQLSchema.getQueryType();
         Set<? extends String> originalQueries = queryType.getChildren().stream().map(GraphQLType::getName).collect(Collectors.toSet());
         GraphQLObjectType transformedQueryObject = graphQLSchema.getQueryType().transform(graphQLObjectTypeBuilder -> {
@@ -236,19 +478,56 @@ public class TBVSchemas {
                 String typeName = unwrapTypeName(originalFieldDefinition.getType());
                 TypeDefinition typeDefinition = typeDefinitionRegistry.getType(typeName).get();
                 if (typeDefinition.getDirective("domain") != null) {
+                    // keyset pagination of the generated queries, see TBVCypherRewriter.rewriteAfter
+                    boolean paged = !declaredQueries.contains(originalQuery) && originalFieldDefinition.getArgument("after") == null;
+                    if (paged) {
+                        addedArgumentsByField.put(originalQuery, Set.of("after"));
+                    }
                     graphQLObjectTypeBuilder.field(originalFieldDefinition.transform(fieldDefinitionBuilder -> {
+                        if (paged) {
+                            fieldDefinitionBuilder.argument(GraphQLArgument.newArgument()
+                                    .name("after")
+                                    .description("The _pageCursor of the last resource of the previous page, resources are then ordered by id")
+                                    .type(Scalars.GraphQLString));
+                        }
                     }));
                 }
             }
         });
 
+        Map<String, GraphQLInputObjectType> embeddedInputByName = new LinkedHashMap<>();
+        GraphQLObjectType mutationType = graphQLSchema.getMutationType();
+        GraphQLObjectType transformedMutationObject = !config.flattenEmbedded() ? mutationType : mutationType.transform(graphQLObjectTypeBuilder -> {
+            for (GraphQLFieldDefinition mutationField : mutationType.getFieldDefinitions()) {
+                Set<String> embeddedArguments = addedArgumentsByField.get(mutationField.getName());
+                if (embeddedArguments == null) {
+                    continue;
+                }
+                ObjectTypeDefinition typeDefinition = typeDefinitionRegistry.getType(mutationField.getName().substring("create".length()), ObjectTypeDefinition.class).get();
+                graphQLObjectTypeBuilder.field(mutationField.transform(fieldDefinitionBuilder -> {
+                    for (FieldDefinition field : typeDefinition.getFieldDefinitions()) {
+                        if (embeddedArguments.contains(field.getName()) && mutationField.getArgument(field.getName()) == null) {
+                            fieldDefinitionBuilder.argument(GraphQLArgument.newArgument()
+                                    .name(field.getName())
+                                    .type(embeddedInputTypeOf(typeDefinitionRegistry, graphQLSchema, field.getType(), embeddedInputByName)));
+                        }
+                    }
+                }));
+            }
+        });
+
         LinkedHashSet<GraphQLType> newAdditionalTypes = new LinkedHashSet<>(graphQLSchema.getAdditionalTypes());
         if (newAdditionalTypes.contains(graphQLSchema.getQueryType())) {
             newAdditionalTypes.remove(graphQLSchema.getQueryType());
             newAdditionalTypes.add(transformedQueryObject);
         }
+        if (newAdditionalTypes.contains(mutationType)) {
+            newAdditionalTypes.remove(mutationType);
+            newAdditionalTypes.add(transformedMutationObject);
+        }
+        newAdditionalTypes.addAll(embeddedInputByName.values());
 
-        GraphQLSchema transformedGraphQLSchema = GraphQLSchema.newSchema(graphQLSchema).query(transformedQueryObject).clearAdditionalTypes().additionalTypes(newAdditionalTypes).build();
+        GraphQLSchema transformedGraphQLSchema = GraphQLSchema.newSchema(graphQLSchema).query(transformedQueryObject).mutation(transformedMutationObject).clearAdditionalTypes().additionalTypes(newAdditionalTypes).build();
 
         // set of all query types
         queryTypes.addAll(transformedGraphQLSchema.getQueryType().getChildren().stream().map(GraphQLType::getName).collect(Collectors.toSet()));
@@ -259,6 +538,175 @@ public class TBVSchemas {
         return transformedGraphQLSchema;
     }
 
+    /**
+     * @return the names of the embedded fields of each domain type by the name of its create mutation, the arguments
+     * added to the mutation when embedded values are flattened
+     */
+    static Map<String, Set<String>> embeddedArgumentsByMutation(TypeDefinitionRegistry typeDefinitionRegistry) {
+        Map<String, Set<String>> embeddedArgumentsByMutation = new LinkedHashMap<>();
+        for (TypeDefinition typeDefinition : typeDefinitionRegistry.types().values()) {
+            if (!(typeDefinition instanceof ObjectTypeDefinition) || typeDefinition.getDirective("domain") == null) {
+                continue;
+            }
+            Set<String> embeddedArguments = new LinkedHashSet<>();
+            for (FieldDefinition field : ((ObjectTypeDefinition) typeDefinition).getFieldDefinitions()) {
+                if (typeDefinitionRegistry.getType(typeNameOf(field.getType())).filter(TBVSchemas::isEmbeddedType).isPresent()) {
+                    embeddedArguments.add(field.getName());
+                }
+            }
+            if (!embeddedArguments.isEmpty()) {
+                embeddedArgumentsByMutation.put("create" + typeDefinition.getName(), Set.copyOf(embeddedArguments));
+            }
+        }
+        return Map.copyOf(embeddedArgumentsByMutation);
+    }
+
+    /**
+     * @return the input type of a field of an embedded value, an input object for embedded types and the id of the
+     * target resource for links, or null if the field cannot be written
+     */
+    private static GraphQLInputType embeddedInputTypeOf(TypeDefinitionRegistry typeDefinitionRegistry, GraphQLSchema graphQLSchema, Type<?> type,
+                                                        Map<String, GraphQLInputObjectType> embeddedInputByName) {
+        String typeName = typeNameOf(type);
+        TypeDefinition<?> typeDefinition = typeDefinitionRegistry.getType(typeName).orElse(null);
+        GraphQLInputType inputType;
+        if (isEmbeddedType(typeDefinition)) {
+            String inputName = "_" + typeName + "Input";
+            if (!embeddedInputByName.containsKey(inputName)) {
+                // reserves the name, embedded types may be recursive
+                embeddedInputByName.put(inputName, null);
+                GraphQLInputObjectType.Builder builder = GraphQLInputObjectType.newInputObject().name(inputName);
+                for (FieldDefinition field : ((ObjectTypeDefinition) typeDefinition).getFieldDefinitions()) {
+                    GraphQLInputType fieldType = embeddedInputTypeOf(typeDefinitionRegistry, graphQLSchema, field.getType(), embeddedInputByName);
+                    if (fieldType != null) {
+                        builder.field(GraphQLInputObjectField.newInputObjectField().name(field.getName()).type(fieldType));
+                    }
+                }
+                embeddedInputByName.put(inputName, builder.build());
+            }
+            inputType = GraphQLTypeReference.typeRef(inputName);
+        } else if (typeDefinition instanceof ObjectTypeDefinition) {
+            inputType = typeDefinition.getDirective("domain") != null ? Scalars.GraphQLID : null;
+        } else {
+            GraphQLType schemaType = graphQLSchema.getType(typeName);
+            inputType = schemaType instanceof GraphQLInputType ? (GraphQLInputType) schemaType : null;
+        }
+        if (inputType == null) {
+            return null;
+        }
+        return isListType(type) ? GraphQLList.list(inputType) : inputType;
+    }
+
+    /**
+     * @return the environment without the given arguments
+     */
+    private static DataFetchingEnvironment withoutArguments(DataFetchingEnvironment dataFetchingEnvironment, Set<String> names) {
+        if (names == null) {
+            return dataFetchingEnvironment;
+        }
+        Field field = dataFetchingEnvironment.getField();
+        Field withoutArguments = field.transform(builder -> builder.arguments(field.getArguments().stream()
+                .filter(argument -> !names.contains(argument.getName()))
+                .collect(Collectors.toList())));
+        Map<String, Object> arguments = new LinkedHashMap<>(dataFetchingEnvironment.getArguments());
+        arguments.keySet().removeAll(names);
+        return DataFetchingEnvironmentImpl.newDataFetchingEnvironment(dataFetchingEnvironment)
+                .mergedField(MergedField.newMergedField(withoutArguments).build())
+                .arguments(arguments)
+                .build();
+    }
+
+    private static Cypher rewrite(DataFetchingEnvironment dataFetchingEnvironment, Object dataFetcher, String name, Cypher cypher,
+                                  Set<String> queryTypes, Set<String> mutationTypes, Map<String, Set<String>> addedArgumentsByField,
+                                  TBVCypherRewriter rewriter, TBVConfig config) {
+        if (queryTypes.contains(name)) {
+            String type = unwrapTypeName(dataFetchingEnvironment.getFieldDefinition().getType());
+            if (name.equals(historyFieldOf(type))) {
+                String query = rewriter.rewriteHistory(name, type, cypher.component1());
+                if (config.inlineLinks()) {
+                    query = rewriter.rewriteLinks(query);
+                }
+                Map<String, Object> params = new LinkedHashMap<>(cypher.component2());
+                params.put(name + "Id", dataFetchingEnvironment.getArgument("id"));
+                params.put(name + "From", dataFetchingEnvironment.getArgument("from"));
+                params.put(name + "To", dataFetchingEnvironment.getArgument("to"));
+                return new Cypher(query, params, cypher.component3());
+            }
+            String query = dataFetchingEnvironment.getVariables().get("_version") == null ?
+                    rewriter.rewriteCurrentQuery(name, type, cypher.component1()) :
+                    rewriter.rewriteQuery(name, type, cypher.component1());
+            if (config.inlineLinks()) {
+                query = rewriter.rewriteLinks(query);
+            }
+            Map<String, Object> params = cypher.component2();
+            boolean paged = addedArgumentsByField.containsKey(name)
+                    && dataFetchingEnvironment.getField().getArguments().stream().anyMatch(argument -> argument.getName().equals("after"));
+            if (paged) {
+                // the first page, with a null cursor, is ordered the same way as the following pages
+                Object after = dataFetchingEnvironment.getArgument("after");
+                String afterParam = after == null ? null : name + "After";
+                query = rewriter.rewriteAfter(name, type, query, afterParam);
+                if (after != null) {
+                    params = new LinkedHashMap<>(params);
+                    params.put(afterParam, resourceIdOf(String.valueOf(after)));
+                }
+            }
+            return new Cypher(query, params, cypher.component3());
+        } else if (mutationTypes.contains(name)) {
+            // mutation
+            if (name.startsWith("create")) {
+                String type = unwrapTypeName(dataFetchingEnvironment.getFieldDefinition().getType());
+                Set<String> embeddedArguments = addedArgumentsByField.get(name);
+                if (embeddedArguments == null) {
+                    String query = rewriter.rewriteCreate(name, type, cypher.component1());
+                    return new Cypher(query, cypher.component2(), cypher.component3());
+                }
+                Map<String, Object> params = new LinkedHashMap<>(cypher.component2());
+                Map<String, String> embeddedParamByField = new LinkedHashMap<>();
+                for (String argument : embeddedArguments) {
+                    Object value = dataFetchingEnvironment.getArgument(argument);
+                    if (value != null) {
+                        String param = name + Character.toUpperCase(argument.charAt(0)) + argument.substring(1);
+                        params.put(param, value);
+                        embeddedParamByField.put(argument, param);
+                    }
+                }
+                String query = rewriter.rewriteCreate(name, type, cypher.component1(), embeddedParamByField);
+                return new Cypher(query, params, cypher.component3());
+            } else if (name.startsWith("add")) {
+                if (!(dataFetcher instanceof CreateRelationHandler)) {
+                    throw new IllegalArgumentException("dataFetcher is not an instance of " + CreateRelationHandler.class.getSimpleName());
+                }
+                String targetType = ((CreateRelationHandler) dataFetcher).getRelation().getType().getName();
+                String query = rewriter.rewriteAdd(targetType, cypher.component1(), cypher.component2());
+                if (query != null) {
+                    return new Cypher(query, cypher.component2(), cypher.component3());
+                }
+            } else {
+                throw new UnsupportedOperationException("Only 'create' mutation supported");
+            }
+        }
+        return cypher;
+    }
+
+    /**
+     * @return the opaque page cursor of a resource, the same value as the _pageCursor field of its versions
+     */
+    public static String cursorOf(String resourceId) {
+        return PAGE_CURSOR_PREFIX + resourceId;
+    }
+
+    /**
+     * @return the id of the resource of a page cursor
+     * @throws IllegalArgumentException if the cursor was not returned by the _pageCursor field
+     */
+    public static String resourceIdOf(String cursor) {
+        if (!cursor.startsWith(PAGE_CURSOR_PREFIX)) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        return cursor.substring(PAGE_CURSOR_PREFIX.length());
+    }
+
     private static String unwrapTypeName(GraphQLOutputType type) {
         if (type instanceof GraphQLNonNull) {
             return unwrapTypeName((GraphQLOutputType) type.getChildren().get(0));
@@ -277,7 +725,11 @@ public class TBVSchemas {
     }
 
     public static String replaceGroup(String regex, String source, int groupToReplace, int groupOccurrence, String replacement) {
-        Matcher m = Pattern.compile(regex).matcher(source);
+        return replaceGroup(Pattern.compile(regex), source, groupToReplace, groupOccurrence, replacement);
+    }
+
+    public static String replaceGroup(Pattern pattern, String source, int groupToReplace, int groupOccurrence, String replacement) {
+        Matcher m = pattern.matcher(source);
         for (int i = 0; i < groupOccurrence; i++)
             if (!m.find()) return source; // pattern not met, may also throw an exception here
         return new StringBuilder(source).replace(m.start(groupToReplace), m.end(groupToReplace), replacement).toString();
@@ -0,0 +1,106 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+/**
+ * Migrates stored version intervals between the two storage modes of open intervals, see
+ * {@link TBVConfig#openIntervalSentinel()}. The migrations are idempotent and run in batches of bounded size using
+ * apoc.periodic.iterate, so they can be run on a live database. The from and to values mirrored onto instance nodes
+ * are set as part of the migration. Also migrates data created before the CURRENT relationship was maintained.
+ */
+public class TBVVersionIntervalMigration {
+
+    private static Logger log = LoggerFactory.getLogger(TBVVersionIntervalMigration.class);
+
+    final Driver driver;
+    final int batchSize;
+
+    public TBVVersionIntervalMigration(Driver driver, int batchSize) {
+        this.driver = driver;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the to-value of all open version intervals to the sentinel value.
+     *
+     * @return the number of versions migrated
+     */
+    public long migrateToSentinel() {
+        return iterate("MATCH ()<-[v:VERSION_OF]-(n) WHERE v.to IS NULL RETURN v, n",
+                "SET v.to = " + TBVConfig.OPEN_INTERVAL_END + ", n._from = v.from, n._to = " + TBVConfig.OPEN_INTERVAL_END);
+    }
+
+    /**
+     * Removes the to-value of all version intervals that end at the sentinel value.
+     *
+     * @return the number of versions migrated
+     */
+    public long migrateFromSentinel() {
+        return iterate("MATCH ()<-[v:VERSION_OF]-(n) WHERE v.to = " + TBVConfig.OPEN_INTERVAL_END + " RETURN v, n",
+                "REMOVE v.to, n._to SET n._from = v.from");
+    }
+
+    /**
+     * Mirrors from and to onto instance nodes created before the create mutation started maintaining them.
+     *
+     * @return the number of versions migrated
+     */
+    public long mirrorIntervalsOntoInstances() {
+        return iterate("MATCH ()<-[v:VERSION_OF]-(n) WHERE n._from IS NULL RETURN v, n",
+                "SET n._from = v.from, n._to = v.to");
+    }
+
+    /**
+     * Reverses the version relationships created from the resource to the instance by the create mutation before it
+     * linked instances in the direction all queries read, from the instance to the resource.
+     *
+     * @return the number of versions migrated
+     */
+    public long reverseVersionRelationships() {
+        return iterate("MATCH (r:RESOURCE)-[v:VERSION_OF]->(n:INSTANCE) RETURN v, r, n",
+                "CREATE (n)-[w:VERSION_OF]->(r) SET w = properties(v) DELETE v");
+    }
+
+    /**
+     * Creates the CURRENT relationship from each resource to its latest version, for resources created before the
+     * create mutation started maintaining it.
+     *
+     * @return the number of resources migrated
+     */
+    public long createCurrentPointers() {
+        return iterate("MATCH (r:RESOURCE) WHERE NOT (r)-[:CURRENT]->() RETURN r",
+                "MATCH (r)<-[v:VERSION_OF]-(n) WITH r, n ORDER BY v.from DESC WITH r, head(collect(n)) AS latest CREATE (r)-[:CURRENT]->(latest)");
+    }
+
+    /**
+     * @return the number of resources with versions but without the CURRENT relationship, which reads without a
+     * version do not return until {@link #createCurrentPointers()} has been run
+     */
+    public static long resourcesWithoutCurrentPointer(Driver driver) {
+        try (Session session = driver.session()) {
+            return session.run("MATCH (r:RESOURCE) WHERE NOT (r)-[:CURRENT]->() AND (r)<-[:VERSION_OF]-() RETURN count(r) AS n").single().get("n").asLong();
+        }
+    }
+
+    private long iterate(String query, String action) {
+        try (Session session = driver.session()) {
+            Record record = session.run("CALL apoc.periodic.iterate($query, $action, {batchSize: $batchSize, parallel: false}) " +
+                            "YIELD batches, total, committedOperations, failedOperations, errorMessages " +
+                            "RETURN batches, total, committedOperations, failedOperations, errorMessages",
+                    Map.of("query", query, "action", action, "batchSize", batchSize)).single();
+            long failed = record.get("failedOperations").asLong();
+            if (failed > 0) {
+                throw new IllegalStateException(String.format("Migration failed for %d of %d versions: %s", failed, record.get("total").asLong(), record.get("errorMessages").asMap()));
+            }
+            long committed = record.get("committedOperations").asLong();
+            log.info("Migrated {} in {} batches: {}", committed, record.get("batches").asLong(), action);
+            return committed;
+        }
+    }
+}
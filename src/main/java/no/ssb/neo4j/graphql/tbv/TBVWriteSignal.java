@@ -0,0 +1,103 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Session;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A signal of the writes to the domain types, shared by all writers of a database through one (:TBV_WRITES {type})
+ * node per type, from which every {@link SnapshotResultCache} learns of the writes of other writers. A write at a
+ * version after the newest version written of the type advances the high-water mark of the type. A backdated write,
+ * or a write that removes versions, which is signalled without a version, increments the invalidation count of the
+ * type and records the version invalidated from.
+ * <p>
+ * Execute the statement of the signal in the transaction of the write. Writes of the same type update the same node
+ * and thus serialize on its lock when committing, so only emit the signal when snapshot caches are in use.
+ */
+public class TBVWriteSignal {
+
+    static final String LABEL = "TBV_WRITES";
+
+    static final String WRITE = """
+            UNWIND $types AS type
+            MERGE (w:TBV_WRITES {type: type})
+            WITH w, $version IS NULL OR $version <= w.highWaterMark AS backdated
+            SET w.invalidations = coalesce(w.invalidations, 0) + CASE WHEN backdated THEN 1 ELSE 0 END,
+                w.invalidatedFrom = CASE WHEN backdated THEN $version ELSE w.invalidatedFrom END,
+                w.highWaterMark = CASE WHEN backdated THEN w.highWaterMark ELSE $version END,
+                w.writtenAt = datetime()""";
+
+    static final String READ = """
+            MATCH (w:TBV_WRITES)
+            RETURN w.type AS type, w.highWaterMark AS highWaterMark, w.invalidations AS invalidations, w.invalidatedFrom AS invalidatedFrom""";
+
+    /**
+     * @param types   the domain types written
+     * @param version the version written, or null if versions were removed
+     * @return the statement that signals the write, to be executed in the transaction of the write
+     */
+    public static QueryAndParams statementOf(Collection<String> types, ZonedDateTime version) {
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("types", List.copyOf(types));
+        params.put("version", version);
+        return new QueryAndParams(WRITE, params);
+    }
+
+    /**
+     * @param versionByType the version written of each domain type, or null for types whose versions were changed
+     * @return the statements that signal the writes, to be executed in the transaction of the writes
+     */
+    public static List<QueryAndParams> statementsOf(Map<String, ZonedDateTime> versionByType) {
+        Map<ZonedDateTime, List<String>> typesByVersion = new LinkedHashMap<>();
+        versionByType.forEach((type, version) -> typesByVersion.computeIfAbsent(version, v -> new ArrayList<>()).add(type));
+        List<QueryAndParams> statements = new ArrayList<>();
+        typesByVersion.forEach((version, types) -> statements.add(statementOf(types, version)));
+        return statements;
+    }
+
+    /**
+     * @return the state of the signal of every type written since the signal was introduced
+     */
+    public static Map<String, State> read(Session session) {
+        List<Record> records = session.readTransaction(tx -> tx.run(READ).list());
+        Map<String, State> stateByType = new LinkedHashMap<>();
+        for (Record record : records) {
+            String type = record.get("type").asString();
+            stateByType.put(type, new State(type,
+                    record.get("highWaterMark").isNull() ? null : record.get("highWaterMark").asZonedDateTime(),
+                    record.get("invalidations").isNull() ? 0 : record.get("invalidations").asLong(),
+                    record.get("invalidatedFrom").isNull() ? null : record.get("invalidatedFrom").asZonedDateTime()));
+        }
+        return stateByType;
+    }
+
+    public static class State {
+        public final String type;
+        public final ZonedDateTime highWaterMark;
+        public final long invalidations;
+        public final ZonedDateTime invalidatedFrom;
+
+        State(String type, ZonedDateTime highWaterMark, long invalidations, ZonedDateTime invalidatedFrom) {
+            this.type = type;
+            this.highWaterMark = highWaterMark;
+            this.invalidations = invalidations;
+            this.invalidatedFrom = invalidatedFrom;
+        }
+
+        @Override
+        public String toString() {
+            return "State{" +
+                    "type='" + type + '\'' +
+                    ", highWaterMark=" + highWaterMark +
+                    ", invalidations=" + invalidations +
+                    ", invalidatedFrom=" + invalidatedFrom +
+                    '}';
+        }
+    }
+}
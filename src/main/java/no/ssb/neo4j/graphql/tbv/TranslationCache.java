@@ -0,0 +1,494 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import org.neo4j.graphql.Cypher;
+import org.neo4j.graphql.OptimizedQueryException;
+import org.neo4j.graphql.Translator;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded LRU cache of translated cypher in front of a {@link Translator}. Documents are keyed on their normalized
+ * text together with the names and types of the variables. A cache hit re-binds the cached cypher to the values of the
+ * current variables without parsing, validating or running the time-based-versioning rewrite again.
+ * <p>
+ * Cypher parameters are bound to variables by name, and to the values within input objects by their path in the
+ * variable. The bindings are found on a miss by translating the document once more, with a distinct probe value in
+ * place of every string, number and date-time of the variables. A parameter that differs between the two translations
+ * is bound to the variable value whose probe it holds, or to the decoded value of a page cursor whose probe decodes to
+ * it, see {@link TBVSchemas#resourceIdOf}. Variables with values that cannot be probed, such as booleans, enums, nulls
+ * and empty lists, are folded into the key by value instead. Documents where the cypher text depends on a probed
+ * value, or where a parameter is derived from one in any other way, are never cached.
+ * <p>
+ * Optionally, the translated cypher is canonicalized before it is cached, see {@link CypherCanonicalizer}, so that
+ * documents of the same shape share one plan in the query cache of the server.
+ */
+public class TranslationCache {
+
+    final Translator translator;
+    final int maxSize;
+    final TBVMetrics metrics;
+    final boolean canonicalize;
+    final Map<String, Template> templateByKey;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder uncacheable = new LongAdder();
+
+    public TranslationCache(Translator translator, int maxSize) {
+        this(translator, maxSize, TBVMetrics.NOOP);
+    }
+
+    /**
+     * @param metrics receives the parse and validation time of the translator on misses, and the bind time on hits.
+     *                Use the same metrics as the schema of the translator, see {@link TBVConfig#withMetrics}.
+     */
+    public TranslationCache(Translator translator, int maxSize, TBVMetrics metrics) {
+        this(translator, maxSize, metrics, false);
+    }
+
+    /**
+     * @param canonicalize whether to canonicalize the whitespace and parameter names of the translated cypher
+     */
+    public TranslationCache(Translator translator, int maxSize, TBVMetrics metrics, boolean canonicalize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        }
+        this.translator = translator;
+        this.maxSize = maxSize;
+        this.metrics = metrics;
+        this.canonicalize = canonicalize;
+        this.templateByKey = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Template> eldest) {
+                if (size() > TranslationCache.this.maxSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public List<Cypher> translate(String query, Map<String, Object> variables) throws OptimizedQueryException {
+        String normalizedDocument = normalizeDocument(query);
+        Map<String, Object> foldedVariables = foldedVariables(variables);
+        String key = keyOf(normalizedDocument, variables, foldedVariables);
+        Template template;
+        synchronized (templateByKey) {
+            template = templateByKey.get(key);
+        }
+        if (template != null) {
+            hits.increment();
+            if (!metrics.enabled()) {
+                return template.bind(variables);
+            }
+            long start = System.nanoTime();
+            List<Cypher> cyphers = template.bind(variables);
+            metrics.timing(TBVMetrics.Phase.CACHE_BIND, null, null, System.nanoTime() - start);
+            return cyphers;
+        }
+        misses.increment();
+        List<Cypher> cyphers = translateAndMeasure(query, variables);
+        if (canonicalize) {
+            // parameters are renamed by their order of appearance, the same way in the translation with probe values
+            cyphers = CypherCanonicalizer.canonicalize(cyphers);
+        }
+        Template created = templateOf(query, cyphers, variables, foldedVariables);
+        if (created == null) {
+            uncacheable.increment();
+            return cyphers;
+        }
+        synchronized (templateByKey) {
+            templateByKey.put(key, created);
+        }
+        return cyphers;
+    }
+
+    /**
+     * @return a template of the translated cyphers, bound to the variables through a translation with probe values,
+     * or null if the translation cannot safely be re-bound to other variable values
+     */
+    private Template templateOf(String query, List<Cypher> cyphers, Map<String, Object> variables, Map<String, Object> foldedVariables) {
+        Map<String, Object> probeVariables = new LinkedHashMap<>();
+        Map<Object, List<Object>> pathByProbe = new HashMap<>();
+        for (Map.Entry<String, Object> entry : variables.entrySet()) {
+            probeVariables.put(entry.getKey(), foldedVariables.containsKey(entry.getKey()) ?
+                    entry.getValue() :
+                    probeOf(entry.getValue(), List.of(entry.getKey()), pathByProbe));
+        }
+        if (pathByProbe.isEmpty()) {
+            return Template.of(cyphers, cyphers, pathByProbe);
+        }
+        List<Cypher> probed;
+        try {
+            probed = translator.translate(query, probeVariables);
+        } catch (OptimizedQueryException | RuntimeException e) {
+            // a probe value was rejected, e.g. a string where the schema expects an enum
+            return null;
+        }
+        if (canonicalize) {
+            probed = CypherCanonicalizer.canonicalize(probed);
+        }
+        return Template.of(cyphers, probed, pathByProbe);
+    }
+
+    private List<Cypher> translateAndMeasure(String query, Map<String, Object> variables) throws OptimizedQueryException {
+        if (!metrics.enabled()) {
+            return translator.translate(query, variables);
+        }
+        long[] translatedFieldNanos = TBVSchemas.TRANSLATED_FIELD_NANOS.get();
+        translatedFieldNanos[0] = 0;
+        long start = System.nanoTime();
+        List<Cypher> cyphers = translator.translate(query, variables);
+        // the root fields are translated and rewritten by the interceptor, on this thread, within translate
+        metrics.timing(TBVMetrics.Phase.PARSE_AND_VALIDATE, null, null, System.nanoTime() - start - translatedFieldNanos[0]);
+        return cyphers;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public long uncacheable() {
+        return uncacheable.sum();
+    }
+
+    public int size() {
+        synchronized (templateByKey) {
+            return templateByKey.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (templateByKey) {
+            templateByKey.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TranslationCache{" +
+                "size=" + size() +
+                ", maxSize=" + maxSize +
+                ", hits=" + hits() +
+                ", misses=" + misses() +
+                ", evictions=" + evictions() +
+                ", uncacheable=" + uncacheable() +
+                '}';
+    }
+
+    static String keyOf(String normalizedDocument, Map<String, Object> variables, Map<String, Object> foldedVariables) {
+        StringBuilder sb = new StringBuilder(normalizedDocument.length() + 16 * variables.size());
+        sb.append(normalizedDocument);
+        for (Map.Entry<String, Object> entry : new TreeMap<>(variables).entrySet()) {
+            Object value = entry.getValue();
+            sb.append('\u0000').append(entry.getKey()).append(':');
+            if (foldedVariables.containsKey(entry.getKey())) {
+                sb.append(value == null ? "null" : value.getClass().getName()).append('=').append(value);
+            } else {
+                appendShape(sb, value);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends the types of a probed value, and the keys of its input objects, which the paths of its bindings follow.
+     */
+    private static void appendShape(StringBuilder sb, Object value) {
+        if (value instanceof Map) {
+            sb.append('{');
+            for (Map.Entry<String, Object> entry : new TreeMap<>(stringKeysOf((Map<?, ?>) value)).entrySet()) {
+                sb.append(entry.getKey()).append(':');
+                appendShape(sb, entry.getValue());
+                sb.append(',');
+            }
+            sb.append('}');
+        } else if (value instanceof List) {
+            // lists are only bound as a whole
+            sb.append("[]");
+        } else {
+            sb.append(value.getClass().getName());
+        }
+    }
+
+    private static Map<String, Object> stringKeysOf(Map<?, ?> map) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            result.put(String.valueOf(entry.getKey()), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the variables that cannot be probed and must therefore be part of the cache-key by value.
+     */
+    static Map<String, Object> foldedVariables(Map<String, Object> variables) {
+        Map<String, Object> folded = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : variables.entrySet()) {
+            if (!isProbeable(entry.getValue())) {
+                folded.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return folded;
+    }
+
+    /**
+     * @return whether the value is a string, number or date-time, or a non-empty input object or list of those only
+     */
+    static boolean isProbeable(Object value) {
+        if (value instanceof String || value instanceof Integer || value instanceof Long || value instanceof Double
+                || value instanceof ZonedDateTime) {
+            return true;
+        }
+        if (value instanceof Map) {
+            return !((Map<?, ?>) value).isEmpty() && ((Map<?, ?>) value).values().stream().allMatch(TranslationCache::isProbeable);
+        }
+        if (value instanceof List) {
+            return !((List<?>) value).isEmpty() && ((List<?>) value).stream().allMatch(TranslationCache::isProbeable);
+        }
+        return false;
+    }
+
+    /**
+     * @return a copy of a probeable value with every string, number and date-time replaced by a probe, distinct from
+     * the value it replaces and from all other probes, recording the path of each probe and of each copied input object
+     * and list
+     */
+    static Object probeOf(Object value, List<Object> path, Map<Object, List<Object>> pathByProbe) {
+        Object probe;
+        if (value instanceof Map) {
+            Map<Object, Object> map = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                map.put(entry.getKey(), probeOf(entry.getValue(), pathOf(path, entry.getKey()), pathByProbe));
+            }
+            probe = map;
+        } else if (value instanceof List) {
+            List<Object> list = new ArrayList<>();
+            for (Object element : (List<?>) value) {
+                list.add(probeOf(element, pathOf(path, list.size()), pathByProbe));
+            }
+            probe = list;
+        } else {
+            int n = pathByProbe.size();
+            do {
+                probe = probeValueOf(value, n++);
+            } while (probe.equals(value) || pathByProbe.containsKey(probe));
+        }
+        pathByProbe.put(probe, path);
+        return probe;
+    }
+
+    private static Object probeValueOf(Object value, int n) {
+        if (value instanceof String) {
+            // a valid page cursor, so that the rewrite can decode it
+            return TBVSchemas.cursorOf("\u0000probe" + n);
+        }
+        if (value instanceof Integer) {
+            return 1_000_000_007 + n;
+        }
+        if (value instanceof Long) {
+            return 1_000_000_000_007L + n;
+        }
+        if (value instanceof Double) {
+            return n + 0.125;
+        }
+        return ((ZonedDateTime) value).plusNanos(n + 1);
+    }
+
+    private static List<Object> pathOf(List<Object> path, Object key) {
+        List<Object> result = new ArrayList<>(path.size() + 1);
+        result.addAll(path);
+        result.add(key);
+        return result;
+    }
+
+    /**
+     * Normalizes a GraphQL document by removing comments and insignificant whitespace and commas, while leaving string
+     * literals untouched. Two documents that differ only in formatting normalize to the same text.
+     */
+    public static String normalizeDocument(String document) {
+        StringBuilder sb = new StringBuilder(document.length());
+        boolean pendingSeparator = false;
+        int i = 0;
+        final int n = document.length();
+        while (i < n) {
+            char c = document.charAt(i);
+            if (c == '#') {
+                while (i < n && document.charAt(i) != '\n' && document.charAt(i) != '\r') {
+                    i++;
+                }
+                pendingSeparator = true;
+                continue;
+            }
+            if (Character.isWhitespace(c) || c == ',' || c == '\uFEFF') {
+                pendingSeparator = true;
+                i++;
+                continue;
+            }
+            if (pendingSeparator && sb.length() > 0 && isNameChar(c) && isNameChar(sb.charAt(sb.length() - 1))) {
+                sb.append(' ');
+            }
+            pendingSeparator = false;
+            if (c == '"') {
+                int end = endOfStringLiteral(document, i);
+                sb.append(document, i, end);
+                i = end;
+                continue;
+            }
+            sb.append(c);
+            i++;
+        }
+        return sb.toString();
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static int endOfStringLiteral(String document, int start) {
+        final int n = document.length();
+        if (document.startsWith("\"\"\"", start)) {
+            int i = start + 3;
+            while (i < n) {
+                if (document.startsWith("\\\"\"\"", i)) {
+                    i += 4;
+                } else if (document.startsWith("\"\"\"", i)) {
+                    return i + 3;
+                } else {
+                    i++;
+                }
+            }
+            return n;
+        }
+        int i = start + 1;
+        while (i < n) {
+            char c = document.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == '"') {
+                return i + 1;
+            } else {
+                i++;
+            }
+        }
+        return n;
+    }
+
+    static class Template {
+        final List<Cypher> cyphers;
+        final List<Map<String, Binding>> bindingByParamList;
+
+        Template(List<Cypher> cyphers, List<Map<String, Binding>> bindingByParamList) {
+            this.cyphers = cyphers;
+            this.bindingByParamList = bindingByParamList;
+        }
+
+        /**
+         * @param probed      the cyphers translated with the probe values of the variables
+         * @param pathByProbe the path in the variables of each probe value
+         * @return a template of the translated cyphers, or null if the translation cannot safely be re-bound to other
+         * variable values
+         */
+        static Template of(List<Cypher> cyphers, List<Cypher> probed, Map<Object, List<Object>> pathByProbe) {
+            if (probed.size() != cyphers.size()) {
+                return null;
+            }
+            Map<Object, List<Object>> cursorPathByResourceId = new HashMap<>();
+            for (Map.Entry<Object, List<Object>> entry : pathByProbe.entrySet()) {
+                if (entry.getKey() instanceof String) {
+                    cursorPathByResourceId.put(TBVSchemas.resourceIdOf((String) entry.getKey()), entry.getValue());
+                }
+            }
+            List<Map<String, Binding>> bindingByParamList = new ArrayList<>(cyphers.size());
+            for (int i = 0; i < cyphers.size(); i++) {
+                Cypher cypher = cyphers.get(i);
+                Cypher probe = probed.get(i);
+                if (!cypher.component1().equals(probe.component1()) || !cypher.component2().keySet().equals(probe.component2().keySet())) {
+                    // the statement depends on the value of a variable
+                    return null;
+                }
+                Map<String, Binding> bindingByParam = new LinkedHashMap<>();
+                for (Map.Entry<String, ?> param : cypher.component2().entrySet()) {
+                    Object probeValue = probe.component2().get(param.getKey());
+                    if (Objects.equals(param.getValue(), probeValue)) {
+                        continue;
+                    }
+                    List<Object> path = pathByProbe.get(probeValue);
+                    boolean cursor = path == null;
+                    if (cursor) {
+                        path = cursorPathByResourceId.get(probeValue);
+                    }
+                    if (path == null || path.stream().anyMatch(Integer.class::isInstance)) {
+                        // derived from a variable by the translator, or an element of a list, which may change in size
+                        return null;
+                    }
+                    bindingByParam.put(param.getKey(), new Binding(path, cursor));
+                }
+                bindingByParamList.add(bindingByParam);
+            }
+            return new Template(List.copyOf(cyphers), bindingByParamList);
+        }
+
+        List<Cypher> bind(Map<String, Object> variables) {
+            List<Cypher> result = new ArrayList<>(cyphers.size());
+            for (int i = 0; i < cyphers.size(); i++) {
+                Cypher cypher = cyphers.get(i);
+                Map<String, Binding> bindingByParam = bindingByParamList.get(i);
+                if (bindingByParam.isEmpty()) {
+                    result.add(cypher);
+                    continue;
+                }
+                Map<String, Object> params = new LinkedHashMap<>(cypher.component2());
+                for (Map.Entry<String, Binding> entry : bindingByParam.entrySet()) {
+                    params.put(entry.getKey(), entry.getValue().valueOf(variables));
+                }
+                result.add(new Cypher(cypher.component1(), params, cypher.component3()));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The value of a parameter, at a path of a variable name followed by the keys of input objects.
+     */
+    static class Binding {
+        final List<Object> path;
+        final boolean cursor;
+
+        Binding(List<Object> path, boolean cursor) {
+            this.path = List.copyOf(path);
+            this.cursor = cursor;
+        }
+
+        Object valueOf(Map<String, Object> variables) {
+            Object value = variables.get(path.get(0));
+            for (int i = 1; i < path.size(); i++) {
+                value = ((Map<?, ?>) value).get(path.get(i));
+            }
+            return cursor ? TBVSchemas.resourceIdOf(String.valueOf(value)) : value;
+        }
+
+        @Override
+        public String toString() {
+            return (cursor ? "cursor:" : "") + path;
+        }
+    }
+}
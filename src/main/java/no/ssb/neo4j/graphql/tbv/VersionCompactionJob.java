@@ -0,0 +1,398 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.language.Directive;
+import graphql.language.FieldDefinition;
+import graphql.language.ObjectTypeDefinition;
+import graphql.language.StringValue;
+import graphql.language.TypeDefinition;
+import graphql.schema.idl.TypeDefinitionRegistry;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.Transaction;
+import org.neo4j.driver.Value;
+import org.neo4j.driver.types.TypeSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Compacts the version chains of resources. Adjacent versions with identical content, i.e. the same labels and
+ * properties of the instance and the same embedded subgraph and links, are merged into the earliest of them by
+ * extending its to-value. Optionally, versions that ended before a retention window are removed.
+ * <p>
+ * Resources are processed one domain type at a time, in pages of bounded size ordered by the id of the resource. A
+ * page is read from the uniqueness constraint on the resource id, see {@link TBVIndexBootstrapper}, so reading a page
+ * does not cost more as the job gets further through the resources. Each page runs in its own write transaction
+ * together with a checkpoint of the progress, which holds the type and the last resource id. A job that is interrupted
+ * continues after the last completed page when run again, so the job can run on a live database. Schedule
+ * {@link #run()} on an executor to run it in the background.
+ * <p>
+ * The content of a version is read by expanding only the relationships of the embedded fields of the schema, through
+ * embedded nodes, and the relationships of its link fields, from the instance and its embedded nodes.
+ * <p>
+ * Removal of expired versions changes the results of queries at those versions. Merges do not change the content
+ * valid at any time, but the merged versions and their from-values are gone, which rewrites the results of queries
+ * over versions, such as the changes query, and the version fields of the merged instances. Both are signalled to
+ * snapshot caches through the {@link TBVWriteSignal}, without a version. Consumers of the change feed must not rely on
+ * cursors of versions older than the last compaction.
+ */
+public class VersionCompactionJob {
+
+    private static Logger log = LoggerFactory.getLogger(VersionCompactionJob.class);
+
+    static final String CHECKPOINT_LABEL = "TBV_CHECKPOINT";
+
+    /**
+     * Formatted with the type, the embedded relationship pattern and the match of the links.
+     */
+    static final String READ_PAGE = """
+            MATCH (r:%1$s_R:RESOURCE) WHERE r.id > $after
+            WITH r ORDER BY r.id LIMIT $batchSize
+            OPTIONAL MATCH (r)<-[v:VERSION_OF]-(i)
+            OPTIONAL MATCH p = (i)-[%2$s]->(x) WHERE all(n IN nodes(p) WHERE n:EMBEDDED OR n:INSTANCE)
+            %3$s
+            WITH r, v, i, p, collect(CASE WHEN l IS NULL THEN null ELSE [type(l), labels(t), {id: t.id}] END) AS links
+            WITH r, v, i, links, CASE WHEN p IS NULL THEN [] ELSE [x IN range(0, length(p) - 1) | [type(relationships(p)[x]), labels(nodes(p)[x + 1]), properties(nodes(p)[x + 1])]] END AS steps
+            WITH r, v, i, collect((CASE WHEN size(steps) = 0 THEN [] ELSE [steps] END) + [link IN links | steps + [link]]) AS nested
+            RETURN r.id AS resource, id(v) AS version, v.from AS from, v.to AS to, id(i) AS instance, labels(i) AS labels, properties(i) AS properties,
+                   reduce(paths = [], ps IN nested | paths + ps) AS paths
+            ORDER BY resource, from""";
+
+    static final String MATCH_LINKS = "OPTIONAL MATCH (x)-[l%s]->(t:RESOURCE)";
+
+    static final String NO_LINKS = "WITH r, v, i, p, null AS l, null AS t";
+
+    static final String EXTEND_VERSIONS = """
+            UNWIND $merges AS m
+            MATCH (keepInstance) WHERE id(keepInstance) = m.keepInstance
+            MATCH (keepInstance)-[keep:VERSION_OF]->(r) WHERE id(keep) = m.keep
+            SET keep.to = m.to, keepInstance._to = m.to
+            WITH m, r, keepInstance
+            MATCH (r)-[c:CURRENT]->(dropped) WHERE id(dropped) IN m.dropped
+            DELETE c
+            CREATE (r)-[:CURRENT]->(keepInstance)""";
+
+    /**
+     * Formatted with the embedded relationship types.
+     */
+    static final String DELETE_INSTANCES = """
+            UNWIND $instances AS instanceId
+            MATCH (i) WHERE id(i) = instanceId
+            OPTIONAL MATCH p = (i)-[%s*]->(e:EMBEDDED) WHERE all(n IN nodes(p) WHERE n:EMBEDDED OR n:INSTANCE)
+            WITH i, collect(DISTINCT e) AS embedded
+            FOREACH (e IN embedded | DETACH DELETE e)
+            DETACH DELETE i""";
+
+    static final String DELETE_INSTANCES_WITHOUT_EMBEDDED = """
+            UNWIND $instances AS instanceId
+            MATCH (i) WHERE id(i) = instanceId
+            DETACH DELETE i""";
+
+    final Driver driver;
+    final Map<String, String> readPageByType;
+    final String deleteInstances;
+    final String name;
+    final int batchSize;
+    final Duration retention;
+
+    /**
+     * @param driver                 the driver
+     * @param typeDefinitionRegistry the source registry of the schema, before it is transformed
+     * @param name                   the name of the checkpoint of this job, jobs with different names progress independently
+     * @param batchSize              the number of resources compacted per transaction
+     * @param retention              versions that ended longer ago than this are removed, or null to keep all versions
+     */
+    public VersionCompactionJob(Driver driver, TypeDefinitionRegistry typeDefinitionRegistry, String name, int batchSize, Duration retention) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+        Set<String> embeddedRelations = new TreeSet<>();
+        Set<String> linkRelations = new TreeSet<>();
+        collectRelations(typeDefinitionRegistry, embeddedRelations, linkRelations);
+        this.driver = driver;
+        this.readPageByType = new LinkedHashMap<>();
+        for (String type : domainTypesOf(typeDefinitionRegistry)) {
+            readPageByType.put(type, readPageOf(type, embeddedRelations, linkRelations));
+        }
+        this.deleteInstances = embeddedRelations.isEmpty() ? DELETE_INSTANCES_WITHOUT_EMBEDDED : String.format(DELETE_INSTANCES, typesOf(embeddedRelations));
+        this.name = name;
+        this.batchSize = batchSize;
+        this.retention = retention;
+    }
+
+    static Set<String> domainTypesOf(TypeDefinitionRegistry typeDefinitionRegistry) {
+        Set<String> domainTypes = new TreeSet<>();
+        for (TypeDefinition typeDefinition : typeDefinitionRegistry.types().values()) {
+            if (typeDefinition instanceof ObjectTypeDefinition && typeDefinition.getDirective("domain") != null) {
+                domainTypes.add(typeDefinition.getName());
+            }
+        }
+        return domainTypes;
+    }
+
+    /**
+     * Collects the relationship types of the embedded fields and of the link fields of domain and embedded types.
+     */
+    static void collectRelations(TypeDefinitionRegistry typeDefinitionRegistry, Set<String> embeddedRelations, Set<String> linkRelations) {
+        for (TypeDefinition typeDefinition : typeDefinitionRegistry.types().values()) {
+            if (!(typeDefinition instanceof ObjectTypeDefinition)
+                    || (typeDefinition.getDirective("domain") == null && !TBVSchemas.isEmbeddedType(typeDefinition))) {
+                continue;
+            }
+            for (FieldDefinition field : ((ObjectTypeDefinition) typeDefinition).getFieldDefinitions()) {
+                if (field.getDirective("link") != null) {
+                    linkRelations.addAll(relationNamesOf(field));
+                } else if (typeDefinitionRegistry.getType(TBVSchemas.typeNameOf(field.getType())).filter(TBVSchemas::isEmbeddedType).isPresent()) {
+                    embeddedRelations.addAll(relationNamesOf(field));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the name of the field, which the transformed schema uses as the name of the relation, and the names of
+     * any relation directives of the field
+     */
+    static Set<String> relationNamesOf(FieldDefinition field) {
+        Set<String> names = new TreeSet<>();
+        names.add(field.getName());
+        for (Directive directive : field.getDirectives()) {
+            if (directive.getName().equals("relation") && directive.getArgument("name") != null
+                    && directive.getArgument("name").getValue() instanceof StringValue) {
+                names.add(((StringValue) directive.getArgument("name").getValue()).getValue());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return the alternatives of a relationship type pattern, starting with a colon
+     */
+    static String typesOf(Set<String> relations) {
+        return relations.stream().map(relation -> "`" + relation + "`").collect(Collectors.joining("|", ":", ""));
+    }
+
+    static String readPageOf(String type, Set<String> embeddedRelations, Set<String> linkRelations) {
+        // without embedded fields the expansion only binds the instance itself
+        return String.format(READ_PAGE, type,
+                embeddedRelations.isEmpty() ? "*0..0" : typesOf(embeddedRelations) + "*0..",
+                linkRelations.isEmpty() ? NO_LINKS : String.format(MATCH_LINKS, typesOf(linkRelations)));
+    }
+
+    /**
+     * Compacts all resources, starting after the checkpoint of a previously interrupted run. The checkpoint is
+     * removed when all resources have been compacted.
+     *
+     * @return the totals of this run
+     */
+    public CompactionResult run() {
+        ZonedDateTime cutoff = retention == null ? null : ZonedDateTime.now(ZoneOffset.UTC).minus(retention);
+        long resources = 0;
+        long merged = 0;
+        long expired = 0;
+        try (Session session = driver.session()) {
+            Record checkpoint = session.readTransaction(tx -> {
+                List<Record> records = tx.run("MATCH (c:" + CHECKPOINT_LABEL + " {name: $name}) RETURN c.type AS type, c.after AS after", Map.of("name", name)).list();
+                return records.isEmpty() ? null : records.get(0);
+            });
+            // checkpoints without a type were written by earlier versions of the job, with internal ids
+            String resumeType = checkpoint == null || checkpoint.get("type").isNull() ? null : checkpoint.get("type").asString();
+            if (resumeType != null) {
+                log.info("Resuming compaction '{}' after resource {} of type {}", name, checkpoint.get("after").asString(), resumeType);
+            }
+            for (Map.Entry<String, String> entry : readPageByType.entrySet()) {
+                String type = entry.getKey();
+                if (resumeType != null && type.compareTo(resumeType) < 0) {
+                    continue;
+                }
+                String after = type.equals(resumeType) ? checkpoint.get("after").asString() : "";
+                while (true) {
+                    String pageAfter = after;
+                    CompactionResult page = session.writeTransaction(tx -> compactPage(tx, type, entry.getValue(), pageAfter, cutoff));
+                    if (page.resources == 0) {
+                        break;
+                    }
+                    resources += page.resources;
+                    merged += page.mergedVersions;
+                    expired += page.expiredVersions;
+                    after = page.lastResource;
+                    log.debug("Compacted {} resources, {} versions merged and {} expired so far", resources, merged, expired);
+                }
+            }
+            session.writeTransaction(tx -> tx.run("MATCH (c:" + CHECKPOINT_LABEL + " {name: $name}) DELETE c", Map.of("name", name)).consume());
+        }
+        log.info("Compaction '{}' complete: {} resources, {} versions merged, {} versions expired", name, resources, merged, expired);
+        return new CompactionResult(resources, merged, expired, null);
+    }
+
+    CompactionResult compactPage(Transaction tx, String type, String readPage, String after, ZonedDateTime cutoff) {
+        List<Record> rows = tx.run(readPage, Map.of("after", after, "batchSize", batchSize)).list();
+        if (rows.isEmpty()) {
+            return new CompactionResult(0, 0, 0, after);
+        }
+        List<Map<String, Object>> merges = new ArrayList<>();
+        List<Long> deletedInstances = new ArrayList<>();
+        long resources = 0;
+        long expired = 0;
+        long merged = 0;
+        int start = 0;
+        while (start < rows.size()) {
+            String resource = rows.get(start).get("resource").asString();
+            int end = start;
+            while (end < rows.size() && rows.get(end).get("resource").asString().equals(resource)) {
+                end++;
+            }
+            resources++;
+            List<Record> versions = new ArrayList<>();
+            for (Record version : rows.subList(start, end)) {
+                if (version.get("version").isNull()) {
+                    continue;
+                }
+                Value to = version.get("to");
+                if (cutoff != null && !to.isNull() && to.asZonedDateTime().isBefore(cutoff)) {
+                    deletedInstances.add(version.get("instance").asLong());
+                    expired++;
+                } else {
+                    versions.add(version);
+                }
+            }
+            merged += planMerges(versions, driver.defaultTypeSystem(), merges, deletedInstances);
+            start = end;
+        }
+        String lastResource = rows.get(rows.size() - 1).get("resource").asString();
+        if (!merges.isEmpty()) {
+            tx.run(EXTEND_VERSIONS, Map.of("merges", merges)).consume();
+        }
+        if (!deletedInstances.isEmpty()) {
+            tx.run(deleteInstances, Map.of("instances", deletedInstances)).consume();
+        }
+        if (expired > 0 || merged > 0) {
+            QueryAndParams signal = TBVWriteSignal.statementOf(Set.of(type), null);
+            tx.run(signal.query, signal.params).consume();
+        }
+        tx.run("MERGE (c:" + CHECKPOINT_LABEL + " {name: $name}) SET c.type = $type, c.after = $after, c.updated = datetime()",
+                Map.of("name", name, "type", type, "after", lastResource)).consume();
+        return new CompactionResult(resources, merged, expired, lastResource);
+    }
+
+    /**
+     * Finds runs of adjacent versions with identical content, in versions ordered by from.
+     *
+     * @return the number of versions merged into an earlier version
+     */
+    static long planMerges(List<Record> versions, TypeSystem typeSystem, List<Map<String, Object>> merges, List<Long> deletedInstances) {
+        long merged = 0;
+        int i = 0;
+        while (i < versions.size()) {
+            Record keep = versions.get(i);
+            String signature = signatureOf(keep, typeSystem);
+            Value to = keep.get("to");
+            List<Long> dropped = new ArrayList<>();
+            int j = i + 1;
+            while (j < versions.size() && to.equals(versions.get(j).get("from")) && signature.equals(signatureOf(versions.get(j), typeSystem))) {
+                dropped.add(versions.get(j).get("instance").asLong());
+                to = versions.get(j).get("to");
+                j++;
+            }
+            if (!dropped.isEmpty()) {
+                Map<String, Object> merge = new LinkedHashMap<>();
+                merge.put("keep", keep.get("version").asLong());
+                merge.put("keepInstance", keep.get("instance").asLong());
+                merge.put("to", to.isNull() ? null : to.asObject());
+                merge.put("dropped", dropped);
+                merges.add(merge);
+                deletedInstances.addAll(dropped);
+                merged += dropped.size();
+            }
+            i = j;
+        }
+        return merged;
+    }
+
+    /**
+     * @return a canonical representation of the content of a version, excluding the mirrored interval
+     */
+    static String signatureOf(Record version, TypeSystem typeSystem) {
+        StringBuilder sb = new StringBuilder();
+        appendCanonical(sb, version.get("labels"), typeSystem);
+        Value properties = version.get("properties");
+        TreeSet<String> keys = new TreeSet<>();
+        properties.keys().forEach(keys::add);
+        keys.remove("_from");
+        keys.remove("_to");
+        sb.append('{');
+        for (String key : keys) {
+            sb.append(key).append(':');
+            appendCanonical(sb, properties.get(key), typeSystem);
+            sb.append(',');
+        }
+        sb.append('}');
+        // embedded paths are collected in no particular order
+        TreeSet<String> paths = new TreeSet<>();
+        for (Value path : version.get("paths").values()) {
+            StringBuilder pathSignature = new StringBuilder();
+            appendCanonical(pathSignature, path, typeSystem);
+            paths.add(pathSignature.toString());
+        }
+        sb.append(paths);
+        return sb.toString();
+    }
+
+    static void appendCanonical(StringBuilder sb, Value value, TypeSystem typeSystem) {
+        if (value.hasType(typeSystem.MAP())) {
+            TreeSet<String> keys = new TreeSet<>();
+            value.keys().forEach(keys::add);
+            sb.append('{');
+            for (String key : keys) {
+                sb.append(key).append(':');
+                appendCanonical(sb, value.get(key), typeSystem);
+                sb.append(',');
+            }
+            sb.append('}');
+        } else if (value.hasType(typeSystem.LIST())) {
+            sb.append('[');
+            for (Value element : value.values()) {
+                appendCanonical(sb, element, typeSystem);
+                sb.append(',');
+            }
+            sb.append(']');
+        } else {
+            // the string form of a value includes its type, e.g. strings are quoted
+            sb.append(value);
+        }
+    }
+
+    public static class CompactionResult {
+        public final long resources;
+        public final long mergedVersions;
+        public final long expiredVersions;
+        final String lastResource;
+
+        CompactionResult(long resources, long mergedVersions, long expiredVersions, String lastResource) {
+            this.resources = resources;
+            this.mergedVersions = mergedVersions;
+            this.expiredVersions = expiredVersions;
+            this.lastResource = lastResource;
+        }
+
+        @Override
+        public String toString() {
+            return "CompactionResult{" +
+                    "resources=" + resources +
+                    ", mergedVersions=" + mergedVersions +
+                    ", expiredVersions=" + expiredVersions +
+                    '}';
+        }
+    }
+}
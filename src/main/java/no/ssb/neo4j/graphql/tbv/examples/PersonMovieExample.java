@@ -110,6 +110,25 @@ public class PersonMovieExample implements Example {
         );
     }
 
+    public Map<String, List<Map<String, Object>>> batchMutations() {
+        return Map.of(
+                "Movie", List.of(
+                        Map.of(
+                                "id", "m3",
+                                "title", "The Matrix Revolutions",
+                                "released", 2003,
+                                "tagline", "Everything that has a beginning has an end."
+                        ),
+                        Map.of(
+                                "id", "m4",
+                                "title", "The Matrix Resurrections",
+                                "released", 2021,
+                                "tagline", "Return to the source."
+                        )
+                )
+        );
+    }
+
     public List<QueryAndParams> queries() {
         return List.of(
                 new QueryAndParams("""
@@ -0,0 +1,68 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.neo4j.configuration.GraphDatabaseSettings;
+import org.neo4j.driver.AccessMode;
+import org.neo4j.driver.AuthTokens;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.GraphDatabase;
+import org.neo4j.driver.Record;
+import org.neo4j.harness.Neo4j;
+import org.neo4j.harness.Neo4jBuilders;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class AsyncCypherExecutorTest {
+
+    static Neo4j neo4j;
+    static Driver driver;
+    static ExecutorService continuations;
+
+    @BeforeAll
+    public static void startNeo4j() {
+        neo4j = Neo4jBuilders.newInProcessBuilder().withDisabledServer().withConfig(GraphDatabaseSettings.auth_enabled, false).build();
+        driver = GraphDatabase.driver(neo4j.boltURI(), AuthTokens.none());
+        continuations = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "test-continuation"));
+    }
+
+    @AfterAll
+    public static void stopNeo4j() {
+        driver.close();
+        neo4j.close();
+        continuations.shutdown();
+    }
+
+    @Test
+    public void thatStagesAreContinuedOnTheContinuationExecutor() {
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        Executor recording = runnable -> continuations.execute(() -> {
+            threads.add(Thread.currentThread().getName());
+            runnable.run();
+        });
+        // one slot, so that the second statement is queued and started by a continuation
+        AsyncCypherExecutor executor = new AsyncCypherExecutor(driver, 1, 10, TBVMetrics.NOOP, recording);
+        List<QueryAndParams> statements = List.of(
+                new QueryAndParams("RETURN $value AS value", Map.of("value", 1)),
+                new QueryAndParams("RETURN $value AS value", Map.of("value", 2)));
+
+        List<List<Record>> recordsByStatement = executor.executeReads(statements, new CausalChain()).toCompletableFuture().join();
+        assertEquals(1, recordsByStatement.get(0).get(0).get("value").asInt());
+        assertEquals(2, recordsByStatement.get(1).get(0).get("value").asInt());
+        assertEquals(Set.of("test-continuation"), threads);
+
+        recordsByStatement = executor.executeInTransaction(statements, AccessMode.READ, null).toCompletableFuture().join();
+        assertEquals(2, recordsByStatement.get(1).get(0).get("value").asInt());
+        assertEquals(0, executor.inFlight());
+        assertEquals(0, executor.queued());
+    }
+}
@@ -0,0 +1,32 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import org.junit.jupiter.api.Test;
+import org.neo4j.driver.Bookmark;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CausalChainTest {
+
+    @Test
+    public void thatChainIsCarriedAsEncodedBookmarks() {
+        CausalChain chain = CausalChain.decode("FB:a, FB:b");
+        assertEquals(List.of(Bookmark.from(Set.of("FB:a", "FB:b"))), chain.bookmarks());
+        assertEquals(Set.of("FB:a", "FB:b"), Set.of(chain.encode().split(",")));
+
+        assertEquals("", CausalChain.decode(null).encode());
+        assertEquals(List.of(), CausalChain.decode(" ").bookmarks());
+    }
+
+    @Test
+    public void thatWritesAdvanceTheChain() {
+        CausalChain chain = CausalChain.decode("FB:a");
+        chain.advance(Bookmark.from(Set.of("FB:c")));
+        assertEquals("FB:c", chain.encode());
+        // an empty bookmark, e.g. of a session without transactions, does not reset the chain
+        chain.advance(Bookmark.from(Set.of()));
+        assertEquals("FB:c", chain.encode());
+    }
+}
@@ -0,0 +1,65 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.SchemaParser;
+import no.ssb.neo4j.graphql.tbv.examples.MixMapAndArrayExample;
+import org.junit.jupiter.api.Test;
+import org.neo4j.graphql.Cypher;
+import org.neo4j.graphql.OptimizedQueryException;
+import org.neo4j.graphql.Translator;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class CypherCanonicalizerTest {
+
+    static Cypher cypher(String query, Map<String, Object> params) throws OptimizedQueryException {
+        // the type of a translated statement, which the canonicalizer passes through
+        GraphQLSchema schema = TBVSchemas.schemaOf(TBVSchemas.transformRegistry(new SchemaParser().parse(new MixMapAndArrayExample().getSDL())));
+        Cypher translated = new Translator(schema).translate("{ mixMapAndArray(id: \"m1\") { id } }", Map.of()).get(0);
+        return new Cypher(query, params, translated.component3());
+    }
+
+    @Test
+    public void thatStatementsOfSameShapeHaveSameText() throws OptimizedQueryException {
+        Object a = new String("a");
+        Object b = new String("b");
+        Cypher first = CypherCanonicalizer.canonicalize(cypher("""
+                MATCH (person:Person {id: $personId})
+                WHERE person.age > $personAge
+                RETURN person""", new LinkedHashMap<>(Map.of("personId", a, "personAge", 1))));
+        Cypher second = CypherCanonicalizer.canonicalize(cypher("""
+                MATCH (person:Person {id: $p_id})   WHERE person.age > $p_age RETURN person""", Map.of("p_id", b, "p_age", 2)));
+
+        assertEquals("MATCH (person:Person {id: $p0}) WHERE person.age > $p1 RETURN person", first.component1());
+        assertEquals(first.component1(), second.component1());
+        // values are moved, not copied
+        assertSame(a, first.component2().get("p0"));
+        assertSame(b, second.component2().get("p0"));
+        assertEquals(2, second.component2().get("p1"));
+    }
+
+    @Test
+    public void thatLiteralsAndReservedParametersAreUnchanged() throws OptimizedQueryException {
+        Cypher cypher = CypherCanonicalizer.canonicalize(cypher("""
+                MATCH (n {id: $id, name: 'a  $name'})-[:`has  $name`]->(m)
+                WHERE m._from <= $_version AND m.name = $name AND m.other = $unbound
+                RETURN n""", Map.of("id", "m1", "_version", "v", "name", "x", "p0", "y")));
+
+        assertEquals("MATCH (n {id: $id, name: 'a  $name'})-[:`has  $name`]->(m) WHERE m._from <= $_version AND m.name = $p1 AND m.other = $unbound RETURN n",
+                cypher.component1());
+        assertEquals(Map.of("id", "m1", "_version", "v", "p1", "x", "p0", "y"), cypher.component2());
+    }
+
+    @Test
+    public void thatStatementWithoutParametersIsOnlyCollapsed() throws OptimizedQueryException {
+        Cypher unchanged = cypher("MATCH (n) RETURN n", Map.of());
+        assertSame(unchanged, CypherCanonicalizer.canonicalize(unchanged));
+        assertEquals(List.of("MATCH (n) RETURN n"), CypherCanonicalizer.canonicalize(List.of(cypher(" MATCH (n)\n  RETURN n\n", Map.of())))
+                .stream().map(Cypher::component1).collect(java.util.stream.Collectors.toList()));
+    }
+}
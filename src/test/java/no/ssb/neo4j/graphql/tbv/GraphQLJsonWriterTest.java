@@ -0,0 +1,67 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.Scalars;
+import graphql.schema.GraphQLList;
+import graphql.schema.GraphQLNonNull;
+import org.junit.jupiter.api.Test;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Value;
+import org.neo4j.driver.Values;
+import org.neo4j.driver.internal.InternalRecord;
+import org.neo4j.driver.internal.types.InternalTypeSystem;
+import org.neo4j.driver.internal.value.MapValue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class GraphQLJsonWriterTest {
+
+    static Record record(String key, Object value) {
+        return new InternalRecord(List.of(key), new Value[]{Values.value(value)});
+    }
+
+    static Value map(Object... keysAndValues) {
+        Map<String, Value> map = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            map.put((String) keysAndValues[i], Values.value(keysAndValues[i + 1]));
+        }
+        return new MapValue(map);
+    }
+
+    @Test
+    public void thatNestedMapsListsAndTemporalsAreStreamed() throws IOException {
+        Value name = map("languageCode", "nb", "languageText", "Navn med \"sitat\"\n");
+        Value variable = map(
+                "id", "v1",
+                "name", List.of(name),
+                "size", 3L,
+                "valid", true,
+                "from", ZonedDateTime.of(2020, 1, 2, 3, 4, 5, 0, ZoneOffset.UTC),
+                "unitType", null);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new GraphQLJsonWriter(out, InternalTypeSystem.TYPE_SYSTEM)
+                .beginResponse()
+                .writeField("representedVariable", GraphQLList.list(Scalars.GraphQLString),
+                        List.of(record("representedVariable", variable), record("representedVariable", map("id", "v2"))).iterator())
+                .writeField("single", GraphQLNonNull.nonNull(Scalars.GraphQLString), List.of(record("single", "x")).iterator())
+                .writeField("missing", Scalars.GraphQLString, Collections.emptyIterator())
+                .endResponse();
+
+        assertEquals("{\"data\":{\"representedVariable\":[" +
+                        "{\"id\":\"v1\",\"name\":[{\"languageCode\":\"nb\",\"languageText\":\"Navn med \\\"sitat\\\"\\n\"}],\"size\":3,\"valid\":true,\"from\":\"2020-01-02T03:04:05Z\",\"unitType\":null}," +
+                        "{\"id\":\"v2\"}]," +
+                        "\"single\":\"x\"," +
+                        "\"missing\":null}}",
+                out.toString(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,44 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import static no.ssb.neo4j.graphql.tbv.TBVSchemas.replaceGroup;
+
+/**
+ * The regex based rewrites that {@link TBVCypherRewriter} replaced, kept as reference for equivalence tests and as
+ * baseline for benchmarks.
+ */
+class LegacyTBVRewrites {
+
+    static String rewriteQuery(String name, String type, String query) {
+        String result = replaceGroup(String.format("MATCH \\(%s:%s\\) WHERE( )", name, type), query, 1, " (_v.from <= $_version AND coalesce($_version < _v.to, true)) AND ");
+        return replaceGroup(String.format("MATCH (\\(%s:%s\\)) WHERE", name, type), result, 1, String.format("(_r:%s:RESOURCE)<-[_v:VERSION_OF]-(%s:%s:INSTANCE)", type + "_R", name, type));
+    }
+
+    static String rewriteCreate(String name, String type, String query) {
+        int indexOfReturnClause = query.lastIndexOf("WITH " + name + " RETURN");
+        StringBuilder sb = new StringBuilder();
+        sb.append("MERGE (r:").append(type).append("_R:RESOURCE {id: $id}) WITH r\n");
+        sb.append("OPTIONAL MATCH (r)<-[v:VERSION_OF {from: $_version}]-(m)-[*]->(e:EMBEDDED) DETACH DELETE m, e WITH r\n");
+        sb.append("OPTIONAL MATCH (r)<-[v:VERSION_OF]-() WHERE v.from <= $_version AND coalesce($_version < v.to, true) WITH r, v AS prevVersion\n");
+        sb.append("OPTIONAL MATCH (r)<-[v:VERSION_OF]-() WHERE v.from > $_version WITH r, prevVersion, min(v.from) AS nextVersionFrom\n");
+        sb.append(query, 0, indexOfReturnClause).append("\n");
+        sb.append("CREATE (r)-[v:VERSION_OF {from: $_version, to: coalesce(prevVersion.to, nextVersionFrom)}]->(").append(name).append(":").append(type).append(":INSTANCE").append(")\n");
+        sb.append("SET prevVersion.to = $_version\n");
+        sb.append(query.substring(indexOfReturnClause));
+        return sb.toString();
+    }
+
+    static String rewriteAdd(String targetType, String query, Map<String, ?> params) {
+        String modifiedTargetMatch = replaceGroup(String.format("MATCH \\([^ :)]+:(%s) \\{ [^ :)}]+: \\$[^ })]+ \\}\\)", targetType), query, 1, targetType + "_R:RESOURCE");
+        NavigableSet<String> keys = new TreeSet<>(params.keySet());
+        NavigableSet<String> toKeys = keys.subSet("to", true, "to~", false);
+        if (toKeys.size() >= 1) {
+            String firstToKey = toKeys.first();
+            return replaceGroup(String.format("MATCH \\([^ :)]+:%s( \\{ [^ :)}]+: \\$[^ })]+ \\}\\))", targetType + "_R:RESOURCE"), modifiedTargetMatch, 1, String.format(") WHERE to.id IN $%s", firstToKey));
+        }
+        return null;
+    }
+}
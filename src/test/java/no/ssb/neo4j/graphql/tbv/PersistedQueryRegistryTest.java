@@ -0,0 +1,83 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.language.Field;
+import graphql.parser.Parser;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.SchemaParser;
+import no.ssb.neo4j.graphql.tbv.examples.MixMapAndArrayExample;
+import org.junit.jupiter.api.Test;
+import org.neo4j.graphql.OptimizedQueryException;
+import org.neo4j.graphql.Translator;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PersistedQueryRegistryTest {
+
+    static PersistedQueryRegistry registry() {
+        GraphQLSchema schema = TBVSchemas.schemaOf(TBVSchemas.transformRegistry(new SchemaParser().parse(new MixMapAndArrayExample().getSDL())));
+        return new PersistedQueryRegistry(schema, new Translator(schema), 100);
+    }
+
+    @Test
+    public void thatRegisteredQueriesArePreTranslated() throws OptimizedQueryException {
+        PersistedQueryRegistry registry = registry();
+        QueryAndParams example = new MixMapAndArrayExample().queries().get(0);
+        PersistedQueryRegistry.PersistedQuery query = registry.register(example.query, example.params);
+
+        assertEquals(PersistedQueryRegistry.hashOf(example.query), query.hash);
+        assertTrue(registry.get(query.hash).isPresent());
+        assertEquals(List.of("mixMapAndArray"), query.rootFields.stream().map(Field::getName).collect(Collectors.toList()));
+        // without and with _version
+        assertEquals(2, registry.translationCache.misses());
+
+        Map<String, Object> variables = new LinkedHashMap<>();
+        variables.put("id", "2");
+        variables.put("_version", ZonedDateTime.of(2020, 2, 1, 0, 0, 0, 0, ZoneOffset.UTC));
+        query.translate(variables);
+        assertEquals(1, registry.translationCache.hits());
+        assertEquals(2, registry.translationCache.misses());
+    }
+
+    @Test
+    public void thatPreTranslatedStatementsAreKeptForWarmup() {
+        GraphQLSchema schema = TBVSchemas.schemaOf(TBVSchemas.transformRegistry(new SchemaParser().parse(new MixMapAndArrayExample().getSDL())));
+        PersistedQueryRegistry registry = new PersistedQueryRegistry(schema, new Translator(schema), 100, true);
+        QueryAndParams example = new MixMapAndArrayExample().queries().get(0);
+        registry.register(example.query, example.params);
+        registry.register(example.query + "\n", example.params);
+
+        // both documents share the statements of their shape, planned with a sample $_version
+        assertTrue(registry.writeShapeByQuery.isEmpty());
+        assertTrue(registry.readShapeByQuery.size() >= 1 && registry.readShapeByQuery.size() <= 2, registry.readShapeByQuery.keySet().toString());
+        registry.readShapeByQuery.values().forEach(cypher -> assertTrue(cypher.component2().containsKey("_version")));
+    }
+
+    @Test
+    public void thatInvalidDocumentsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> registry().register("{ mixMapAndArray { unknownField } }", Map.of()));
+    }
+
+    @Test
+    public void thatSampleVariablesAreDerivedFromDefinitions() {
+        Map<String, Object> variables = PersistedQueryRegistry.sampleVariablesOf(new Parser().parseDocument("query ($id: ID!, $first: Int, $ids: [String]) { person { age } }"));
+        assertEquals(List.of("id", "first", "ids"), List.copyOf(variables.keySet()));
+        assertEquals(String.class, variables.get("id").getClass());
+        assertEquals(Integer.class, variables.get("first").getClass());
+        assertNull(PersistedQueryRegistry.sampleVariablesOf(new Parser().parseDocument("query ($filter: _PersonFilter) { person { age } }")));
+    }
+
+    @Test
+    public void thatHashIsSha256OfText() {
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", PersistedQueryRegistry.hashOf(""));
+    }
+}
@@ -0,0 +1,82 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.parser.Parser;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.SchemaParser;
+import no.ssb.neo4j.graphql.tbv.examples.MixMapAndArrayExample;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class QueryCostAnalyzerTest {
+
+    static final String NESTED_QUERY = """
+            {
+              mixMapAndArray(first: 5) {
+                name {
+                  first
+                }
+                child(first: $children) {
+                  name
+                  friend {
+                    link(ver: $_version) {
+                      age
+                    }
+                  }
+                }
+              }
+            }""";
+
+    static GraphQLSchema schema() {
+        return TBVSchemas.schemaOf(TBVSchemas.transformRegistry(new SchemaParser().parse(new MixMapAndArrayExample().getSDL())));
+    }
+
+    @Test
+    public void thatListsMultiplyByFirstAndLinksAreWeighted() {
+        QueryCostAnalyzer analyzer = new QueryCostAnalyzer(schema(), 100, 10);
+        // 5 roots, 5 names, 5 * 10 children, 50 * 100 friends with a weighted link each
+        assertEquals(5 + 5 + 50 + 5000 + 50000, analyzer.cost(NESTED_QUERY, Map.of("children", 10)));
+        // without a value for first, the default list size applies
+        assertEquals(5 + 5 + 500 + 50000 + 500000, analyzer.cost(NESTED_QUERY, Map.of()));
+    }
+
+    @Test
+    public void thatEstimatedRootRowsReplaceFirstOfRootFields() {
+        QueryCostAnalyzer analyzer = new QueryCostAnalyzer(schema(), 100, 10);
+        // 2 roots as estimated by the planner, 2 names, 2 * 10 children, 20 * 100 friends with a weighted link each
+        assertEquals(2 + 2 + 20 + 2000 + 20000, analyzer.cost(new Parser().parseDocument(NESTED_QUERY), Map.of("children", 10), List.of(2L)));
+    }
+
+    @Test
+    public void thatFirstOfRootFieldsBoundsEstimatedRootRows() {
+        QueryCostAnalyzer analyzer = new QueryCostAnalyzer(schema(), 100, 10);
+        // the literal first of 5 bounds the 1000 rows estimated by the planner
+        assertEquals(5 + 5 + 50 + 5000 + 50000, analyzer.cost(new Parser().parseDocument(NESTED_QUERY), Map.of("children", 10), List.of(1000L)));
+        // a first from a variable is not known to the estimate, and is used instead
+        String variableFirst = NESTED_QUERY.replace("first: 5", "first: $first");
+        assertEquals(7 + 7 + 70 + 7000 + 70000, analyzer.cost(new Parser().parseDocument(variableFirst), Map.of("first", 7, "children", 10), List.of(2L)));
+    }
+
+    @Test
+    public void thatQueriesOverBudgetAreRejected() {
+        AdmissionController controller = new AdmissionController(new QueryCostAnalyzer(schema(), 100, 10), null, 100_000, AdmissionController.Mode.REJECT, 1, 0);
+        assertSame(AdmissionController.WITHIN_BUDGET, controller.admit(NESTED_QUERY, Map.of("children", 10)));
+        QueryRejectedException e = assertThrows(QueryRejectedException.class, () -> controller.admit(NESTED_QUERY, Map.of()));
+        assertEquals(550510, e.cost());
+        assertEquals(100_000, e.budget());
+    }
+
+    @Test
+    public void thatQueriesOverBudgetAreThrottled() {
+        AdmissionController controller = new AdmissionController(new QueryCostAnalyzer(schema(), 100, 10), null, 100_000, AdmissionController.Mode.THROTTLE, 1, 10);
+        try (AdmissionController.Permit permit = controller.admit(NESTED_QUERY, Map.of())) {
+            assertThrows(QueryRejectedException.class, () -> controller.admit(NESTED_QUERY, Map.of()));
+        }
+        controller.admit(NESTED_QUERY, Map.of()).close();
+    }
+}
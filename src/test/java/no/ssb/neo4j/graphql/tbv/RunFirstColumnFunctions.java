@@ -0,0 +1,42 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.procedure.Context;
+import org.neo4j.procedure.Name;
+import org.neo4j.procedure.UserFunction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The apoc functions the library resolves cypher directives with, for in-process databases without APOC. Register with
+ * withFunction(RunFirstColumnFunctions.class) of the harness builder.
+ */
+public class RunFirstColumnFunctions {
+
+    @Context
+    public Transaction tx;
+
+    @UserFunction("apoc.cypher.runFirstColumnSingle")
+    public Object runFirstColumnSingle(@Name("cypher") String statement, @Name("params") Map<String, Object> params) {
+        List<Object> values = runFirstColumnMany(statement, params);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    @UserFunction("apoc.cypher.runFirstColumnMany")
+    public List<Object> runFirstColumnMany(@Name("cypher") String statement, @Name("params") Map<String, Object> params) {
+        List<Object> values = new ArrayList<>();
+        try (Result result = tx.execute(statement, params)) {
+            String column = result.columns().get(0);
+            result.forEachRemaining(row -> values.add(row.get(column)));
+        }
+        return values;
+    }
+
+    @UserFunction("apoc.cypher.runFirstColumn")
+    public Object runFirstColumn(@Name("cypher") String statement, @Name("params") Map<String, Object> params, @Name(value = "expectMultipleValues", defaultValue = "true") boolean expectMultipleValues) {
+        return expectMultipleValues ? runFirstColumnMany(statement, params) : runFirstColumnSingle(statement, params);
+    }
+}
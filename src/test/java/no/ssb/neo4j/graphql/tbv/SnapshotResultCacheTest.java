@@ -0,0 +1,231 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.language.Document;
+import graphql.parser.Parser;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.SchemaParser;
+import no.ssb.neo4j.graphql.tbv.examples.MixMapAndArrayExample;
+import no.ssb.neo4j.graphql.tbv.examples.PersonMovieExample;
+import org.junit.jupiter.api.Test;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Value;
+import org.neo4j.driver.Values;
+import org.neo4j.driver.internal.InternalRecord;
+import org.neo4j.driver.internal.types.InternalTypeSystem;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SnapshotResultCacheTest {
+
+    static final Document QUERY = new Parser().parseDocument("""
+            {
+              mixMapAndArray(id: $id) {
+                name {
+                  first
+                }
+                child {
+                  friend {
+                    link(ver: $_version) {
+                      age
+                    }
+                  }
+                }
+              }
+            }""");
+
+    static final ZonedDateTime JANUARY = ZonedDateTime.of(2020, 1, 31, 0, 0, 0, 0, ZoneOffset.UTC);
+    static final ZonedDateTime FEBRUARY = ZonedDateTime.of(2020, 2, 29, 0, 0, 0, 0, ZoneOffset.UTC);
+    static final ZonedDateTime MARCH = ZonedDateTime.of(2020, 3, 31, 0, 0, 0, 0, ZoneOffset.UTC);
+
+    static SnapshotResultCache cache(int maxEntries, long maxWeight) {
+        GraphQLSchema schema = TBVSchemas.schemaOf(TBVSchemas.transformRegistry(new SchemaParser().parse(new MixMapAndArrayExample().getSDL())));
+        return new SnapshotResultCache(schema, InternalTypeSystem.TYPE_SYSTEM, maxEntries, maxWeight);
+    }
+
+    static List<QueryAndParams> statements(String id, ZonedDateTime version) {
+        return List.of(new QueryAndParams("MATCH (mixMapAndArray:MixMapAndArray) RETURN mixMapAndArray", Map.of("id", id, "_version", version)));
+    }
+
+    static List<List<Record>> results(String name) {
+        return List.of(List.of(new InternalRecord(List.of("mixMapAndArray"), new Value[]{Values.value(Map.of("name", name))})));
+    }
+
+    @Test
+    public void thatTypesReadAndWrittenAreFoundInDocument() {
+        SnapshotResultCache cache = cache(10, 1000);
+        assertEquals(Set.of("MixMapAndArray", "Person"), cache.typesOf(QUERY));
+        assertEquals(Map.of("MixMapAndArray", MARCH), cache.versionsWrittenBy(new Parser().parseDocument("""
+                mutation {
+                  createMixMapAndArray(id: "m1") {
+                    id
+                  }
+                }"""), MARCH));
+    }
+
+    @Test
+    public void thatAddMutationInvalidatesEverySnapshotOfType() {
+        GraphQLSchema schema = TBVSchemas.schemaOf(TBVSchemas.transformRegistry(new SchemaParser().parse(new PersonMovieExample().getSDL())));
+        SnapshotResultCache cache = new SnapshotResultCache(schema, InternalTypeSystem.TYPE_SYSTEM, 10, 1000);
+        Set<String> types = Set.of("Person", "Movie");
+        cache.onWrite("Person", MARCH);
+        cache.onWrite("Movie", MARCH);
+        cache.put(types, JANUARY, statements("ne", JANUARY), results("a"), cache.generation());
+        assertNotNull(cache.get(types, JANUARY, statements("ne", JANUARY)));
+
+        // the add mutation links every existing version of the person, it is not appended at the version of the document
+        Map<String, ZonedDateTime> versionsWritten = cache.versionsWrittenBy(new Parser().parseDocument("""
+                mutation {
+                  addPersonActedIn(id: "ne", actedIn: ["m1"]) {
+                    id
+                  }
+                }"""), MARCH.plusDays(1));
+        assertEquals(Collections.singletonMap("Person", null), versionsWritten);
+        List<QueryAndParams> signals = TBVWriteSignal.statementsOf(versionsWritten);
+        assertEquals(1, signals.size());
+        assertNull(signals.get(0).params.get("version"));
+
+        versionsWritten.forEach(cache::onWrite);
+        assertNull(cache.get(types, JANUARY, statements("ne", JANUARY)));
+    }
+
+    @Test
+    public void thatOnlyDocumentsResolvingEveryLinkAtVersionAreCacheable() {
+        SnapshotResultCache cache = cache(10, 1000);
+        assertTrue(cache.isCacheable(QUERY));
+        // links without ver read the current version, and links at another ver are not known to be stable
+        assertFalse(cache.isCacheable(new Parser().parseDocument("""
+                {
+                  mixMapAndArray(id: $id) {
+                    child {
+                      friend {
+                        link {
+                          age
+                        }
+                      }
+                    }
+                  }
+                }""")));
+        assertFalse(cache.isCacheable(new Parser().parseDocument("""
+                query ($other: _Neo4jDateTimeInput) {
+                  mixMapAndArray(id: $id) {
+                    child {
+                      friend {
+                        link(ver: $other) {
+                          age
+                        }
+                      }
+                    }
+                  }
+                }""")));
+        assertFalse(cache.isCacheable(new Parser().parseDocument("""
+                {
+                  personHistory(id: "p1") {
+                    age
+                  }
+                }""")));
+    }
+
+    @Test
+    public void thatSignalledWritesOfOtherWritersInvalidate() {
+        SnapshotResultCache cache = cache(10, 1000);
+        Set<String> types = cache.typesOf(QUERY);
+        cache.applySignal(new TBVWriteSignal.State("MixMapAndArray", MARCH, 0, null));
+        cache.applySignal(new TBVWriteSignal.State("Person", MARCH, 0, null));
+        cache.put(types, JANUARY, statements("p1", JANUARY), results("a"), cache.generation());
+        cache.put(types, FEBRUARY, statements("p1", FEBRUARY), results("b"), cache.generation());
+        assertEquals(2, cache.size());
+
+        // one backdated write by another writer since the previous refresh
+        cache.applySignal(new TBVWriteSignal.State("Person", MARCH, 1, FEBRUARY.minusDays(1)));
+        assertNotNull(cache.get(types, JANUARY, statements("p1", JANUARY)));
+        assertNull(cache.get(types, FEBRUARY, statements("p1", FEBRUARY)));
+
+        // unchanged signal
+        cache.applySignal(new TBVWriteSignal.State("Person", MARCH, 1, FEBRUARY.minusDays(1)));
+        assertEquals(1, cache.size());
+
+        // several invalidations since the previous refresh, such as removal of versions by compaction
+        cache.applySignal(new TBVWriteSignal.State("MixMapAndArray", MARCH, 2, FEBRUARY));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void thatOnlyVersionsOlderThanHighWaterMarkAreCached() {
+        SnapshotResultCache cache = cache(10, 1000);
+        Set<String> types = cache.typesOf(QUERY);
+        cache.onWrite("MixMapAndArray", MARCH);
+
+        // Person has no known versions yet, its snapshot at February may still change
+        cache.put(types, FEBRUARY, statements("p1", FEBRUARY), results("a"), cache.generation());
+        assertEquals(0, cache.size());
+
+        cache.onWrite("Person", FEBRUARY);
+        cache.put(types, FEBRUARY, statements("p1", FEBRUARY), results("a"), cache.generation());
+        assertEquals(0, cache.size());
+
+        cache.put(types, JANUARY, statements("p1", JANUARY), results("a"), cache.generation());
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get(types, JANUARY, statements("p1", JANUARY)));
+        assertNull(cache.get(types, JANUARY, statements("p2", JANUARY)));
+        assertNull(cache.get(types, null, statements("p1", JANUARY)));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.ineligible());
+    }
+
+    @Test
+    public void thatBackdatedWriteInvalidatesLaterSnapshotsOfType() {
+        SnapshotResultCache cache = cache(10, 1000);
+        Set<String> types = cache.typesOf(QUERY);
+        cache.onWrite("MixMapAndArray", MARCH);
+        cache.onWrite("Person", MARCH);
+        long generation = cache.generation();
+        cache.put(types, JANUARY, statements("p1", JANUARY), results("a"), generation);
+        cache.put(types, FEBRUARY, statements("p1", FEBRUARY), results("b"), generation);
+
+        // appending after the high-water mark does not change any snapshot
+        cache.onWrite("Person", MARCH.plusDays(1));
+        assertEquals(2, cache.size());
+        assertEquals(generation, cache.generation());
+
+        cache.onWrite("Person", FEBRUARY.minusDays(1));
+        assertNotNull(cache.get(types, JANUARY, statements("p1", JANUARY)));
+        assertNull(cache.get(types, FEBRUARY, statements("p1", FEBRUARY)));
+        assertEquals(1, cache.invalidations());
+
+        // results executed before the invalidation are stale
+        cache.put(types, FEBRUARY, statements("p1", FEBRUARY), results("b"), generation);
+        assertNull(cache.get(types, FEBRUARY, statements("p1", FEBRUARY)));
+    }
+
+    @Test
+    public void thatLeastRecentlyUsedIsEvictedBeyondWeight() {
+        SnapshotResultCache cache = cache(10, 5);
+        Set<String> types = cache.typesOf(QUERY);
+        cache.onWrite("MixMapAndArray", MARCH);
+        cache.onWrite("Person", MARCH);
+        // each result weighs 2, the map and its name
+        cache.put(types, JANUARY, statements("p1", JANUARY), results("a"), cache.generation());
+        cache.put(types, JANUARY, statements("p2", JANUARY), results("b"), cache.generation());
+        assertNotNull(cache.get(types, JANUARY, statements("p1", JANUARY)));
+        cache.put(types, JANUARY, statements("p3", JANUARY), results("c"), cache.generation());
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.evictions());
+        assertTrue(cache.weight() <= 5);
+        assertNotNull(cache.get(types, JANUARY, statements("p1", JANUARY)));
+        assertNull(cache.get(types, JANUARY, statements("p2", JANUARY)));
+        assertFalse(cache.isSnapshot(types, MARCH));
+    }
+}
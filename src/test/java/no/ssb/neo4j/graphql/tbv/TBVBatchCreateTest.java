@@ -0,0 +1,38 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TBVBatchCreateTest {
+
+    @Test
+    public void thatCreateStatementIsConvertedToRowScopedUnwind() {
+        TBVCypherRewriter rewriter = new TBVCypherRewriter(TBVConfig.defaults());
+        String create = rewriter.rewriteCreate("createMovie", "Movie", "CREATE (createMovie:Movie { id: $createMovieId, title: $createMovieTitle }) WITH createMovie RETURN createMovie { .id } AS createMovie");
+        assertEquals("""
+                UNWIND $_rows AS _row
+                MERGE (r:Movie_R:RESOURCE {id: _row.id}) WITH _row, r
+                OPTIONAL MATCH (r)<-[v:VERSION_OF {from: $_version}]-(m)-[*]->(e:EMBEDDED) DETACH DELETE m, e WITH _row, r
+                OPTIONAL MATCH (r)<-[v:VERSION_OF]-(i) WHERE v.from <= $_version AND coalesce($_version < v.to, true) WITH _row, r, v AS prevVersion, i AS prevInstance
+                OPTIONAL MATCH (r)<-[v:VERSION_OF]-() WHERE v.from > $_version WITH _row, r, prevVersion, prevInstance, min(v.from) AS nextVersionFrom
+                OPTIONAL MATCH (r)-[c:CURRENT]->() WHERE nextVersionFrom IS NULL DELETE c WITH _row, r, prevVersion, prevInstance, nextVersionFrom
+                CREATE (createMovie:Movie { id: _row.createMovieId, title: _row.createMovieTitle })\s
+                CREATE (r)<-[v:VERSION_OF {from: $_version, to: coalesce(prevVersion.to, nextVersionFrom)}]-(createMovie)
+                SET createMovie:INSTANCE, createMovie._from = v.from, createMovie._to = v.to
+                SET prevVersion.to = $_version, prevInstance._to = $_version
+                FOREACH (latest IN CASE WHEN nextVersionFrom IS NULL THEN [1] ELSE [] END | CREATE (r)-[:CURRENT]->(createMovie))
+                WITH createMovie RETURN createMovie { .id } AS createMovie""", rewriter.rewriteCreateRows("createMovie", "Movie", create, Set.of("id", "createMovieId", "createMovieTitle")));
+        assertThrows(IllegalArgumentException.class, () -> rewriter.rewriteCreateRows("createPerson", "Person", create, Set.of("id")));
+    }
+
+    @Test
+    public void thatCreateDocumentHasOneArgumentPerField() {
+        Set<String> fields = new TreeSet<>(Set.of("title", "id"));
+        assertEquals("mutation { createMovie(id: $id, title: $title) { id } }", TBVBatchCreate.createDocument("Movie", fields));
+    }
+}
@@ -0,0 +1,180 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.schema.idl.SchemaParser;
+import graphql.schema.idl.TypeDefinitionRegistry;
+import no.ssb.neo4j.graphql.tbv.examples.MixMapAndArrayExample;
+import org.junit.jupiter.api.Test;
+import org.neo4j.graphql.OptimizedQueryException;
+import org.neo4j.graphql.Translator;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TBVCypherRewriterTest {
+
+    static final String QUERY = "MATCH (person:Person) WHERE person.name STARTS WITH $personNameStartsWith RETURN person { .name, actedIn:[(person)-[:ACTED_IN]->(personActedIn:Movie) | personActedIn { .title }][0..5] } AS person SKIP $personOffset LIMIT $personFirst";
+    static final String CREATE = "CREATE (createPerson:Person { id: $createPersonId, name: $createPersonName }) WITH createPerson RETURN createPerson { .id } AS createPerson";
+    static final String ADD = "MATCH (from:Person { id: $fromId }) MATCH (to:Movie { id: $toActedIn }) MERGE (from)-[:ACTED_IN]->(to) WITH DISTINCT from AS addPersonActedIn RETURN addPersonActedIn { .id } AS addPersonActedIn";
+
+    final TBVCypherRewriter rewriter = new TBVCypherRewriter(TBVConfig.defaults());
+
+    @Test
+    public void thatQueryRewriteIsEquivalentToRegexRewrite() {
+        assertEquals(LegacyTBVRewrites.rewriteQuery("person", "Person", QUERY), rewriter.rewriteQuery("person", "Person", QUERY));
+        assertEquals(LegacyTBVRewrites.rewriteQuery("movie", "Movie", QUERY), rewriter.rewriteQuery("movie", "Movie", QUERY));
+    }
+
+    @Test
+    public void thatCreateRewriteLinksInstanceIntoVersionChainAndMovesCurrent() {
+        assertEquals("""
+                MERGE (r:Person_R:RESOURCE {id: $id}) WITH r
+                OPTIONAL MATCH (r)<-[v:VERSION_OF {from: $_version}]-(m)-[*]->(e:EMBEDDED) DETACH DELETE m, e WITH r
+                OPTIONAL MATCH (r)<-[v:VERSION_OF]-(i) WHERE v.from <= $_version AND coalesce($_version < v.to, true) WITH r, v AS prevVersion, i AS prevInstance
+                OPTIONAL MATCH (r)<-[v:VERSION_OF]-() WHERE v.from > $_version WITH r, prevVersion, prevInstance, min(v.from) AS nextVersionFrom
+                OPTIONAL MATCH (r)-[c:CURRENT]->() WHERE nextVersionFrom IS NULL DELETE c WITH r, prevVersion, prevInstance, nextVersionFrom
+                CREATE (createPerson:Person { id: $createPersonId, name: $createPersonName })\s
+                CREATE (r)<-[v:VERSION_OF {from: $_version, to: coalesce(prevVersion.to, nextVersionFrom)}]-(createPerson)
+                SET createPerson:INSTANCE, createPerson._from = v.from, createPerson._to = v.to
+                SET prevVersion.to = $_version, prevInstance._to = $_version
+                FOREACH (latest IN CASE WHEN nextVersionFrom IS NULL THEN [1] ELSE [] END | CREATE (r)-[:CURRENT]->(createPerson))
+                WITH createPerson RETURN createPerson { .id } AS createPerson""", rewriter.rewriteCreate("createPerson", "Person", CREATE));
+    }
+
+    @Test
+    public void thatAddRewriteIsEquivalentToRegexRewrite() {
+        Map<String, Object> params = Map.of("fromId", "ne", "toActedIn", List.of("m1", "m2"));
+        assertEquals(LegacyTBVRewrites.rewriteAdd("Movie", ADD, params), rewriter.rewriteAdd("Movie", ADD, params));
+        assertEquals(LegacyTBVRewrites.rewriteAdd("Person", ADD, params), rewriter.rewriteAdd("Person", ADD, params));
+        assertEquals(LegacyTBVRewrites.rewriteAdd("Movie", ADD, Map.of("fromId", "ne")), rewriter.rewriteAdd("Movie", ADD, Map.of("fromId", "ne")));
+    }
+
+    @Test
+    public void thatSentinelModeUsesPlainRangePredicates() {
+        TBVCypherRewriter sentinelRewriter = new TBVCypherRewriter(TBVConfig.defaults().withOpenIntervalSentinel(true));
+        assertEquals("MATCH (_r:Person_R:RESOURCE)<-[_v:VERSION_OF]-(person:Person:INSTANCE) WHERE (person._from <= $_version AND $_version < person._to AND _v.from <= $_version AND $_version < _v.to) AND person.name STARTS WITH $personNameStartsWith RETURN person { .name, actedIn:[(person)-[:ACTED_IN]->(personActedIn:Movie) | personActedIn { .title }][0..5] } AS person SKIP $personOffset LIMIT $personFirst",
+                sentinelRewriter.rewriteQuery("person", "Person", QUERY));
+        String create = sentinelRewriter.rewriteCreate("createPerson", "Person", CREATE);
+        assertTrue(create.contains("WHERE v.from <= $_version AND $_version < v.to WITH r, v AS prevVersion"));
+        assertTrue(create.contains("to: coalesce(prevVersion.to, nextVersionFrom, " + TBVConfig.OPEN_INTERVAL_END + ")"));
+    }
+
+    @Test
+    public void thatQueryWithoutWhereClauseIsVersioned() {
+        assertEquals("MATCH (_r:Person_R:RESOURCE)<-[_v:VERSION_OF]-(person:Person:INSTANCE) WHERE (_v.from <= $_version AND coalesce($_version < _v.to, true)) RETURN person { .name } AS person",
+                rewriter.rewriteQuery("person", "Person", "MATCH (person:Person) RETURN person { .name } AS person"));
+    }
+
+    @Test
+    public void thatCurrentQueryMatchesThroughCurrentRelationship() {
+        assertEquals("MATCH (_r:Person_R:RESOURCE)-[:CURRENT]->(person:Person:INSTANCE) WHERE person.name STARTS WITH $personNameStartsWith RETURN person { .name, actedIn:[(person)-[:ACTED_IN]->(personActedIn:Movie) | personActedIn { .title }][0..5] } AS person SKIP $personOffset LIMIT $personFirst",
+                rewriter.rewriteCurrentQuery("person", "Person", QUERY));
+    }
+
+    @Test
+    public void thatAfterSeeksPastCursorAndOrdersById() {
+        String versioned = rewriter.rewriteQuery("person", "Person", QUERY);
+        assertEquals("MATCH (_r:Person_R:RESOURCE)<-[_v:VERSION_OF]-(person:Person:INSTANCE) WHERE _r.id > $personAfter AND (_v.from <= $_version AND coalesce($_version < _v.to, true)) AND person.name STARTS WITH $personNameStartsWith RETURN person { .name, actedIn:[(person)-[:ACTED_IN]->(personActedIn:Movie) | personActedIn { .title }][0..5] } AS person ORDER BY _r.id SKIP $personOffset LIMIT $personFirst",
+                rewriter.rewriteAfter("person", "Person", versioned, "personAfter"));
+        assertEquals("MATCH (_r:Person_R:RESOURCE)-[:CURRENT]->(person:Person:INSTANCE) WHERE _r.id > $personAfter RETURN person { .name } AS person ORDER BY _r.id LIMIT $personFirst",
+                rewriter.rewriteAfter("person", "Person", rewriter.rewriteCurrentQuery("person", "Person", "MATCH (person:Person) RETURN person { .name } AS person LIMIT $personFirst"), "personAfter"));
+        // the first page is ordered the same way
+        assertEquals("MATCH (_r:Person_R:RESOURCE)-[:CURRENT]->(person:Person:INSTANCE) RETURN person { .name } AS person ORDER BY _r.id",
+                rewriter.rewriteAfter("person", "Person", rewriter.rewriteCurrentQuery("person", "Person", "MATCH (person:Person) RETURN person { .name } AS person"), null));
+        assertThrows(IllegalArgumentException.class, () -> rewriter.rewriteAfter("person", "Person",
+                rewriter.rewriteCurrentQuery("person", "Person", "MATCH (person:Person) RETURN person { .name } AS person ORDER BY person.name ASC"), "personAfter"));
+    }
+
+    @Test
+    public void thatAfterFailsWhenRootIsNotFound() {
+        // not rewritten to match the versioned instance
+        assertThrows(IllegalStateException.class, () -> rewriter.rewriteAfter("person", "Person", QUERY, "personAfter"));
+        // returned under another alias
+        assertThrows(IllegalStateException.class, () -> rewriter.rewriteAfter("person", "Person",
+                rewriter.rewriteCurrentQuery("person", "Person", "MATCH (person:Person) RETURN person { .name } AS personName"), "personAfter"));
+    }
+
+    @Test
+    public void thatHistoryMatchesVersionsOfResourceInWindow() {
+        assertEquals("MATCH (_r:Person_R:RESOURCE {id: $personHistoryId})<-[_v:VERSION_OF]-(personHistory:Person:INSTANCE) WHERE ($personHistoryFrom IS NULL OR coalesce(_v.to > datetime($personHistoryFrom), true)) AND ($personHistoryTo IS NULL OR _v.from < datetime($personHistoryTo)) WITH personHistory, _v ORDER BY _v.from RETURN personHistory { .age } AS personHistory",
+                rewriter.rewriteHistory("personHistory", "Person", "UNWIND apoc.cypher.runFirstColumnMany(\"MATCH (n) RETURN n\", {id: $personHistoryId}) AS personHistory RETURN personHistory { .age } AS personHistory"));
+        assertThrows(IllegalStateException.class, () -> rewriter.rewriteHistory("personHistory", "Person", "MATCH (person:Person) RETURN person { .age } AS person"));
+    }
+
+    static final TBVConfig INLINE_LINKS = TBVConfig.defaults().withInlineLinks(true);
+
+    /**
+     * Translates a query on the example schema transformed for inline links. With the default options the link field
+     * is left as rendered by the library, with the options for inline links it is rewritten by the schema.
+     */
+    static String translate(TBVConfig config, String query) throws OptimizedQueryException {
+        TypeDefinitionRegistry registry = TBVSchemas.transformRegistry(new SchemaParser().parse(new MixMapAndArrayExample().getSDL()), INLINE_LINKS);
+        ZonedDateTime version = ZonedDateTime.of(2020, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+        return new Translator(TBVSchemas.schemaOf(registry, config)).translate(query, Map.of("id", "1", "_version", version)).get(0).component1();
+    }
+
+    static Matcher linkRelationOf(String query) {
+        Matcher m = TBVCypherRewriter.RELATION_PATTERN.matcher(query);
+        while (m.find()) {
+            if (m.group(2).equals("link") && m.group(4).equals("Person")) {
+                return m;
+            }
+        }
+        throw new AssertionError("No link relation in " + query);
+    }
+
+    static TBVCypherRewriter inlineRewriter() {
+        TBVCypherRewriter inlineRewriter = new TBVCypherRewriter(INLINE_LINKS);
+        inlineRewriter.addLink("link", "Person");
+        return inlineRewriter;
+    }
+
+    @Test
+    public void thatInlineLinkIsResolvedThroughVersionChain() throws OptimizedQueryException {
+        String query = new MixMapAndArrayExample().queries().get(0).query;
+        String translated = translate(TBVConfig.defaults(), query);
+        Matcher link = linkRelationOf(translated);
+        String parent = link.group(1);
+        String node = link.group(3);
+        // the ver argument is rendered by the library as a property filter of the comprehension
+        String verFilter = " WHERE " + node + ".ver = ";
+        assertTrue(translated.startsWith(verFilter, link.end()), translated);
+        int filterEnd = translated.indexOf(" | ", link.end());
+        String version = translated.substring(link.end() + verFilter.length(), filterEnd);
+
+        String rewritten = inlineRewriter().rewriteLinks(translated);
+        assertEquals(translated.substring(0, link.start())
+                        + "(" + parent + ")-[:link]->(" + node + "_r:Person_R:RESOURCE)<-[" + node + "_v:VERSION_OF]-(" + node + ":Person:INSTANCE)"
+                        + " WHERE CASE WHEN " + version + " IS NULL THEN exists((" + node + "_r)-[:CURRENT]->(" + node + "))"
+                        + " ELSE " + node + "_v.from <= " + version + " AND coalesce(" + version + " < " + node + "_v.to, true) END"
+                        + translated.substring(filterEnd),
+                rewritten);
+        assertEquals(rewritten, translate(INLINE_LINKS, query));
+
+        // other filters of the field are kept
+        String filtered = inlineRewriter().rewriteLinks(translated.replace(verFilter, " WHERE " + node + ".age = $age AND " + node + ".ver = "));
+        assertTrue(filtered.contains(" END AND " + node + ".age = $age | "), filtered);
+    }
+
+    @Test
+    public void thatInlineLinkWithoutVersionFollowsCurrentRelationship() throws OptimizedQueryException {
+        String query = new MixMapAndArrayExample().queries().get(0).query.replace("link (ver:$_version)", "link");
+        String translated = translate(TBVConfig.defaults(), query);
+        Matcher link = linkRelationOf(translated);
+
+        String rewritten = inlineRewriter().rewriteLinks(translated);
+        assertEquals(translated.substring(0, link.start())
+                        + "(" + link.group(1) + ")-[:link]->(:Person_R:RESOURCE)-[:CURRENT]->(" + link.group(3) + ":Person:INSTANCE)"
+                        + translated.substring(link.end()),
+                rewritten);
+        assertEquals(rewritten, translate(INLINE_LINKS, query));
+        // relations that are not links are left unchanged
+        assertEquals(QUERY, inlineRewriter().rewriteLinks(QUERY));
+    }
+}
@@ -0,0 +1,38 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.parser.Parser;
+import org.junit.jupiter.api.Test;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TBVGraphQLServiceTest {
+
+    @Test
+    public void thatVersionIsTakenFromVariableBeforeHeader() {
+        ZonedDateTime variable = ZonedDateTime.of(2020, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+        assertEquals(variable, TBVGraphQLService.versionOf("2020-01-01T00:00:00Z", "2021-01-01T00:00:00Z", false));
+        assertEquals(variable.plusYears(1), TBVGraphQLService.versionOf(null, "2021-01-01T00:00:00Z", false));
+    }
+
+    @Test
+    public void thatMissingVersionReadsCurrentAndWritesNow() {
+        assertNull(TBVGraphQLService.versionOf(null, null, false));
+        assertNull(TBVGraphQLService.versionOf("now", null, false));
+        assertNotNull(TBVGraphQLService.versionOf(null, null, true));
+        assertThrows(IllegalArgumentException.class, () -> TBVGraphQLService.versionOf("yesterday", null, false));
+    }
+
+    @Test
+    public void thatOperationTypeIsDetected() {
+        assertTrue(TBVGraphQLService.isMutation(new Parser().parseDocument("mutation { createPerson(id: \"1\") { id } }")));
+        assertFalse(TBVGraphQLService.isMutation(new Parser().parseDocument("{ person { id } }")));
+    }
+}
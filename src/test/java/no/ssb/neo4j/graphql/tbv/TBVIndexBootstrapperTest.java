@@ -0,0 +1,79 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.schema.idl.SchemaParser;
+import graphql.schema.idl.TypeDefinitionRegistry;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.neo4j.configuration.GraphDatabaseSettings;
+import org.neo4j.driver.AuthTokens;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.GraphDatabase;
+import org.neo4j.driver.Session;
+import org.neo4j.harness.Neo4j;
+import org.neo4j.harness.Neo4jBuilders;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TBVIndexBootstrapperTest {
+
+    static Neo4j neo4j;
+    static Driver driver;
+    static TypeDefinitionRegistry registry;
+
+    @BeforeAll
+    public static void startNeo4j() {
+        neo4j = Neo4jBuilders.newInProcessBuilder().withDisabledServer().withConfig(GraphDatabaseSettings.auth_enabled, false).build();
+        driver = GraphDatabase.driver(neo4j.boltURI(), AuthTokens.none());
+        registry = TBVSchemas.transformRegistry(new SchemaParser().parse("""
+                type Person @domain {
+                  id: ID!
+                  age: Int
+                }
+                """));
+    }
+
+    @AfterAll
+    public static void stopNeo4j() {
+        driver.close();
+        neo4j.close();
+    }
+
+    @BeforeEach
+    public void dropSchema() {
+        try (Session session = driver.session()) {
+            for (String name : session.run("CALL db.constraints() YIELD name RETURN name").list(record -> record.get("name").asString())) {
+                session.run("DROP CONSTRAINT " + name).consume();
+            }
+            for (String name : session.run("CALL db.indexes() YIELD name RETURN name").list(record -> record.get("name").asString())) {
+                session.run("DROP INDEX " + name).consume();
+            }
+        }
+    }
+
+    static List<String> namesOf(List<TBVIndexBootstrapper.SchemaObject> schemaObjects) {
+        return schemaObjects.stream().map(schemaObject -> schemaObject.name).collect(Collectors.toList());
+    }
+
+    @Test
+    public void thatIndexOnToIsOnlyCreatedWithOpenIntervalSentinel() {
+        assertEquals(List.of("tbv_TBV_WRITES_type", "tbv_Person_R_id", "tbv_Person_from"),
+                namesOf(new TBVIndexBootstrapper(registry).apply(driver)));
+        assertEquals(List.of("tbv_Person_to"),
+                namesOf(new TBVIndexBootstrapper(registry, TBVConfig.defaults().withOpenIntervalSentinel(true)).apply(driver)));
+    }
+
+    @Test
+    public void thatExistingSchemaObjectsAreRecognizedByLabelAndProperty() {
+        try (Session session = driver.session()) {
+            session.run("CREATE CONSTRAINT person_resource_id ON (r:Person_R) ASSERT r.id IS UNIQUE").consume();
+            session.run("CREATE INDEX person_from FOR (n:Person) ON (n._from)").consume();
+        }
+        assertEquals(List.of("tbv_TBV_WRITES_type"), namesOf(new TBVIndexBootstrapper(registry).apply(driver)));
+        assertEquals(List.of(), namesOf(new TBVIndexBootstrapper(registry).apply(driver)));
+    }
+}
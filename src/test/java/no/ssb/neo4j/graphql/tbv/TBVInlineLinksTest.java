@@ -0,0 +1,131 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.schema.idl.SchemaParser;
+import no.ssb.neo4j.graphql.tbv.examples.MixMapAndArrayExample;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.neo4j.configuration.GraphDatabaseSettings;
+import org.neo4j.driver.AuthTokens;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.GraphDatabase;
+import org.neo4j.driver.Session;
+import org.neo4j.graphql.Cypher;
+import org.neo4j.graphql.OptimizedQueryException;
+import org.neo4j.graphql.Translator;
+import org.neo4j.harness.Neo4j;
+import org.neo4j.harness.Neo4jBuilders;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Runs the query of the example with link fields resolved by the cypher directive and by the inline rewrite, and
+ * compares the results.
+ */
+public class TBVInlineLinksTest {
+
+    static final ZonedDateTime T1 = ZonedDateTime.of(2020, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+    static final ZonedDateTime T2 = T1.plusDays(1);
+
+    /**
+     * A resource of the example with friends linking to p1, which has two versions, and to p2, which has no version
+     * valid at t1.
+     */
+    static final String DATA = """
+            CREATE (m:MixMapAndArray_R:RESOURCE {id: '1'})<-[:VERSION_OF {from: $t1}]-(mi:MixMapAndArray:INSTANCE {id: '1', _from: $t1})
+            CREATE (m)-[:CURRENT]->(mi)
+            CREATE (mi)-[:name]->(:Name:EMBEDDED {first: 'Mix'})
+            CREATE (mi)-[:child]->(c:Child:EMBEDDED {name: 'c1', born: '2010'})
+            CREATE (p1:Person_R:RESOURCE {id: 'p1'}), (p2:Person_R:RESOURCE {id: 'p2'})
+            CREATE (c)-[:friend]->(:Friend:EMBEDDED {since: '2019'})-[:link]->(p1)
+            CREATE (c)-[:friend]->(:Friend:EMBEDDED {since: '2020'})-[:link]->(p2)
+            CREATE (p1)<-[:VERSION_OF {from: $t1, to: $t2}]-(:Person:INSTANCE {age: 41, _from: $t1, _to: $t2})-[:name]->(:Name:EMBEDDED {first: 'Ola', last: 'Nordmann'})
+            CREATE (p1)<-[:VERSION_OF {from: $t2}]-(p1v2:Person:INSTANCE {age: 42, _from: $t2})-[:name]->(:Name:EMBEDDED {first: 'Ola', last: 'Hansen'})
+            CREATE (p1)-[:CURRENT]->(p1v2)
+            CREATE (p2)<-[:VERSION_OF {from: $t2}]-(p2v1:Person:INSTANCE {age: 30, _from: $t2})-[:name]->(:Name:EMBEDDED {first: 'Kari'})
+            CREATE (p2)-[:CURRENT]->(p2v1)""";
+
+    static Neo4j neo4j;
+    static Driver driver;
+    static Translator cypherDirectiveTranslator;
+    static Translator inlineLinksTranslator;
+
+    @BeforeAll
+    public static void startNeo4j() {
+        neo4j = Neo4jBuilders.newInProcessBuilder().withDisabledServer().withConfig(GraphDatabaseSettings.auth_enabled, false)
+                .withFunction(RunFirstColumnFunctions.class)
+                .build();
+        driver = GraphDatabase.driver(neo4j.boltURI(), AuthTokens.none());
+        try (Session session = driver.session()) {
+            session.run(DATA, Map.of("t1", T1, "t2", T2)).consume();
+        }
+        String sdl = new MixMapAndArrayExample().getSDL();
+        TBVConfig inlineLinks = TBVConfig.defaults().withInlineLinks(true);
+        cypherDirectiveTranslator = new Translator(TBVSchemas.schemaOf(TBVSchemas.transformRegistry(new SchemaParser().parse(sdl))));
+        inlineLinksTranslator = new Translator(TBVSchemas.schemaOf(TBVSchemas.transformRegistry(new SchemaParser().parse(sdl), inlineLinks), inlineLinks));
+    }
+
+    @AfterAll
+    public static void stopNeo4j() {
+        driver.close();
+        neo4j.close();
+    }
+
+    static List<Object> run(Translator translator, String query, ZonedDateTime version) throws OptimizedQueryException {
+        Map<String, Object> variables = Map.of("id", "1", "_version", version);
+        List<Cypher> cyphers = translator.translate(query, variables);
+        assertEquals(1, cyphers.size());
+        Map<String, Object> params = new LinkedHashMap<>(cyphers.get(0).component2());
+        params.putIfAbsent("_version", version);
+        try (Session session = driver.session()) {
+            return session.run(cyphers.get(0).component1(), params).list(record -> record.get(0).asObject());
+        }
+    }
+
+    static void assertSameResult(String query, ZonedDateTime version) throws OptimizedQueryException {
+        List<Object> expected = run(cypherDirectiveTranslator, query, version);
+        List<Object> actual = run(inlineLinksTranslator, query, version);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * The ages of the persons linked to by the friends of the result, in ascending order with unresolved links first.
+     */
+    @SuppressWarnings("unchecked")
+    static List<Long> linkedAges(List<Object> result) {
+        Map<String, Object> root = (Map<String, Object>) result.get(0);
+        return ((List<Map<String, Object>>) root.get("child")).stream()
+                .flatMap(child -> ((List<Map<String, Object>>) child.get("friend")).stream())
+                .map(friend -> friend.get("link") == null ? null : (Long) ((Map<String, Object>) friend.get("link")).get("age"))
+                .sorted(Comparator.nullsFirst(Comparator.naturalOrder()))
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void thatLinkAtVersionResolvesTheSameVersion() throws OptimizedQueryException {
+        String query = new MixMapAndArrayExample().queries().get(0).query;
+        assertSameResult(query, T1);
+        assertSameResult(query, T2);
+        // p2 has no version at t1
+        assertEquals(Arrays.asList(null, 41L), linkedAges(run(inlineLinksTranslator, query, T1)));
+        assertEquals(List.of(30L, 42L), linkedAges(run(inlineLinksTranslator, query, T2)));
+    }
+
+    @Test
+    public void thatLinkWithoutVersionResolvesTheCurrentVersion() throws OptimizedQueryException {
+        String query = new MixMapAndArrayExample().queries().get(0).query.replace("link (ver:$_version)", "link");
+        assertSameResult(query, T1);
+        assertEquals(List.of(30L, 42L), linkedAges(run(inlineLinksTranslator, query, T1)));
+    }
+}
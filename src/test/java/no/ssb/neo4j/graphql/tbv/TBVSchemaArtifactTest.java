@@ -0,0 +1,65 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.schema.idl.SchemaParser;
+import graphql.schema.idl.TypeDefinitionRegistry;
+import no.ssb.neo4j.graphql.tbv.examples.MixMapAndArrayExample;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TBVSchemaArtifactTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void thatArtifactRoundTripsTransformedRegistry() {
+        String sdl = new MixMapAndArrayExample().getSDL();
+        Path artifactPath = tempDir.resolve("schema.graphql.gz");
+
+        TypeDefinitionRegistry transformed = TBVSchemaArtifact.loadOrTransform(sdl, TBVConfig.defaults(), artifactPath);
+        assertTrue(Files.isRegularFile(artifactPath));
+
+        Optional<TypeDefinitionRegistry> loaded = TBVSchemaArtifact.read(artifactPath, TBVSchemaArtifact.checksumOf(sdl, TBVConfig.defaults()));
+        assertTrue(loaded.isPresent());
+        assertEquals(TBVSchemaArtifact.print(transformed), TBVSchemaArtifact.print(loaded.get()));
+        assertEquals(TBVSchemaArtifact.print(TBVSchemas.transformRegistry(new SchemaParser().parse(sdl))), TBVSchemaArtifact.print(loaded.get()));
+
+        // the loaded registry must be usable as input to schemaOf
+        TBVSchemas.schemaOf(loaded.get());
+    }
+
+    @Test
+    public void thatStaleArtifactIsIgnoredAndRewritten() {
+        String sdl = new MixMapAndArrayExample().getSDL();
+        Path artifactPath = tempDir.resolve("schema.graphql.gz");
+        TBVSchemaArtifact.loadOrTransform(sdl, TBVConfig.defaults(), artifactPath);
+
+        TBVConfig sentinel = TBVConfig.defaults().withOpenIntervalSentinel(true);
+        assertNotEquals(TBVSchemaArtifact.checksumOf(sdl, TBVConfig.defaults()), TBVSchemaArtifact.checksumOf(sdl, sentinel));
+        assertFalse(TBVSchemaArtifact.read(artifactPath, TBVSchemaArtifact.checksumOf(sdl, sentinel)).isPresent());
+        assertFalse(TBVSchemaArtifact.read(artifactPath, TBVSchemaArtifact.checksumOf(sdl + "\n", TBVConfig.defaults())).isPresent());
+
+        TBVSchemaArtifact.loadOrTransform(sdl, sentinel, artifactPath);
+        assertTrue(TBVSchemaArtifact.read(artifactPath, TBVSchemaArtifact.checksumOf(sdl, sentinel)).isPresent());
+    }
+
+    @Test
+    public void thatArtifactOfAnotherTransformationIsIgnored() {
+        String sdl = new MixMapAndArrayExample().getSDL();
+        Path artifactPath = tempDir.resolve("schema.graphql.gz");
+        TBVSchemaArtifact.loadOrTransform(sdl, TBVConfig.defaults(), artifactPath);
+
+        String otherTransformation = TBVSchemaArtifact.checksumOf(sdl, TBVConfig.defaults(), TBVSchemaArtifact.fingerprintOf(TBVConfig.class));
+        assertNotEquals(TBVSchemaArtifact.checksumOf(sdl, TBVConfig.defaults()), otherTransformation);
+        assertFalse(TBVSchemaArtifact.read(artifactPath, otherTransformation).isPresent());
+    }
+}
@@ -0,0 +1,175 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.language.FieldDefinition;
+import graphql.language.ObjectTypeDefinition;
+import graphql.language.StringValue;
+import graphql.schema.GraphQLArgument;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLInputObjectType;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.GraphQLTypeUtil;
+import graphql.schema.idl.SchemaParser;
+import graphql.schema.idl.TypeDefinitionRegistry;
+import no.ssb.neo4j.graphql.tbv.examples.MixMapAndArrayExample;
+import org.junit.jupiter.api.Test;
+import org.neo4j.graphql.Cypher;
+import org.neo4j.graphql.OptimizedQueryException;
+import org.neo4j.graphql.Translator;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TBVSchemasTest {
+
+    static final TBVConfig CHANGE_FEED = TBVConfig.defaults().withChangeFeed(true);
+
+    @Test
+    public void thatDomainTypesGetVersionFieldsAndChangesQuery() {
+        TypeDefinitionRegistry registry = TBVSchemas.transformRegistry(new SchemaParser().parse(new MixMapAndArrayExample().getSDL()), CHANGE_FEED);
+
+        ObjectTypeDefinition person = registry.getType("Person", ObjectTypeDefinition.class).orElseThrow();
+        List<String> personFields = person.getFieldDefinitions().stream().map(FieldDefinition::getName).collect(Collectors.toList());
+        assertTrue(personFields.containsAll(List.of("_from", "_to", "_cursor", "_pageCursor", "_previous")));
+        // embedded types are not versioned on their own
+        assertTrue(registry.getType("Name", ObjectTypeDefinition.class).orElseThrow().getFieldDefinitions().stream().noneMatch(f -> f.getName().equals("_cursor")));
+
+        ObjectTypeDefinition query = registry.getType("Query", ObjectTypeDefinition.class).orElseThrow();
+        FieldDefinition personChanges = query.getFieldDefinitions().stream().filter(f -> f.getName().equals("personChanges")).findFirst().orElseThrow();
+        assertEquals(List.of("since", "until", "after", "pageSize"), personChanges.getInputValueDefinitions().stream().map(v -> v.getName()).collect(Collectors.toList()));
+        assertNotNull(personChanges.getDirective("cypher"));
+
+        // the change feed reads the mirrored intervals, and is only added when enabled
+        TypeDefinitionRegistry defaults = TBVSchemas.transformRegistry(new SchemaParser().parse(new MixMapAndArrayExample().getSDL()));
+        assertTrue(defaults.getType("Person", ObjectTypeDefinition.class).orElseThrow().getFieldDefinitions().stream().noneMatch(f -> f.getName().equals("_cursor")));
+        assertTrue(defaults.getType("Query", ObjectTypeDefinition.class).orElseThrow().getFieldDefinitions().stream().noneMatch(f -> f.getName().equals("personChanges")));
+    }
+
+    @Test
+    public void thatChangesQueryTranslatesToRangeOnMirroredFrom() throws OptimizedQueryException {
+        GraphQLSchema schema = TBVSchemas.schemaOf(TBVSchemas.transformRegistry(new SchemaParser().parse(new MixMapAndArrayExample().getSDL()), CHANGE_FEED), CHANGE_FEED);
+        assertNotNull(schema.getQueryType().getFieldDefinition("personChanges"));
+
+        List<Cypher> cyphers = new Translator(schema).translate("""
+                {
+                  personChanges(since: "2020-01-01T00:00:00Z", until: "2020-02-01T00:00:00Z", pageSize: 10) {
+                    age
+                    _cursor
+                    _previous {
+                      age
+                    }
+                  }
+                }""", Map.of());
+        assertEquals(1, cyphers.size());
+        assertTrue(cyphers.get(0).component1().contains("n._from > datetime(since) AND n._from <= datetime(until)"), cyphers.get(0).component1());
+    }
+
+    @Test
+    public void thatHistoryQueryReturnsVersionsOfResourceWithinRange() throws OptimizedQueryException {
+        GraphQLSchema schema = TBVSchemas.schemaOf(TBVSchemas.transformRegistry(new SchemaParser().parse(new MixMapAndArrayExample().getSDL())));
+        GraphQLFieldDefinition personHistory = schema.getQueryType().getFieldDefinition("personHistory");
+        assertEquals(List.of("id", "from", "to"), personHistory.getArguments().stream().map(GraphQLArgument::getName).collect(Collectors.toList()));
+
+        List<Cypher> cyphers = new Translator(schema).translate("""
+                {
+                  personHistory(id: "p1", from: "2020-01-01T00:00:00Z") {
+                    age
+                    _from
+                    _to
+                  }
+                }""", Map.of());
+        assertEquals(1, cyphers.size());
+        // one row per version, rather than one list of all versions
+        String query = cyphers.get(0).component1();
+        assertTrue(query.startsWith("MATCH (_r:Person_R:RESOURCE {id: $personHistoryId})<-[_v:VERSION_OF]-(personHistory:Person:INSTANCE) WHERE "), query);
+        assertTrue(query.contains(" WITH personHistory, _v ORDER BY _v.from RETURN personHistory "), query);
+        assertFalse(query.contains("runFirstColumnMany"), query);
+        assertEquals("p1", cyphers.get(0).component2().get("personHistoryId"));
+        assertEquals("2020-01-01T00:00:00Z", cyphers.get(0).component2().get("personHistoryFrom"));
+        assertNull(cyphers.get(0).component2().get("personHistoryTo"));
+    }
+
+    @Test
+    public void thatRootQueriesArePagedByCursorOnResourceId() throws OptimizedQueryException {
+        GraphQLSchema schema = TBVSchemas.schemaOf(TBVSchemas.transformRegistry(new SchemaParser().parse(new MixMapAndArrayExample().getSDL())));
+        assertNotNull(schema.getQueryType().getFieldDefinition("mixMapAndArray").getArgument("after"));
+
+        String after = TBVSchemas.cursorOf("m100");
+        List<Cypher> cyphers = new Translator(schema).translate("""
+                query ($after: String) {
+                  mixMapAndArray(first: 10, after: $after) {
+                    id
+                  }
+                }""", Map.of("after", after));
+        assertEquals(1, cyphers.size());
+        String query = cyphers.get(0).component1();
+        assertTrue(query.contains("WHERE _r.id > $mixMapAndArrayAfter"), query);
+        assertTrue(query.contains(" ORDER BY _r.id "), query);
+        // the opaque cursor is decoded into the id of the resource
+        assertEquals("m100", cyphers.get(0).component2().get("mixMapAndArrayAfter"));
+        assertEquals("m100", TBVSchemas.resourceIdOf(after));
+        assertThrows(IllegalArgumentException.class, () -> TBVSchemas.resourceIdOf("m100"));
+        // the cursor field is plain cypher
+        ObjectTypeDefinition mixMapAndArray = TBVSchemas.transformRegistry(new SchemaParser().parse(new MixMapAndArrayExample().getSDL()))
+                .getType("MixMapAndArray", ObjectTypeDefinition.class).orElseThrow();
+        assertEquals("RETURN 'r:' + this.id", statementOf(mixMapAndArray, "_pageCursor"));
+    }
+
+    @Test
+    public void thatFlattenedEmbeddedValuesAreReadFromJsonProperty() {
+        TBVConfig config = TBVConfig.defaults().withFlattenEmbedded(true);
+        TypeDefinitionRegistry registry = TBVSchemas.transformRegistry(new SchemaParser().parse(new MixMapAndArrayExample().getSDL()), config);
+
+        ObjectTypeDefinition mixMapAndArray = registry.getType("MixMapAndArray", ObjectTypeDefinition.class).orElseThrow();
+        assertEquals("RETURN apoc.convert.fromJsonMap(this.name)", statementOf(mixMapAndArray, "name"));
+        assertEquals("UNWIND coalesce(apoc.convert.fromJsonList(this.child), []) AS value RETURN value", statementOf(mixMapAndArray, "child"));
+        assertNull(mixMapAndArray.getFieldDefinitions().stream().filter(f -> f.getName().equals("name")).findFirst().orElseThrow().getDirective("relation"));
+
+        // embedded values within embedded values are entries of the map, and links are ids of the target resource
+        ObjectTypeDefinition child = registry.getType("Child", ObjectTypeDefinition.class).orElseThrow();
+        assertEquals("UNWIND coalesce(this.friend, []) AS value RETURN value", statementOf(child, "friend"));
+        ObjectTypeDefinition friend = registry.getType("Friend", ObjectTypeDefinition.class).orElseThrow();
+        assertTrue(statementOf(friend, "link").startsWith("MATCH (r:Person_R:RESOURCE {id: this.link}) UNWIND"), statementOf(friend, "link"));
+    }
+
+    @Test
+    public void thatFlattenedEmbeddedValuesAreWrittenByCreateMutation() throws OptimizedQueryException {
+        TBVConfig config = TBVConfig.defaults().withFlattenEmbedded(true);
+        GraphQLSchema schema = TBVSchemas.schemaOf(TBVSchemas.transformRegistry(new SchemaParser().parse(new MixMapAndArrayExample().getSDL()), config), config);
+
+        GraphQLFieldDefinition create = schema.getMutationType().getFieldDefinition("createMixMapAndArray");
+        assertEquals("_NameInput", GraphQLTypeUtil.simplePrint(create.getArgument("name").getType()));
+        assertEquals("[_ChildInput]", GraphQLTypeUtil.simplePrint(create.getArgument("child").getType()));
+        GraphQLInputObjectType friendInput = (GraphQLInputObjectType) schema.getType("_FriendInput");
+        assertEquals("ID", GraphQLTypeUtil.simplePrint(friendInput.getField("link").getType()));
+
+        Map<String, Object> name = Map.of("first", "Ola", "last", "Nordmann");
+        List<Cypher> cyphers = new Translator(schema).translate("""
+                mutation {
+                  createMixMapAndArray(id: $id, name: $name, child: [{name: "Kari", friend: [{since: "2020", link: "p1"}]}]) {
+                    id
+                  }
+                }""", Map.of("id", "m1", "name", name, "_version", ZonedDateTime.of(2020, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC)));
+        assertEquals(1, cyphers.size());
+        String query = cyphers.get(0).component1();
+        assertTrue(query.contains("SET createMixMapAndArray.name = apoc.convert.toJson($createMixMapAndArrayName)\n"), query);
+        assertTrue(query.contains("SET createMixMapAndArray.child = apoc.convert.toJson($createMixMapAndArrayChild)\n"), query);
+        assertFalse(query.contains("EMBEDDED"), query);
+        assertEquals(name, cyphers.get(0).component2().get("createMixMapAndArrayName"));
+        assertEquals(List.of(Map.of("name", "Kari", "friend", List.of(Map.of("since", "2020", "link", "p1")))), cyphers.get(0).component2().get("createMixMapAndArrayChild"));
+    }
+
+    static String statementOf(ObjectTypeDefinition type, String fieldName) {
+        FieldDefinition field = type.getFieldDefinitions().stream().filter(f -> f.getName().equals(fieldName)).findFirst().orElseThrow();
+        return ((StringValue) field.getDirective("cypher").getArgument("statement").getValue()).getValue();
+    }
+}
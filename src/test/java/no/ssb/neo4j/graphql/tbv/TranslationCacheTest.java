@@ -0,0 +1,166 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.SchemaParser;
+import no.ssb.neo4j.graphql.tbv.examples.MixMapAndArrayExample;
+import org.junit.jupiter.api.Test;
+import org.neo4j.driver.summary.ResultSummary;
+import org.neo4j.graphql.Cypher;
+import org.neo4j.graphql.OptimizedQueryException;
+import org.neo4j.graphql.Translator;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TranslationCacheTest {
+
+    static final String QUERY = """
+            {
+              mixMapAndArray(first:5, id: $id) {
+                name {
+                  first
+                }
+                child {
+                  friend {
+                    link (ver:$_version) {
+                      age
+                    }
+                  }
+                }
+              }
+            }""";
+
+    @Test
+    public void thatFormattingDifferencesNormalizeToSameDocument() {
+        assertEquals(
+                TranslationCache.normalizeDocument("{ person(first: 5, id: $id) { name } }"),
+                TranslationCache.normalizeDocument("""
+                        # comment
+                        {
+                          person(first:5 id:$id) {
+                            name
+                          }
+                        }""")
+        );
+        assertNotEquals(
+                TranslationCache.normalizeDocument("{ person(name: \"a  b\") { name } }"),
+                TranslationCache.normalizeDocument("{ person(name: \"a b\") { name } }")
+        );
+    }
+
+    @Test
+    public void thatCacheHitIsReboundToNewVariableValues() throws OptimizedQueryException {
+        GraphQLSchema schema = TBVSchemas.schemaOf(TBVSchemas.transformRegistry(new SchemaParser().parse(new MixMapAndArrayExample().getSDL())));
+        Translator translator = new Translator(schema);
+        TranslationCache cache = new TranslationCache(translator, 10);
+
+        cache.translate(QUERY, Map.of("id", "1", "_version", ZonedDateTime.of(2020, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC)));
+        Map<String, Object> variables = Map.of("id", "2", "_version", ZonedDateTime.of(2020, 2, 1, 0, 0, 0, 0, ZoneOffset.UTC));
+        List<Cypher> cached = cache.translate(QUERY, variables);
+        List<Cypher> expected = translator.translate(QUERY, variables);
+
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.hits());
+        assertEquals(expected.size(), cached.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).component1(), cached.get(i).component1());
+            assertEquals(expected.get(i).component2(), cached.get(i).component2());
+        }
+    }
+
+    @Test
+    public void thatCanonicalizedCacheHitIsReboundToNewVariableValues() throws OptimizedQueryException {
+        GraphQLSchema schema = TBVSchemas.schemaOf(TBVSchemas.transformRegistry(new SchemaParser().parse(new MixMapAndArrayExample().getSDL())));
+        Translator translator = new Translator(schema);
+        TranslationCache cache = new TranslationCache(translator, 10, TBVMetrics.NOOP, true);
+
+        cache.translate(QUERY, Map.of("id", "1", "_version", ZonedDateTime.of(2020, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC)));
+        Map<String, Object> variables = Map.of("id", "2", "_version", ZonedDateTime.of(2020, 2, 1, 0, 0, 0, 0, ZoneOffset.UTC));
+        List<Cypher> cached = cache.translate(QUERY, variables);
+        List<Cypher> expected = CypherCanonicalizer.canonicalize(translator.translate(QUERY, variables));
+
+        assertEquals(1, cache.hits());
+        assertEquals(0, cache.uncacheable());
+        assertEquals(expected.size(), cached.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).component1(), cached.get(i).component1());
+            assertEquals(expected.get(i).component2(), cached.get(i).component2());
+            assertTrue(cached.get(i).component2().containsValue(variables.get("id")), cached.get(i).component2().toString());
+        }
+    }
+
+    @Test
+    public void thatParametersAreBoundByVariableNameAndDecodedCursor() throws OptimizedQueryException {
+        GraphQLSchema schema = TBVSchemas.schemaOf(TBVSchemas.transformRegistry(new SchemaParser().parse(new MixMapAndArrayExample().getSDL())));
+        Translator translator = new Translator(schema);
+        TranslationCache cache = new TranslationCache(translator, 10);
+        String query = """
+                query ($first: Int, $after: String) {
+                  mixMapAndArray(first: $first, after: $after) {
+                    id
+                  }
+                }""";
+
+        // equal values of different variables are told apart by their probes
+        cache.translate(query, Map.of("first", 10, "after", TBVSchemas.cursorOf("10")));
+        Map<String, Object> variables = Map.of("first", 20, "after", TBVSchemas.cursorOf("m2"));
+        List<Cypher> cached = cache.translate(query, variables);
+
+        assertEquals(1, cache.hits());
+        assertEquals(0, cache.uncacheable());
+        assertEquals(translator.translate(query, variables).get(0).component2(), cached.get(0).component2());
+        assertEquals("m2", cached.get(0).component2().get("mixMapAndArrayAfter"));
+    }
+
+    @Test
+    public void thatLeastRecentlyUsedEntryIsEvicted() throws OptimizedQueryException {
+        GraphQLSchema schema = TBVSchemas.schemaOf(TBVSchemas.transformRegistry(new SchemaParser().parse(new MixMapAndArrayExample().getSDL())));
+        TranslationCache cache = new TranslationCache(new Translator(schema), 1);
+
+        cache.translate("{ person(first:1) { age } }", Map.of());
+        cache.translate("{ person(first:2) { age } }", Map.of());
+        cache.translate("{ person(first:1) { age } }", Map.of());
+
+        assertEquals(3, cache.misses());
+        assertEquals(2, cache.evictions());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void thatMetricsReceiveTimingsPerPhaseAndRootField() throws OptimizedQueryException {
+        List<String> timings = new ArrayList<>();
+        TBVMetrics metrics = new TBVMetrics() {
+            @Override
+            public boolean enabled() {
+                return true;
+            }
+
+            @Override
+            public void timing(Phase phase, String rootField, Kind kind, long nanos) {
+                assertTrue(nanos >= 0);
+                timings.add(phase + ":" + rootField + ":" + kind);
+            }
+
+            @Override
+            public void summary(String rootField, Kind kind, ResultSummary summary) {
+            }
+        };
+        TBVConfig config = TBVConfig.defaults().withMetrics(metrics);
+        GraphQLSchema schema = TBVSchemas.schemaOf(TBVSchemas.transformRegistry(new SchemaParser().parse(new MixMapAndArrayExample().getSDL()), config), config);
+        TranslationCache cache = new TranslationCache(new Translator(schema), 10, metrics);
+
+        cache.translate("{ person(first:1) { age } }", Map.of());
+        assertEquals(List.of("TRANSLATE:person:QUERY", "REWRITE:person:QUERY", "PARSE_AND_VALIDATE:null:null"), timings);
+
+        timings.clear();
+        cache.translate("{ person(first:1) { age } }", Map.of());
+        assertEquals(List.of("CACHE_BIND:null:null"), timings);
+    }
+}
@@ -0,0 +1,201 @@
+package no.ssb.neo4j.graphql.tbv;
+
+import graphql.schema.idl.SchemaParser;
+import graphql.schema.idl.TypeDefinitionRegistry;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.neo4j.configuration.GraphDatabaseSettings;
+import org.neo4j.driver.AuthTokens;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.GraphDatabase;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.Value;
+import org.neo4j.driver.Values;
+import org.neo4j.driver.internal.InternalRecord;
+import org.neo4j.driver.internal.types.InternalTypeSystem;
+import org.neo4j.harness.Neo4j;
+import org.neo4j.harness.Neo4jBuilders;
+
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class VersionCompactionJobTest {
+
+    static final ZonedDateTime T1 = ZonedDateTime.of(2020, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+    static final ZonedDateTime T2 = T1.plusDays(1);
+    static final ZonedDateTime T3 = T1.plusDays(2);
+    static final ZonedDateTime T4 = T1.plusDays(3);
+
+    static final String SDL = """
+            type Person @domain {
+              id: ID!
+              age: Int
+              address: Address
+              friends: [Person] @link
+            }
+            type Address {
+              city: String
+            }
+            """;
+
+    /**
+     * Versions in the shape written by the create mutation, with embedded nodes and links. Versions 1 and 2 of p1 and
+     * of p2 are identical, the versions of p3 link to different resources.
+     */
+    static final String DATA = """
+            CREATE (p1:Person_R:RESOURCE {id: 'p1'}), (p2:Person_R:RESOURCE {id: 'p2'}), (p3:Person_R:RESOURCE {id: 'p3'})
+            CREATE (p1)<-[:VERSION_OF {from: $t1, to: $t2}]-(i1:Person:INSTANCE {id: 'p1', age: 41, _from: $t1, _to: $t2})-[:address]->(:Address:EMBEDDED {city: 'Oslo'})
+            CREATE (p1)<-[:VERSION_OF {from: $t2, to: $t3}]-(i2:Person:INSTANCE {id: 'p1', age: 41, _from: $t2, _to: $t3})-[:address]->(:Address:EMBEDDED {city: 'Oslo'})
+            CREATE (p1)<-[:VERSION_OF {from: $t3}]-(i3:Person:INSTANCE {id: 'p1', age: 41, _from: $t3})-[:address]->(:Address:EMBEDDED {city: 'Bergen'})
+            CREATE (p1)-[:CURRENT]->(i3)
+            CREATE (i1)-[:friends]->(p2), (i2)-[:friends]->(p2), (i3)-[:friends]->(p2)
+            CREATE (p2)<-[:VERSION_OF {from: $t1, to: $t2}]-(:Person:INSTANCE {id: 'p2', age: 30, _from: $t1, _to: $t2})
+            CREATE (p2)<-[:VERSION_OF {from: $t2}]-(j2:Person:INSTANCE {id: 'p2', age: 30, _from: $t2})
+            CREATE (p2)-[:CURRENT]->(j2)
+            CREATE (p3)<-[:VERSION_OF {from: $t1, to: $t2}]-(:Person:INSTANCE {id: 'p3', age: 20, _from: $t1, _to: $t2})-[:friends]->(p1)
+            CREATE (p3)<-[:VERSION_OF {from: $t2}]-(k2:Person:INSTANCE {id: 'p3', age: 20, _from: $t2})-[:friends]->(p2)
+            CREATE (p3)-[:CURRENT]->(k2)""";
+
+    static Neo4j neo4j;
+    static Driver driver;
+    static TypeDefinitionRegistry registry;
+
+    @BeforeAll
+    public static void startNeo4j() {
+        neo4j = Neo4jBuilders.newInProcessBuilder().withDisabledServer().withConfig(GraphDatabaseSettings.auth_enabled, false).build();
+        driver = GraphDatabase.driver(neo4j.boltURI(), AuthTokens.none());
+        registry = new SchemaParser().parse(SDL);
+        new TBVIndexBootstrapper(TBVSchemas.transformRegistry(registry)).apply(driver);
+    }
+
+    @AfterAll
+    public static void stopNeo4j() {
+        driver.close();
+        neo4j.close();
+    }
+
+    @BeforeEach
+    public void createData() {
+        try (Session session = driver.session()) {
+            session.run("MATCH (n) DETACH DELETE n").consume();
+            session.run(DATA, Map.of("t1", T1, "t2", T2, "t3", T3)).consume();
+        }
+    }
+
+    static long count(String query) {
+        try (Session session = driver.session()) {
+            return session.run(query).single().get(0).asLong();
+        }
+    }
+
+    @Test
+    public void thatIdenticalVersionsAreMergedInTheDatabase() {
+        VersionCompactionJob.CompactionResult result = new VersionCompactionJob(driver, registry, "test", 1, null).run();
+
+        assertEquals(3, result.resources);
+        assertEquals(2, result.mergedVersions);
+        assertEquals(0, result.expiredVersions);
+        assertEquals(5, count("MATCH (i:Person:INSTANCE) RETURN count(i)"));
+        // the embedded value of the merged version is removed with it
+        assertEquals(2, count("MATCH (a:Address:EMBEDDED) RETURN count(a)"));
+        assertEquals(1, count("MATCH (:Person_R {id: 'p1'})<-[v:VERSION_OF]-()-[:address]->({city: 'Oslo'}) WHERE v.from = datetime('2020-01-01T00:00:00Z') AND v.to = datetime('2020-01-03T00:00:00Z') RETURN count(v)"));
+        // the kept version of p2 is the current version, with an open interval
+        assertEquals(1, count("MATCH (r:Person_R {id: 'p2'})-[:CURRENT]->(i)-[v:VERSION_OF]->(r) WHERE v.to IS NULL AND i._to IS NULL RETURN count(i)"));
+        assertEquals(2, count("MATCH (:Person_R {id: 'p3'})<-[v:VERSION_OF]-() RETURN count(v)"));
+        assertEquals(0, count("MATCH (c:" + VersionCompactionJob.CHECKPOINT_LABEL + ") RETURN count(c)"));
+        // the merged versions are gone from the history, which invalidates the snapshots of the type
+        try (Session session = driver.session()) {
+            assertTrue(TBVWriteSignal.read(session).get("Person").invalidations > 0);
+        }
+    }
+
+    @Test
+    public void thatCompactionResumesAfterTheCheckpointedResourceId() {
+        try (Session session = driver.session()) {
+            session.run("CREATE (:" + VersionCompactionJob.CHECKPOINT_LABEL + " {name: 'test', type: 'Person', after: 'p2'})").consume();
+        }
+        VersionCompactionJob.CompactionResult result = new VersionCompactionJob(driver, registry, "test", 1, null).run();
+
+        assertEquals(1, result.resources);
+        assertEquals(0, result.mergedVersions);
+        assertEquals(7, count("MATCH (i:Person:INSTANCE) RETURN count(i)"));
+    }
+
+    @Test
+    public void thatExpiredVersionsAreRemovedWithTheirEmbeddedValues() {
+        VersionCompactionJob.CompactionResult result = new VersionCompactionJob(driver, registry, "test", 2, Duration.ofDays(1)).run();
+
+        assertEquals(4, result.expiredVersions);
+        assertEquals(3, count("MATCH (i:Person:INSTANCE) RETURN count(i)"));
+        assertEquals(1, count("MATCH (a:Address:EMBEDDED) RETURN count(a)"));
+        // resources linked to are kept
+        assertEquals(3, count("MATCH (r:Person_R:RESOURCE) RETURN count(r)"));
+        try (Session session = driver.session()) {
+            assertTrue(TBVWriteSignal.read(session).get("Person").invalidations > 0);
+        }
+    }
+
+    @Test
+    public void thatExpansionIsLimitedToEmbeddedAndLinkRelations() {
+        String readPage = new VersionCompactionJob(driver, registry, "test", 1, null).readPageByType.get("Person");
+
+        assertTrue(readPage.contains("MATCH (r:Person_R:RESOURCE) WHERE r.id > $after"), readPage);
+        assertTrue(readPage.contains("(i)-[:`address`*0..]->(x)"), readPage);
+        assertTrue(readPage.contains("(x)-[l:`friends`]->(t:RESOURCE)"), readPage);
+    }
+
+    static Record version(long id, ZonedDateTime from, ZonedDateTime to, Map<String, Object> properties, List<List<Object>> paths) {
+        return new InternalRecord(List.of("resource", "version", "from", "to", "instance", "labels", "properties", "paths"), new Value[]{
+                Values.value(1L), Values.value(id), Values.value(from), Values.value((Object) to), Values.value(100 + id),
+                Values.value(List.of("Person", "INSTANCE")), Values.value(properties), Values.value(paths)});
+    }
+
+    @Test
+    public void thatAdjacentIdenticalVersionsAreMergedIntoTheEarliest() {
+        List<Object> name = List.of(List.of("name", List.of("Name", "EMBEDDED"), Map.of("first", "Ola")));
+        List<Object> address = List.of(List.of("address", List.of("Address", "EMBEDDED"), Map.of("city", "Oslo")));
+        List<Record> versions = List.of(
+                version(1, T1, T2, Map.of("age", 41L, "_from", T1, "_to", T2), List.of(name, address)),
+                // embedded paths in a different order, and different mirrored interval
+                version(2, T2, T3, Map.of("age", 41L, "_from", T2, "_to", T3), List.of(address, name)),
+                version(3, T3, T4, Map.of("age", 42L, "_from", T3, "_to", T4), List.of(address, name)),
+                version(4, T4, null, Map.of("age", 42L, "_from", T4), List.of(address, name)));
+
+        List<Map<String, Object>> merges = new ArrayList<>();
+        List<Long> deletedInstances = new ArrayList<>();
+        long merged = VersionCompactionJob.planMerges(versions, InternalTypeSystem.TYPE_SYSTEM, merges, deletedInstances);
+
+        assertEquals(2, merged);
+        assertEquals(List.of(102L, 104L), deletedInstances);
+        assertEquals(2, merges.size());
+        assertEquals(1L, merges.get(0).get("keep"));
+        assertEquals(T3, merges.get(0).get("to"));
+        assertEquals(List.of(102L), merges.get(0).get("dropped"));
+        assertEquals(3L, merges.get(1).get("keep"));
+        assertEquals(null, merges.get(1).get("to"));
+    }
+
+    @Test
+    public void thatVersionsWithGapOrDifferentEmbeddedContentAreKept() {
+        List<Object> ola = List.of(List.of("name", List.of("Name", "EMBEDDED"), Map.of("first", "Ola")));
+        List<Object> kari = List.of(List.of("name", List.of("Name", "EMBEDDED"), Map.of("first", "Kari")));
+        List<Record> versions = List.of(
+                version(1, T1, T2, Map.of("age", 41L), List.of(ola)),
+                version(2, T2, T3, Map.of("age", 41L), List.of(kari)),
+                version(3, T4, null, Map.of("age", 41L), List.of(kari)));
+
+        List<Map<String, Object>> merges = new ArrayList<>();
+        assertEquals(0, VersionCompactionJob.planMerges(versions, InternalTypeSystem.TYPE_SYSTEM, merges, new ArrayList<>()));
+        assertEquals(List.of(), merges);
+    }
+}